@@ -0,0 +1,150 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+
+import edu.wisc.cs.sdn.apps.l3routing.RuleAction;
+import edu.wisc.cs.sdn.apps.l3routing.RuleMatch;
+
+/**
+ * Measures the bytes allocated for each flow-mod built for a host rule, the
+ * way rules were built before instructions and match criteria were shared,
+ * the way L3Routing builds them now, and for the flow-mod alone. Bytes are
+ * counted by the JVM for the running thread, so the numbers only hold on a
+ * JVM that supports it, such as HotSpot. Run with "ant bench".
+ */
+public class RuleAllocationBench 
+{
+	// Rules built per round, and rounds run before measuring
+	private static final int RULES = 200000;
+	private static final int WARMUP_ROUNDS = 10;
+	
+	// Number of output ports and of hosts the rules cycle through
+	private static final int PORTS = 48;
+	private static final int HOSTS = 1024;
+	
+	// Table and priority of the rules
+	private static final byte TABLE = 0;
+	private static final short PRIORITY = SwitchCommands.DEFAULT_PRIORITY;
+	
+	/**
+	 * Builds one rule for a host.
+	 */
+	private interface RuleBuilder
+	{
+		OFFlowMod build(int host, int port);
+	}
+	
+	// Total length of the flow-mods built, so they are not optimized away
+	private static long sink = 0;
+	
+	public static void main(String[] args)
+	{
+		final RuleMatch[] matches = new RuleMatch[HOSTS];
+		final OFMatch[] ofMatches = new OFMatch[HOSTS];
+		for (int host = 0; host < HOSTS; host++)
+		{
+			matches[host] = new RuleMatch(PRIORITY, 0x0a000000 | host);
+			ofMatches[host] = matches[host].toOFMatch();
+		}
+		
+		measure("before", new RuleBuilder() {
+			@Override
+			public OFFlowMod build(int host, int port)
+			{
+				// A fresh match, actions, and instructions for every rule,
+				// and a clone of the match when the rule is installed
+				OFMatch matchCriteria = new OFMatch();
+				matchCriteria.setNetworkDestination(OFMatch.ETH_TYPE_IPV4,
+						0x0a000000 | host);
+				List<OFAction> actions = new ArrayList<OFAction>();
+				actions.add(new OFActionOutput().setPort(port));
+				OFInstructionApplyActions apply =
+						new OFInstructionApplyActions();
+				apply.setActions(actions);
+				List<OFInstruction> instructions =
+						new ArrayList<OFInstruction>();
+				instructions.add(apply);
+				return SwitchCommands.buildFlowMod(OFFlowMod.OFPFC_ADD, TABLE,
+						PRIORITY, matchCriteria.clone(), instructions,
+						SwitchCommands.NO_TIMEOUT, SwitchCommands.NO_TIMEOUT,
+						OFPacketOut.BUFFER_ID_NONE);
+			}
+		});
+		
+		measure("after", new RuleBuilder() {
+			@Override
+			public OFFlowMod build(int host, int port)
+			{
+				return SwitchCommands.buildFlowMod(OFFlowMod.OFPFC_ADD, TABLE,
+						PRIORITY, matches[host].toOFMatch(),
+						RuleAction.output(port).toInstructions(),
+						SwitchCommands.NO_TIMEOUT, SwitchCommands.NO_TIMEOUT,
+						OFPacketOut.BUFFER_ID_NONE);
+			}
+		});
+		
+		final List<OFInstruction> instructions =
+				SwitchCommands.outputInstructions(1);
+		measure("flow-mod only", new RuleBuilder() {
+			@Override
+			public OFFlowMod build(int host, int port)
+			{
+				return SwitchCommands.buildFlowMod(OFFlowMod.OFPFC_ADD, TABLE,
+						PRIORITY, ofMatches[host], instructions,
+						SwitchCommands.NO_TIMEOUT, SwitchCommands.NO_TIMEOUT,
+						OFPacketOut.BUFFER_ID_NONE);
+			}
+		});
+		System.out.println(String.format("(total length %d)", sink));
+	}
+	
+	/**
+	 * Build rules until the JIT has settled, then print the bytes allocated
+	 * per rule in one more round.
+	 * @param name name of the way rules are built
+	 * @param builder builds each rule
+	 */
+	private static void measure(String name, RuleBuilder builder)
+	{
+		for (int round = 0; round < WARMUP_ROUNDS; round++)
+		{ run(builder); }
+		long before = getAllocatedBytes();
+		run(builder);
+		long allocated = getAllocatedBytes() - before;
+		System.out.println(String.format("%-14s %8.1f bytes per rule", name,
+				(double)allocated / RULES));
+	}
+	
+	private static void run(RuleBuilder builder)
+	{
+		long length = 0;
+		for (int i = 0; i < RULES; i++)
+		{
+			OFFlowMod rule = builder.build(i % HOSTS, 1 + i % PORTS);
+			length += rule.getLength();
+		}
+		sink += length;
+	}
+	
+	/**
+	 * Get the bytes allocated so far by the running thread.
+	 */
+	private static long getAllocatedBytes()
+	{
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)
+				ManagementFactory.getThreadMXBean();
+		return threads.getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+	}
+}
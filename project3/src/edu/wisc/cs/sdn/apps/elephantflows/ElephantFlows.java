@@ -0,0 +1,1202 @@
+package edu.wisc.cs.sdn.apps.elephantflows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openflow.protocol.OFGroupMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFOXMFieldType;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.l3routing.DijkstraPathEngine;
+import edu.wisc.cs.sdn.apps.l3routing.IL3Routing;
+import edu.wisc.cs.sdn.apps.l3routing.PathEngine;
+import edu.wisc.cs.sdn.apps.l3routing.RouteHop;
+import edu.wisc.cs.sdn.apps.l3routing.RuleAction;
+import edu.wisc.cs.sdn.apps.l3routing.RuleGroup;
+import edu.wisc.cs.sdn.apps.l3routing.ShortestPathTree;
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph;
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
+import edu.wisc.cs.sdn.apps.util.Host;
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.IOFSwitch.PortChangeType;
+import net.floodlightcontroller.core.IOFSwitchListener;
+import net.floodlightcontroller.core.ImmutablePort;
+import net.floodlightcontroller.core.module.FloodlightModuleContext;
+import net.floodlightcontroller.core.module.FloodlightModuleException;
+import net.floodlightcontroller.core.module.IFloodlightModule;
+import net.floodlightcontroller.core.module.IFloodlightService;
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.routing.Link;
+
+/**
+ * Moves long-lived bulk transfers ("elephant flows") off the shortest path
+ * onto the least-loaded path towards their destination, so they stop
+ * queueing ahead of the short flows that share the shortest path. A flow
+ * is the traffic from one host to another.
+ * <p>
+ * L3Routing's rules count traffic per destination, not per flow, so flows
+ * are found in two steps. L3Routing measures how fast each host sends on
+ * its edge port; the switch of every host that sends faster than the
+ * threshold is polled for the bytes its rules for each destination have
+ * counted. Each such host is paired with every destination its switch
+ * forwards to faster than the threshold, and only the fastest pairs get a
+ * rule of their own, in the host's switch alone. The rule forwards exactly
+ * as L3Routing's rule for the destination does, but counts the flow's
+ * bytes. It expires after a few polls, and a flow that turned out to be
+ * small is not counted again for a while.
+ * <p>
+ * An elephant's path is computed with L3Routing's Dijkstra engine, over
+ * links weighted by their speed and load as L3Routing measures them, and
+ * the elephant is only moved if that path is clearly less loaded than its
+ * current one. Each switch on the path forwards the elephant through a
+ * fast-failover group, which falls back to L3Routing's next hop if the
+ * path's port goes down. Rules along the path are installed last at the
+ * ingress switch, once the rest of the path has confirmed its rules. Links
+ * on a path just given to an elephant count double for the next elephant,
+ * so elephants found together spread out, and moved elephants are checked
+ * again whenever link weights change. Switches remove an elephant's rules
+ * once it has been idle. Flows through a switch that (re)joins are
+ * forgotten, since the switch may have lost their rules and groups.
+ * <p>
+ * Rules and groups are sent through L3Routing's outbound queues, at the
+ * rate L3Routing allows. Everything runs on the module's timer thread.
+ */
+public class ElephantFlows implements IFloodlightModule, IOFSwitchListener 
+{
+	public static final String MODULE_NAME =
+			ElephantFlows.class.getSimpleName();
+	
+	// Rules for single flows must win over every rule L3Routing installs
+	private static final short FLOW_PRIORITY = 100;
+	
+	// Groups of moved elephants get IDs above every ID L3Routing uses, and
+	// the number of IDs they cycle through
+	private static final int FIRST_GROUP_ID = 0x2000000;
+	private static final int GROUP_IDS = 0x1000000;
+	
+	// Seconds between polls, by default
+	private static final int DEFAULT_INTERVAL = 5;
+	
+	// Rate above which a flow is an elephant, in Mbit/s, by default
+	private static final int DEFAULT_THRESHOLD = 100;
+	
+	// Seconds an elephant's rules stay without matching packets, by default
+	private static final int DEFAULT_IDLE_TIMEOUT = 10;
+	
+	// Most flows counted at once, by default
+	private static final int DEFAULT_MAX_FLOWS = 1000;
+	
+	// Number of polls after which the rule counting a small flow expires,
+	// and number of polls before the flow may be counted again
+	private static final int COUNTING_POLLS = 3;
+	private static final int RESTING_POLLS = 12;
+	
+	// Share by which a path must weigh less than an elephant's current path
+	// for the elephant to be moved onto it
+	private static final double MOVE_THRESHOLD = 0.1;
+	
+	// Milliseconds to wait for switches to confirm a batch of rules
+	private static final long BARRIER_TIMEOUT = 2000;
+	
+	// Port number that stands for any port in a request
+	private static final int OFPP_ANY = 0xffffffff;
+	
+	// VLAN ID that only matches packets without a VLAN tag
+	private static final short OFPVID_NONE = 0;
+	
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+	
+	/**
+	 * Bytes counted by a rule, and the rate they add up to.
+	 */
+	private static class Counter
+	{
+		// Bytes counted at the last sample, and when, in milliseconds since
+		// the epoch; -1 before the first sample
+		private long bytes;
+		private long sampledAt;
+		
+		// Rate at the last sample, in bits per second
+		private double rate;
+		
+		Counter()
+		{
+			this.bytes = -1;
+			this.sampledAt = -1;
+			this.rate = 0;
+		}
+		
+		/**
+		 * Update the rate from the bytes the rule has counted.
+		 */
+		void sample(long bytes, long sampledAt)
+		{
+			// Rules added again start counting from zero
+			if (this.bytes >= 0 && bytes >= this.bytes
+					&& sampledAt > this.sampledAt)
+			{
+				this.rate = 8000.0 * (bytes - this.bytes)
+						/ (sampledAt - this.sampledAt);
+			}
+			this.bytes = bytes;
+			this.sampledAt = sampledAt;
+		}
+	}
+	
+	/**
+	 * Traffic from one host to another that has rules of its own.
+	 */
+	private static class Flow
+	{
+		// Addresses of the sending and receiving hosts
+		private final int src;
+		private final int dst;
+		
+		// Match criteria of the flow's rules
+		private final OFMatch match;
+		
+		// Switches the flow passes, and the ports they forward out; the
+		// first is the ingress switch, the last the destination's switch
+		private List<RouteHop> path;
+		
+		// Action of the rule that counts the flow at the ingress switch,
+		// until the flow is moved
+		private RuleAction action;
+		
+		// ID of the groups that forward the moved flow along its path, and
+		// the group in each switch, keyed by DPID; 0 and empty until the
+		// flow is moved
+		private int groupId;
+		private Map<Long,RuleGroup> groups;
+		
+		// Bytes counted at the ingress switch
+		private final Counter counter;
+		
+		Flow(int src, int dst, List<RouteHop> path, RuleAction action)
+		{
+			this.src = src;
+			this.dst = dst;
+			this.match = new OFMatch();
+			this.match.setNetworkSource(OFMatch.ETH_TYPE_IPV4, src);
+			this.match.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, dst);
+			
+			// Packets L3Routing tagged with a label follow its label rules
+			this.match.setField(OFOXMFieldType.VLAN_VID, OFPVID_NONE);
+			this.path = path;
+			this.action = action;
+			this.groupId = 0;
+			this.groups = new HashMap<Long,RuleGroup>();
+			this.counter = new Counter();
+		}
+		
+		long getIngress()
+		{ return this.path.get(0).getDpid(); }
+		
+		boolean isMoved()
+		{ return (this.groupId != 0); }
+		
+		@Override
+		public String toString()
+		{
+			return String.format("%s->%s", IPv4.fromIPv4Address(this.src),
+					IPv4.fromIPv4Address(this.dst));
+		}
+	}
+	
+	/**
+	 * A flow that may be counted: a host that sends faster than the
+	 * threshold, and a destination its switch forwards to faster than the
+	 * threshold.
+	 */
+	private static class Candidate
+	{
+		// Addresses of the sending and receiving hosts
+		private final int src;
+		private final int dst;
+		
+		// DPID of the sending host's switch
+		private final long dpid;
+		
+		// Most the flow can send, in bits per second: the lower of the
+		// host's rate and the destination's rate
+		private final double rate;
+		
+		Candidate(int src, int dst, long dpid, double rate)
+		{
+			this.src = src;
+			this.dst = dst;
+			this.dpid = dpid;
+			this.rate = rate;
+		}
+	}
+	
+	/**
+	 * Flow statistics awaited from a switch.
+	 */
+	private static class Poll
+	{
+		// The switch's reply
+		private final Future<List<OFStatistics>> reply;
+		
+		// When the request was sent, in milliseconds since the epoch
+		private final long sentAt;
+		
+		Poll(Future<List<OFStatistics>> reply, long sentAt)
+		{
+			this.reply = reply;
+			this.sentAt = sentAt;
+		}
+	}
+	
+    // Interface to Floodlight core for interacting with connected switches
+    private IFloodlightProviderService floodlightProv;
+	
+    // Interface to link discovery service
+    private ILinkDiscoveryService linkDiscProv;
+	
+    // Interface to device manager service
+    private IDeviceService deviceProv;
+	
+    // Interface to L3Routing application
+    private IL3Routing l3RoutingApp;
+	
+    // Switch table in which rules are installed
+    private byte table;
+	
+    // Seconds between polls
+    private int interval;
+	
+    // Rate above which a flow is an elephant, in bits per second
+    private double threshold;
+	
+    // Seconds an elephant's rules stay without matching packets
+    private short idleTimeout;
+	
+    // Most flows counted at once
+    private int maxFlows;
+	
+    // Computes the least-loaded paths
+    private PathEngine pathEngine;
+	
+    // Weight of each link at the last poll
+    private Map<Link,Integer> weights;
+	
+    // Flows with rules of their own, keyed by source and destination
+    // address
+    private Map<Long,Flow> flows;
+	
+    // When each flow found to be small may be counted again, in
+    // milliseconds since the epoch, keyed by source and destination address
+    private Map<Long,Long> resting;
+	
+    // Bytes counted by L3Routing's rule for each destination in each polled
+    // switch, keyed by DPID and then by destination address
+    private Map<Long,Map<Integer,Counter>> destinations;
+	
+    // Flow statistics awaited from each switch, keyed by DPID
+    private Map<Long,Poll> pending;
+	
+    // Rules and groups waiting to be sent to each switch, keyed by DPID
+    private Map<Long,FlowModBatch> batches;
+	
+    // Switches that joined since the last poll, added by Floodlight's 
+    // threads
+    private Queue<Long> joined;
+	
+    // Number of groups created for moved elephants
+    private int groupsCreated;
+	
+    // Number of elephants moved to another path
+    private long elephantsMoved;
+	
+    // Runs each poll
+    private Timer timer;
+	
+	/**
+     * Loads dependencies and initializes data structures.
+     */
+	@Override
+	public void init(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Initializing %s...", MODULE_NAME));
+		Map<String,String> config = context.getConfigParams(this);
+		this.interval = parseConfig(config, "interval", DEFAULT_INTERVAL);
+		this.threshold = 1e6 * parseConfig(config, "threshold",
+				DEFAULT_THRESHOLD);
+		this.idleTimeout = (short)parseConfig(config, "idleTimeout",
+				DEFAULT_IDLE_TIMEOUT);
+		this.maxFlows = parseConfig(config, "maxFlows", DEFAULT_MAX_FLOWS);
+		
+		this.floodlightProv = context.getServiceImpl(
+				IFloodlightProviderService.class);
+        this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
+        this.deviceProv = context.getServiceImpl(IDeviceService.class);
+        this.l3RoutingApp = context.getServiceImpl(IL3Routing.class);
+	
+        this.pathEngine = new DijkstraPathEngine();
+        this.weights = new HashMap<Link,Integer>();
+        this.flows = new HashMap<Long,Flow>();
+        this.resting = new HashMap<Long,Long>();
+        this.destinations = new HashMap<Long,Map<Integer,Counter>>();
+        this.pending = new HashMap<Long,Poll>();
+        this.batches = new LinkedHashMap<Long,FlowModBatch>();
+        this.joined = new ConcurrentLinkedQueue<Long>();
+        this.groupsCreated = 0;
+        this.elephantsMoved = 0;
+	}
+	
+	/**
+     * Subscribes to events and performs other startup tasks.
+     */
+	@Override
+	public void startUp(FloodlightModuleContext context)
+			throws FloodlightModuleException
+	{
+		log.info(String.format("Starting %s...", MODULE_NAME));
+		
+		// Rules go in the same table as L3Routing's, ahead of them
+		this.table = this.l3RoutingApp.getTable();
+		this.floodlightProv.addOFSwitchListener(this);
+		long period = 1000L * Math.max(1, this.interval);
+		this.timer = new Timer(MODULE_NAME + "-poll", true);
+		this.timer.schedule(new TimerTask() {
+			@Override
+			public void run()
+			{
+				try
+				{ poll(); }
+				catch (RuntimeException e)
+				{ log.error("Failed to poll for elephant flows", e); }
+			}
+		}, period, period);
+	}
+	
+	/**
+	 * Read the statistics requested at the last poll, move the elephants
+	 * they reveal, and request statistics again.
+	 */
+	private void poll()
+	{
+		Map<Long,IOFSwitch> switches =
+				this.floodlightProv.getAllSwitchMap();
+		this.readFlowStatistics();
+		for (Long dpid = this.joined.poll(); dpid != null;
+				dpid = this.joined.poll())
+		{ this.forgetFlows(dpid); }
+		
+		Map<Link,Integer> weights = this.getWeights();
+		boolean reweighed = !weights.equals(this.weights);
+		this.weights = weights;
+		TopologyGraph graph = this.getGraph(switches.keySet(), weights);
+		this.removeBrokenFlows(graph);
+		this.followRoutes();
+		this.moveElephants(graph, reweighed);
+		Set<Long> senders = this.countHeavySenders();
+		
+		// Counting rules must be in place before their switch is polled
+		this.flush();
+		this.requestFlowStatistics(switches, senders);
+	}
+	
+	/**
+	 * Update the rate of every flow, and of every destination of the
+	 * polled switches, from the switches' statistics. A flow its ingress
+	 * switch no longer reports has had its rules expire, and is forgotten.
+	 */
+	private void readFlowStatistics()
+	{
+		Map<Long,Map<Integer,Counter>> destinations =
+				new HashMap<Long,Map<Integer,Counter>>();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Long,Poll> entry : this.pending.entrySet())
+		{
+			List<OFStatistics> reply = getReply(entry.getValue().reply);
+			if (null == reply)
+			{ continue; }
+			long dpid = entry.getKey();
+			long sentAt = entry.getValue().sentAt;
+			
+			Map<Integer,Counter> previous = this.destinations.get(dpid);
+			Map<Integer,Counter> counters = new HashMap<Integer,Counter>();
+			Set<Long> reported = new HashSet<Long>();
+			for (OFStatistics stats : reply)
+			{
+				if (!(stats instanceof OFFlowStatisticsReply))
+				{ continue; }
+				OFFlowStatisticsReply rule = (OFFlowStatisticsReply)stats;
+				if (rule.getPriority() != FLOW_PRIORITY)
+				{
+					// L3Routing's rules for hosts count each destination
+					int dst = rule.getMatch().getNetworkDestination();
+					if (0 == dst)
+					{ continue; }
+					Counter counter = (null == previous ? null
+							: previous.get(dst));
+					if (null == counter)
+					{ counter = new Counter(); }
+					counter.sample(rule.getByteCount(), sentAt);
+					counters.put(dst, counter);
+					continue;
+				}
+				long key = getKey(rule.getMatch().getNetworkSource(),
+						rule.getMatch().getNetworkDestination());
+				Flow flow = this.flows.get(key);
+				if (null == flow || flow.getIngress() != dpid)
+				{ continue; }
+				reported.add(key);
+				flow.counter.sample(rule.getByteCount(), sentAt);
+			}
+			destinations.put(dpid, counters);
+			
+			Iterator<Flow> it = this.flows.values().iterator();
+			while (it.hasNext())
+			{
+				Flow flow = it.next();
+				long key = getKey(flow.src, flow.dst);
+				if (flow.getIngress() != dpid || reported.contains(key))
+				{ continue; }
+				it.remove();
+				
+				// Groups outlive the rules that used them
+				if (flow.isMoved())
+				{ this.removeGroups(flow); }
+				else
+				{
+					this.resting.put(key,
+							now + 1000L * RESTING_POLLS * this.interval);
+				}
+			}
+		}
+		this.destinations = destinations;
+		this.pending.clear();
+	}
+	
+	/**
+	 * Forget the flows with rules or groups in a switch that joined. The
+	 * switch may have lost them, or kept them; either way they are removed,
+	 * along with the rest of the flows' rules, and the flows fall back to
+	 * L3Routing's rules until they are found again.
+	 * @param dpid DPID of the switch
+	 */
+	private void forgetFlows(long dpid)
+	{
+		this.pending.remove(dpid);
+		this.destinations.remove(dpid);
+		Iterator<Flow> it = this.flows.values().iterator();
+		while (it.hasNext())
+		{
+			Flow flow = it.next();
+			if (flow.isMoved() && flow.groups.containsKey(dpid))
+			{ this.removeGroups(flow); }
+			else if (!flow.isMoved() && flow.getIngress() == dpid)
+			{
+				FlowModBatch batch = this.getBatch(dpid);
+				if (batch != null)
+				{ batch.removeRule(this.table, FLOW_PRIORITY, flow.match); }
+			}
+			else
+			{ continue; }
+			log.info(String.format("Forgot flow %s, since s%d joined", flow,
+					dpid));
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Remove the rules of moved flows whose path uses a link that is gone,
+	 * so they fall back to L3Routing's rules.
+	 */
+	private void removeBrokenFlows(TopologyGraph graph)
+	{
+		Iterator<Flow> it = this.flows.values().iterator();
+		while (it.hasNext())
+		{
+			Flow flow = it.next();
+			if (!flow.isMoved())
+			{ continue; }
+			boolean broken = false;
+			for (RouteHop hop : flow.path)
+			{
+				if (!hop.isLastHop()
+						&& null == graph.getLink(hop.getDpid(), hop.getPort()))
+				{ broken = true; }
+			}
+			if (!broken)
+			{ continue; }
+			log.info(String.format("Path of flow %s broke", flow));
+			this.removeGroups(flow);
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Keep the rules of every flow in step with L3Routing's routes: a
+	 * counted flow is forwarded as L3Routing forwards its destination, and
+	 * a moved flow falls back to L3Routing's next hops.
+	 */
+	private void followRoutes()
+	{
+		Iterator<Flow> it = this.flows.values().iterator();
+		while (it.hasNext())
+		{
+			Flow flow = it.next();
+			if (flow.isMoved())
+			{
+				Map<Long,RuleGroup> groups = this.getGroups(flow.path,
+						flow.dst);
+				for (Map.Entry<Long,RuleGroup> entry : groups.entrySet())
+				{
+					RuleGroup group = entry.getValue();
+					FlowModBatch batch = this.getBatch(entry.getKey());
+					if (batch != null
+							&& !group.equals(flow.groups.get(entry.getKey())))
+					{
+						batch.modifyGroup(group.getType(), flow.groupId,
+								group.toBuckets());
+					}
+				}
+				flow.groups = groups;
+				continue;
+			}
+			
+			FlowModBatch batch = this.getBatch(flow.getIngress());
+			RuleAction action = this.l3RoutingApp.getRuleAction(
+					flow.getIngress(), flow.dst);
+			List<RouteHop> path = this.l3RoutingApp.getPath(
+					flow.getIngress(), flow.dst);
+			if (null == batch || null == action || null == path)
+			{
+				// The destination is gone or cannot be reached
+				if (batch != null)
+				{ batch.removeRule(this.table, FLOW_PRIORITY, flow.match); }
+				it.remove();
+				continue;
+			}
+			if (!action.equals(flow.action))
+			{
+				batch.modifyRule(this.table, FLOW_PRIORITY, flow.match,
+						action.toInstructions());
+				flow.action = action;
+			}
+			flow.path = path;
+		}
+	}
+	
+	/**
+	 * Give each new elephant the least-loaded path towards its destination,
+	 * if it is clearly less loaded than the elephant's current path. Moved
+	 * elephants are only checked again once link weights have changed.
+	 * @param graph links weighted by speed and load
+	 * @param reweighed whether link weights changed since the last poll
+	 */
+	private void moveElephants(TopologyGraph graph, boolean reweighed)
+	{
+		Map<Flow,List<RouteHop>> moves =
+				new LinkedHashMap<Flow,List<RouteHop>>();
+		for (Flow flow : this.flows.values())
+		{
+			if (flow.counter.rate < this.threshold
+					|| (flow.isMoved() && !reweighed))
+			{ continue; }
+			RouteHop last = flow.path.get(flow.path.size() - 1);
+			List<RouteHop> path = this.getPath(graph, flow.getIngress(),
+					last);
+			if (null == path || path.equals(flow.path)
+					|| getWeight(graph, path) >= (1 - MOVE_THRESHOLD)
+							* getWeight(graph, flow.path))
+			{ continue; }
+			moves.put(flow, path);
+			
+			// The next elephant avoids this one's links
+			for (RouteHop hop : path)
+			{
+				if (hop.isLastHop())
+				{ continue; }
+				TopologyGraph.Edge link = graph.getLink(hop.getDpid(),
+						hop.getPort());
+				graph.setWeight(hop.getDpid(), hop.getPort(),
+						2 * link.getWeight());
+			}
+		}
+		if (moves.isEmpty())
+		{ return; }
+		
+		// Every switch after the ingress gets its rules first
+		Map<Flow,Map<Long,RuleGroup>> groups =
+				new HashMap<Flow,Map<Long,RuleGroup>>();
+		Map<Flow,Integer> groupIds = new HashMap<Flow,Integer>();
+		for (Map.Entry<Flow,List<RouteHop>> entry : moves.entrySet())
+		{
+			Flow flow = entry.getKey();
+			int groupId = FIRST_GROUP_ID + this.groupsCreated++ % GROUP_IDS;
+			Map<Long,RuleGroup> pathGroups = this.getGroups(
+					entry.getValue(), flow.dst);
+			for (Map.Entry<Long,RuleGroup> group : pathGroups.entrySet())
+			{
+				if (group.getKey() != flow.getIngress())
+				{ this.installGroup(flow, groupId, group); }
+			}
+			groups.put(flow, pathGroups);
+			groupIds.put(flow, groupId);
+		}
+		Set<Long> confirmed = this.flush();
+		
+		// The ingress switch moves the elephant once the rest of its path
+		// is ready, and the groups of the old path are then removed, along
+		// with the rules that use them
+		for (Map.Entry<Flow,List<RouteHop>> entry : moves.entrySet())
+		{
+			Flow flow = entry.getKey();
+			Map<Long,RuleGroup> pathGroups = groups.get(flow);
+			int groupId = groupIds.get(flow);
+			Set<Long> ready = new HashSet<Long>(pathGroups.keySet());
+			ready.remove(flow.getIngress());
+			if (!confirmed.containsAll(ready))
+			{
+				log.warn(String.format("Switches on the new path of flow %s "
+						+ "did not confirm its rules", flow));
+				for (Long dpid : ready)
+				{
+					FlowModBatch batch = this.getBatch(dpid);
+					if (batch != null)
+					{ batch.removeGroup(groupId); }
+				}
+				continue;
+			}
+			
+			for (Map.Entry<Long,RuleGroup> group : pathGroups.entrySet())
+			{
+				if (group.getKey() == flow.getIngress())
+				{ this.installGroup(flow, groupId, group); }
+			}
+			this.removeGroups(flow);
+			log.info(String.format("Moved elephant flow %s (%.0f Mbit/s) "
+					+ "from %s to %s", flow, flow.counter.rate / 1e6,
+					flow.path, entry.getValue()));
+			flow.path = entry.getValue();
+			flow.groupId = groupId;
+			flow.groups = pathGroups;
+			this.elephantsMoved++;
+		}
+	}
+	
+	/**
+	 * Count the fastest flows that may be elephants: those from hosts that
+	 * send faster than the threshold to destinations their switch forwards
+	 * to faster than the threshold. Flows counted recently are left out.
+	 * @return DPIDs of the switches of hosts that send faster than the
+	 *         threshold, which must be polled for their destinations
+	 */
+	private Set<Long> countHeavySenders()
+	{
+		List<Host> hosts = new ArrayList<Host>();
+		Set<Integer> addresses = new HashSet<Integer>();
+		for (IDevice device : this.deviceProv.getAllDevices())
+		{
+			Host host = new Host(device, this.floodlightProv);
+			if (host.isAttachedToSwitch() && host.getIPv4Address() != null)
+			{
+				hosts.add(host);
+				addresses.add(host.getIPv4Address());
+			}
+		}
+		long now = System.currentTimeMillis();
+		Iterator<Long> rested = this.resting.values().iterator();
+		while (rested.hasNext())
+		{
+			if (rested.next() <= now)
+			{ rested.remove(); }
+		}
+		
+		Set<Long> senders = new HashSet<Long>();
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (Host src : hosts)
+		{
+			long dpid = src.getSwitch().getId();
+			double rate = this.l3RoutingApp.getReceiveRate(dpid,
+					src.getPort());
+			if (rate < this.threshold)
+			{ continue; }
+			senders.add(dpid);
+			Map<Integer,Counter> counters = this.destinations.get(dpid);
+			if (null == counters)
+			{ continue; }
+			for (Map.Entry<Integer,Counter> entry : counters.entrySet())
+			{
+				int dst = entry.getKey();
+				long key = getKey(src.getIPv4Address(), dst);
+				if (entry.getValue().rate < this.threshold
+						|| !addresses.contains(dst)
+						|| src.getIPv4Address() == dst
+						|| this.flows.containsKey(key)
+						|| this.resting.containsKey(key))
+				{ continue; }
+				candidates.add(new Candidate(src.getIPv4Address(), dst, dpid,
+						Math.min(rate, entry.getValue().rate)));
+			}
+		}
+		
+		// Only the fastest flows are counted
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b)
+			{ return Double.compare(b.rate, a.rate); }
+		});
+		int room = this.maxFlows - this.flows.size();
+		if (candidates.size() > room)
+		{
+			log.warn(String.format("Counting %d flows already; not counting "
+					+ "%d more", this.flows.size(),
+					candidates.size() - Math.max(0, room)));
+		}
+		short hardTimeout = (short)(COUNTING_POLLS * this.interval);
+		for (Candidate candidate : candidates)
+		{
+			if (this.flows.size() >= this.maxFlows)
+			{ break; }
+			FlowModBatch batch = this.getBatch(candidate.dpid);
+			RuleAction action = this.l3RoutingApp.getRuleAction(
+					candidate.dpid, candidate.dst);
+			List<RouteHop> path = this.l3RoutingApp.getPath(candidate.dpid,
+					candidate.dst);
+			if (null == batch || null == action || null == path
+					|| path.size() < 2)
+			{ continue; }
+			Flow flow = new Flow(candidate.src, candidate.dst, path, action);
+			batch.installRule(this.table, FLOW_PRIORITY, flow.match,
+					action.toInstructions(), hardTimeout, this.idleTimeout);
+			this.flows.put(getKey(flow.src, flow.dst), flow);
+		}
+		return senders;
+	}
+	
+	/**
+	 * Ask the ingress switch of every flow, and the switch of every host
+	 * that sends faster than the threshold, for the rules in the table.
+	 * @param senders DPIDs of the switches of hosts that send faster than
+	 *        the threshold
+	 */
+	private void requestFlowStatistics(Map<Long,IOFSwitch> switches,
+			Set<Long> senders)
+	{
+		Set<Long> polled = new HashSet<Long>(senders);
+		for (Flow flow : this.flows.values())
+		{ polled.add(flow.getIngress()); }
+		for (Long dpid : polled)
+		{
+			IOFSwitch sw = switches.get(dpid);
+			if (null == sw)
+			{ continue; }
+			OFFlowStatisticsRequest body = new OFFlowStatisticsRequest();
+			body.setMatch(new OFMatch());
+			body.setTableId(this.table);
+			body.setOutPort(OFPP_ANY);
+			body.setOutGroup(OFGroupMod.OFPG_ANY);
+			try
+			{
+				this.pending.put(dpid, new Poll(sw.queryStatistics(
+						SwitchCommands.buildStatisticsRequest(
+								OFStatisticsType.FLOW, body)),
+						System.currentTimeMillis()));
+			}
+			catch (IOException e)
+			{
+				log.warn(String.format("Failed to read the flows of s%d",
+						dpid), e);
+			}
+		}
+	}
+	
+	/**
+	 * Build the group through which each switch on a path forwards a flow:
+	 * a fast-failover group that prefers the path's port, and otherwise
+	 * sends the flow to L3Routing's next hop towards the destination. The
+	 * fallback is left out where it is the path's port, or where
+	 * L3Routing's route leads back to a switch earlier on the path, whose
+	 * rules would send the flow around again.
+	 * @param path the path, ending with the destination's switch
+	 * @param dst IPv4 address of the destination
+	 * @return the group of every switch on the path but the last, keyed by
+	 *         DPID
+	 */
+	private Map<Long,RuleGroup> getGroups(List<RouteHop> path, int dst)
+	{
+		Map<Long,RuleGroup> groups = new HashMap<Long,RuleGroup>();
+		Set<Long> upstream = new HashSet<Long>();
+		for (RouteHop hop : path)
+		{
+			if (hop.isLastHop())
+			{ break; }
+			List<RuleAction> buckets = new ArrayList<RuleAction>();
+			buckets.add(RuleAction.output(hop.getPort()));
+			RuleAction fallback = this.getFallback(hop.getDpid(), dst,
+					upstream);
+			if (fallback != null && fallback.getTarget() != hop.getPort())
+			{ buckets.add(fallback); }
+			groups.put(hop.getDpid(), RuleGroup.failover(buckets));
+			upstream.add(hop.getDpid());
+		}
+		return groups;
+	}
+	
+	/**
+	 * Get the action that sends a flow from a switch to L3Routing's next hop
+	 * towards the flow's destination, tagging it as L3Routing would.
+	 * @param dpid DPID of the switch
+	 * @param dst IPv4 address of the destination
+	 * @param upstream DPIDs of the switches a loop must not pass through
+	 * @return the action; null if there is no route, or if an untagged
+	 *         packet would pass through one of the upstream switches
+	 */
+	private RuleAction getFallback(long dpid, int dst, Set<Long> upstream)
+	{
+		RuleAction action = this.l3RoutingApp.getRuleAction(dpid, dst);
+		List<RouteHop> route = this.l3RoutingApp.getPath(dpid, dst);
+		if (null == action || null == route)
+		{ return null; }
+		
+		// Tagged packets do not match the flow's rules
+		RuleAction fallback = RuleAction.output(route.get(0).getPort());
+		if (action.getPushVlan() != 0)
+		{ return fallback.withPushVlan(action.getPushVlan()); }
+		for (RouteHop hop : route)
+		{
+			if (upstream.contains(hop.getDpid()))
+			{ return null; }
+		}
+		return fallback;
+	}
+	
+	/**
+	 * Queue a moved flow's group in a switch, followed by the flow's rule,
+	 * which uses the group.
+	 * @param flow the flow
+	 * @param groupId the ID of the group
+	 * @param group the group, keyed by the DPID of its switch
+	 */
+	private void installGroup(Flow flow, int groupId,
+			Map.Entry<Long,RuleGroup> group)
+	{
+		FlowModBatch batch = this.getBatch(group.getKey());
+		if (null == batch)
+		{ return; }
+		batch.installGroup(group.getValue().getType(), groupId,
+				group.getValue().toBuckets());
+		batch.installRule(this.table, FLOW_PRIORITY, flow.match,
+				RuleAction.group(groupId).toInstructions(),
+				SwitchCommands.NO_TIMEOUT, this.idleTimeout);
+	}
+	
+	/**
+	 * Queue the removal of a moved flow's groups, which also removes the
+	 * rules that use them.
+	 */
+	private void removeGroups(Flow flow)
+	{
+		for (Long dpid : flow.groups.keySet())
+		{
+			FlowModBatch batch = this.getBatch(dpid);
+			if (batch != null)
+			{ batch.removeGroup(flow.groupId); }
+		}
+	}
+	
+	/**
+	 * Get the batch of rules and groups waiting to be sent to a switch.
+	 * @param dpid DPID of the switch
+	 * @return the batch, null if the switch is not connected
+	 */
+	private FlowModBatch getBatch(long dpid)
+	{
+		FlowModBatch batch = this.batches.get(dpid);
+		if (batch != null)
+		{ return batch; }
+		IOFSwitch sw = this.floodlightProv.getSwitch(dpid);
+		if (null == sw)
+		{ return null; }
+		batch = new FlowModBatch(sw);
+		this.batches.put(dpid, batch);
+		return batch;
+	}
+	
+	/**
+	 * Send the waiting rules and groups through L3Routing's queues, and wait
+	 * for the switches to confirm them.
+	 * @return DPIDs of the switches that accepted every message in time
+	 */
+	private Set<Long> flush()
+	{
+		Map<Long,Future<Boolean>> outcomes =
+				new LinkedHashMap<Long,Future<Boolean>>();
+		for (Map.Entry<Long,FlowModBatch> entry : this.batches.entrySet())
+		{
+			if (!entry.getValue().isEmpty())
+			{
+				outcomes.put(entry.getKey(),
+						this.l3RoutingApp.send(entry.getValue()));
+			}
+		}
+		this.batches.clear();
+		
+		Set<Long> confirmed = new HashSet<Long>();
+		long deadline = System.currentTimeMillis() + BARRIER_TIMEOUT;
+		for (Map.Entry<Long,Future<Boolean>> entry : outcomes.entrySet())
+		{
+			long wait = Math.max(0, deadline - System.currentTimeMillis());
+			try
+			{
+				if (entry.getValue().get(wait, TimeUnit.MILLISECONDS))
+				{ confirmed.add(entry.getKey()); }
+			}
+			catch (TimeoutException e)
+			{
+				log.warn(String.format("Switch s%d has not confirmed the "
+						+ "rules of elephant flows", entry.getKey()));
+			}
+			catch (ExecutionException e)
+			{ continue; }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return confirmed;
+	}
+	
+	/**
+	 * Compute the least-loaded path from a switch to a host.
+	 * @param graph links weighted by speed and load
+	 * @param ingress DPID of the switch where the path starts
+	 * @param last the last hop towards the host
+	 * @return each switch on the path along with the port out which it
+	 *         forwards; null if the host cannot be reached
+	 */
+	private List<RouteHop> getPath(TopologyGraph graph, long ingress,
+			RouteHop last)
+	{
+		int root = graph.getIndex(last.getDpid());
+		int index = graph.getIndex(ingress);
+		if (root < 0 || index < 0)
+		{ return null; }
+		ShortestPathTree tree = this.pathEngine.computeTree(graph, root);
+		if (!tree.isReachable(index))
+		{ return null; }
+		
+		List<RouteHop> path = new ArrayList<RouteHop>();
+		while (index != root)
+		{
+			int next = tree.getNextHop(index);
+			path.add(new RouteHop(graph.getDpid(index),
+					tree.getOutPort(index), graph.getDpid(next)));
+			index = next;
+		}
+		path.add(last);
+		return path;
+	}
+	
+	/**
+	 * Get the weight L3Routing gives each link, from its speed and load.
+	 */
+	private Map<Link,Integer> getWeights()
+	{
+		Map<Link,Integer> weights = new HashMap<Link,Integer>();
+		for (Link link : this.linkDiscProv.getLinks().keySet())
+		{
+			weights.put(link, this.l3RoutingApp.getLinkWeight(link.getSrc(),
+					link.getSrcPort()));
+		}
+		return weights;
+	}
+	
+	/**
+	 * Build a graph of the switches and links, weighted by speed and load.
+	 * @param weights weight of each link
+	 */
+	private TopologyGraph getGraph(Collection<Long> switchIds,
+			Map<Link,Integer> weights)
+	{
+		TopologyGraph graph = new TopologyGraph();
+		for (Long dpid : switchIds)
+		{ graph.addSwitch(dpid); }
+		for (Map.Entry<Link,Integer> entry : weights.entrySet())
+		{
+			Link link = entry.getKey();
+			if (graph.addLink(link.getSrc(), link.getSrcPort(),
+					link.getDst(), link.getDstPort()) != null)
+			{
+				graph.setWeight(link.getSrc(), link.getSrcPort(),
+						entry.getValue());
+			}
+		}
+		return graph;
+	}
+	
+	public long getElephantsMoved()
+	{ return this.elephantsMoved; }
+	
+	/**
+	 * Get the sum of the weights of the links along a path.
+	 * @return the sum; infinite if a link on the path is gone
+	 */
+	private static double getWeight(TopologyGraph graph, List<RouteHop> path)
+	{
+		double weight = 0;
+		for (RouteHop hop : path)
+		{
+			if (hop.isLastHop())
+			{ continue; }
+			TopologyGraph.Edge link = graph.getLink(hop.getDpid(),
+					hop.getPort());
+			if (null == link)
+			{ return Double.POSITIVE_INFINITY; }
+			weight += link.getWeight();
+		}
+		return weight;
+	}
+	
+	private static long getKey(int src, int dst)
+	{ return ((long)src << 32) | (dst & 0xffffffffL); }
+	
+	/**
+	 * Get a switch's reply, if it has arrived.
+	 * @return the reply; null if it has not arrived or the request failed
+	 */
+	private static List<OFStatistics> getReply(
+			Future<List<OFStatistics>> reply)
+	{
+		if (!reply.isDone())
+		{ return null; }
+		try
+		{ return reply.get(); }
+		catch (ExecutionException e)
+		{ return null; }
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	/**
+	 * Read an integer setting from the module's configuration.
+	 * @param config the module's configuration
+	 * @param name name of the setting
+	 * @param defaultValue value to use if the setting is absent
+	 */
+	private static int parseConfig(Map<String,String> config, String name,
+			int defaultValue)
+	{
+		String value = config.get(name);
+		if (null == value || value.trim().isEmpty())
+		{ return defaultValue; }
+		return Integer.parseInt(value.trim());
+	}
+	
+	/**
+     * Event handler called when a switch joins the network.
+     * @param DPID for the switch
+     */
+	@Override
+	public void switchAdded(long switchId) 
+	{ this.joined.add(switchId); }
+	
+	/**
+	 * Event handler called when a switch leaves the network.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchRemoved(long switchId) 
+	{ /* Nothing we need to do, since broken paths are found when polling */ }
+	
+	/**
+	 * Event handler called when the controller becomes the master for a switch.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchActivated(long switchId)
+	{ /* Nothing we need to do, since we're not switching controller roles */ }
+	
+	/**
+	 * Event handler called when a port on a switch goes up or down, or is
+	 * added or removed.
+	 * @param DPID for the switch
+	 * @param port the port on the switch whose status changed
+	 * @param type the type of status change (up, down, add, remove)
+	 */
+	@Override
+	public void switchPortChanged(long switchId, ImmutablePort port,
+			PortChangeType type) 
+	{ /* Nothing we need to do, since fast-failover groups handle ports */ }
+	
+	/**
+	 * Event handler called when some attribute of a switch changes.
+	 * @param DPID for the switch
+	 */
+	@Override
+	public void switchChanged(long switchId) 
+	{ /* Nothing we need to do */ }
+	
+    /**
+     * Tell the module system which services we provide.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>> getModuleServices()
+	{ return null; }
+	
+	/**
+     * Tell the module system which services we implement.
+     */
+	@Override
+	public Map<Class<? extends IFloodlightService>, IFloodlightService>
+			getServiceImpls()
+	{ return null; }
+	
+	/**
+     * Tell the module system which modules we depend on.
+     */
+	@Override
+	public Collection<Class<? extends IFloodlightService>>
+			getModuleDependencies()
+	{
+		Collection<Class<? extends IFloodlightService >> modules =
+	            new ArrayList<Class<? extends IFloodlightService>>();
+		modules.add(IFloodlightProviderService.class);
+		modules.add(ILinkDiscoveryService.class);
+		modules.add(IDeviceService.class);
+		modules.add(IL3Routing.class);
+        return modules;
+	}
+}
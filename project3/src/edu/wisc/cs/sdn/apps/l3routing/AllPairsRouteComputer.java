@@ -0,0 +1,157 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the shortest-path tree towards every switch, spreading the
+ * destinations over a pool of worker threads. Each worker has its own path
+ * engine, and the graph is only read while a computation is running.
+ */
+public class AllPairsRouteComputer 
+{
+	// Workers that compute trees
+	private ExecutorService pool;
+	
+	// Number of workers
+	private int threads;
+	
+	// Path engine of each worker
+	private ThreadLocal<PathEngine> engines;
+	
+	/**
+	 * Create a computer.
+	 * @param threads number of worker threads; 1 computes on the calling
+	 *        thread
+	 * @param algorithm name of the path engine each worker uses
+	 */
+	public AllPairsRouteComputer(int threads, final String algorithm)
+	{
+		this.threads = Math.max(1, threads);
+		this.engines = new ThreadLocal<PathEngine>() {
+			@Override
+			protected PathEngine initialValue()
+			{ return PathEngines.create(algorithm); }
+		};
+		
+		if (this.threads > 1)
+		{
+			this.pool = Executors.newFixedThreadPool(this.threads, 
+					new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread = new Thread(runnable, String.format(
+							"%s-route-%d", L3Routing.MODULE_NAME, 
+							count.incrementAndGet()));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Get the number of worker threads.
+	 */
+	public int getThreads()
+	{ return this.threads; }
+	
+	/**
+	 * Compute the tree towards every switch in a graph. The graph must not
+	 * change until the computation returns.
+	 * @param graph the topology
+	 * @return tree towards each switch, keyed by DPID
+	 */
+	public Map<Long,ShortestPathTree> computeAll(final TopologyGraph graph)
+	{
+		final List<Integer> roots = new ArrayList<Integer>();
+		for (int index = 0; index < graph.getCapacity(); index++)
+		{
+			if (graph.contains(index))
+			{ roots.add(index); }
+		}
+		
+		// Bring the CSR arrays up to date before workers start reading them
+		graph.getInOffsets();
+		
+		Map<Long,ShortestPathTree> trees = 
+				new HashMap<Long,ShortestPathTree>();
+		if (null == this.pool || roots.size() < 2)
+		{
+			this.computeRange(graph, roots, 0, roots.size(), trees);
+			return trees;
+		}
+		
+		// Give each worker an equal share of the destinations
+		List<Future<Map<Long,ShortestPathTree>>> results = 
+				new ArrayList<Future<Map<Long,ShortestPathTree>>>();
+		int chunk = (roots.size() + this.threads - 1) / this.threads;
+		for (int start = 0; start < roots.size(); start += chunk)
+		{
+			final int from = start;
+			final int to = Math.min(roots.size(), start + chunk);
+			results.add(this.pool.submit(
+					new Callable<Map<Long,ShortestPathTree>>() {
+				@Override
+				public Map<Long,ShortestPathTree> call()
+				{
+					Map<Long,ShortestPathTree> part = 
+							new HashMap<Long,ShortestPathTree>();
+					computeRange(graph, roots, from, to, part);
+					return part;
+				}
+			}));
+		}
+		
+		// Merge the workers' trees
+		for (Future<Map<Long,ShortestPathTree>> result : results)
+		{
+			try
+			{ trees.putAll(result.get()); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(
+						"Interrupted while computing routes", e);
+			}
+			catch (ExecutionException e)
+			{ 
+				throw new IllegalStateException("Failed to compute routes", 
+						e.getCause()); 
+			}
+		}
+		return trees;
+	}
+	
+	/**
+	 * Stop the worker threads.
+	 */
+	public void shutdown()
+	{
+		if (this.pool != null)
+		{ this.pool.shutdownNow(); }
+	}
+	
+	private void computeRange(TopologyGraph graph, List<Integer> roots,
+			int from, int to, Map<Long,ShortestPathTree> trees)
+	{
+		PathEngine engine = this.engines.get();
+		for (int i = from; i < to; i++)
+		{
+			int root = roots.get(i);
+			trees.put(graph.getDpid(root), engine.computeTree(graph, root));
+		}
+	}
+}
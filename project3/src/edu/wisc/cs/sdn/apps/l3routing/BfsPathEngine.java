@@ -0,0 +1,48 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+/**
+ * Breadth-first search path engine. Only valid when every link has the same
+ * weight, in which case it finds the paths with the fewest hops in O(V+E).
+ */
+public class BfsPathEngine implements PathEngine 
+{
+	// Switches waiting to be expanded, reused between runs
+	private int[] queue = new int[0];
+	
+	@Override
+	public ShortestPathTree computeTree(TopologyGraph graph, int root)
+	{
+		ShortestPathTree tree = new ShortestPathTree(graph, root);
+		this.recomputeTree(tree);
+		return tree;
+	}
+	
+	@Override
+	public void recomputeTree(ShortestPathTree tree)
+	{
+		TopologyGraph graph = tree.getGraph();
+		tree.reset();
+		int[] offsets = graph.getInOffsets();
+		int[] neighbors = graph.getInNeighbors();
+		int[] ports = graph.getInPorts();
+		if (this.queue.length < graph.getCapacity())
+		{ this.queue = new int[graph.getCapacity()]; }
+		
+		// Walk links backwards from the destination, one hop at a time
+		int head = 0, tail = 0;
+		this.queue[tail++] = tree.getRoot();
+		while (head < tail)
+		{
+			int v = this.queue[head++];
+			int distance = tree.getDistance(v) + 1;
+			for (int i = offsets[v]; i < offsets[v + 1]; i++)
+			{
+				int u = neighbors[i];
+				if (tree.isReachable(u))
+				{ continue; }
+				tree.setPath(u, distance, v, ports[i]);
+				this.queue[tail++] = u;
+			}
+		}
+	}
+}
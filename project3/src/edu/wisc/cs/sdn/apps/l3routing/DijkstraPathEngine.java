@@ -0,0 +1,47 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+/**
+ * Dijkstra path engine using a binary heap. Handles links with arbitrary
+ * non-negative weights in O((V+E) log V).
+ */
+public class DijkstraPathEngine implements PathEngine 
+{
+	// Switches waiting to be settled, reused between runs
+	private VertexHeap heap = new VertexHeap();
+	
+	@Override
+	public ShortestPathTree computeTree(TopologyGraph graph, int root)
+	{
+		ShortestPathTree tree = new ShortestPathTree(graph, root);
+		this.recomputeTree(tree);
+		return tree;
+	}
+	
+	@Override
+	public void recomputeTree(ShortestPathTree tree)
+	{
+		TopologyGraph graph = tree.getGraph();
+		tree.reset();
+		int[] offsets = graph.getInOffsets();
+		int[] neighbors = graph.getInNeighbors();
+		int[] ports = graph.getInPorts();
+		int[] weights = graph.getInWeights();
+		this.heap.reset(graph.getCapacity(), tree.getDistances());
+		
+		// Settle switches in order of their distance to the destination
+		this.heap.update(tree.getRoot());
+		while (!this.heap.isEmpty())
+		{
+			int v = this.heap.poll();
+			for (int i = offsets[v]; i < offsets[v + 1]; i++)
+			{
+				int u = neighbors[i];
+				int distance = tree.getDistance(v) + weights[i];
+				if (distance >= tree.getDistance(u))
+				{ continue; }
+				tree.setPath(u, distance, v, ports[i]);
+				this.heap.update(u);
+			}
+		}
+	}
+}
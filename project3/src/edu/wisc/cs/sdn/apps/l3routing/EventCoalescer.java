@@ -0,0 +1,155 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects events from any thread and hands them to a handler in batches.
+ * A batch is handed over once the first event in it has waited for the
+ * configured window, or as soon as the batch reaches the configured size.
+ * Batches are always handled one at a time, on the coalescer's own thread.
+ * @param <E> type of event
+ */
+public class EventCoalescer<E> 
+{
+	/**
+	 * Handles a batch of events.
+	 */
+	public interface BatchHandler<E>
+	{
+		/**
+		 * Handle a batch of events.
+		 * @param events the events, in the order they were submitted
+		 */
+		public void handleBatch(List<E> events);
+	}
+	
+	// Interface to the logging system
+    private static Logger log = 
+    		LoggerFactory.getLogger(EventCoalescer.class.getSimpleName());
+	
+	// Events waiting to be handled
+	private BlockingQueue<E> queue;
+	
+	// Thread on which batches are handled
+	private ScheduledExecutorService executor;
+	
+	// Handler for batches of events
+	private BatchHandler<E> handler;
+	
+	// How long the first event in a batch may wait, in milliseconds
+	private long window;
+	
+	// Number of events that triggers a batch before the window ends
+	private int batchSize;
+	
+	// Whether a batch is due to be handled
+	private AtomicBoolean scheduled;
+	
+	// Number of events submitted
+	private AtomicLong eventsReceived;
+	
+	// Number of batches handled
+	private AtomicLong batchesHandled;
+	
+	// Task that hands the waiting events to the handler
+	private Runnable flush = new Runnable() {
+		@Override
+		public void run()
+		{ flush(); }
+	};
+	
+	/**
+	 * Create a coalescer.
+	 * @param name name for the coalescer's thread
+	 * @param window how long the first event in a batch may wait, in 
+	 *        milliseconds
+	 * @param batchSize number of events that triggers a batch before the
+	 *        window ends
+	 * @param handler handler for batches of events
+	 */
+	public EventCoalescer(final String name, long window, int batchSize, 
+			BatchHandler<E> handler)
+	{
+		this.queue = new LinkedBlockingQueue<E>();
+		this.handler = handler;
+		this.window = Math.max(0, window);
+		this.batchSize = Math.max(1, batchSize);
+		this.scheduled = new AtomicBoolean(false);
+		this.eventsReceived = new AtomicLong();
+		this.batchesHandled = new AtomicLong();
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Queue an event to be handled in the next batch.
+	 * @param event the event
+	 */
+	public void submit(E event)
+	{
+		this.queue.add(event);
+		this.eventsReceived.incrementAndGet();
+		
+		if (this.queue.size() >= this.batchSize)
+		{ this.executor.execute(this.flush); }
+		else if (this.scheduled.compareAndSet(false, true))
+		{ 
+			this.executor.schedule(this.flush, this.window, 
+					TimeUnit.MILLISECONDS); 
+		}
+	}
+	
+	/**
+	 * Get the number of events submitted.
+	 */
+	public long getEventsReceived()
+	{ return this.eventsReceived.get(); }
+	
+	/**
+	 * Get the number of batches handed to the handler.
+	 */
+	public long getBatchesHandled()
+	{ return this.batchesHandled.get(); }
+	
+	/**
+	 * Stop handling events.
+	 */
+	public void shutdown()
+	{ this.executor.shutdownNow(); }
+	
+	private void flush()
+	{
+		// Events submitted from here on start a new window
+		this.scheduled.set(false);
+		List<E> events = new ArrayList<E>();
+		this.queue.drainTo(events);
+		if (events.isEmpty())
+		{ return; }
+		
+		try
+		{ this.handler.handleBatch(events); }
+		catch (RuntimeException e)
+		{ log.error("Failed to handle batch of events", e); }
+		this.batchesHandled.incrementAndGet();
+	}
+}
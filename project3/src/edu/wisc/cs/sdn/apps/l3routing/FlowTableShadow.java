@@ -0,0 +1,261 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.BatchWriter;
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
+
+/**
+ * Copy of the rules L3Routing has installed in each switch. Rules are
+ * brought to a desired state by comparing against the copy and sending only
+ * the flow-mods for rules that actually differ: an add for a new rule, a
+ * strict modify for a rule whose action changed, and a strict delete for a
+ * rule that is no longer wanted. Flow-mods are queued in a batch for each
+ * switch, and are sent when the batches are flushed.
+ */
+public class FlowTableShadow 
+{
+	// Interface to the logging system
+    private static Logger log = 
+    		LoggerFactory.getLogger(FlowTableShadow.class.getSimpleName());
+	
+	// Queues flow-mods for each switch
+	private BatchWriter writer;
+	
+	// Switch table in which rules are installed
+	private byte table;
+	
+	// Rules installed in each switch, keyed by DPID and then by match
+	private Map<Long,Map<RuleMatch,RuleAction>> switches;
+	
+	// Switches in which each rule is installed, keyed by match and then by
+	// DPID
+	private Map<RuleMatch,Map<Long,RuleAction>> rules;
+	
+	// Number of flow-mods of each kind sent
+	private long adds;
+	private long modifies;
+	private long deletes;
+	
+	/**
+	 * Create an empty shadow.
+	 * @param writer queues flow-mods for each switch
+	 * @param table switch table in which rules are installed
+	 */
+	public FlowTableShadow(BatchWriter writer, byte table)
+	{
+		this.writer = writer;
+		this.table = table;
+		this.switches = new HashMap<Long,Map<RuleMatch,RuleAction>>();
+		this.rules = new HashMap<RuleMatch,Map<Long,RuleAction>>();
+	}
+	
+	/**
+	 * Get the rules installed in a switch.
+	 * @param dpid DPID of the switch
+	 * @return action of each installed rule, keyed by match
+	 */
+	public Map<RuleMatch,RuleAction> getRules(long dpid)
+	{
+		Map<RuleMatch,RuleAction> installed = this.switches.get(dpid);
+		if (null == installed)
+		{ return new HashMap<RuleMatch,RuleAction>(); }
+		return new HashMap<RuleMatch,RuleAction>(installed);
+	}
+	
+	/**
+	 * Get the DPIDs of the switches with rules installed.
+	 */
+	public Set<Long> getSwitches()
+	{ return new HashSet<Long>(this.switches.keySet()); }
+	
+	/**
+	 * Make a rule the same in every switch: installed with the given action
+	 * where an action is desired, and removed everywhere else.
+	 * @param match the rule's match criteria and priority
+	 * @param desired the action wanted in each switch, keyed by DPID
+	 */
+	public void sync(RuleMatch match, Map<Long,RuleAction> desired)
+	{
+		Map<Long,RuleAction> installed = this.rules.get(match);
+		if (installed != null)
+		{
+			List<Long> unwanted = new ArrayList<Long>();
+			for (Long dpid : installed.keySet())
+			{
+				if (!desired.containsKey(dpid))
+				{ unwanted.add(dpid); }
+			}
+			for (Long dpid : unwanted)
+			{ this.removeRule(dpid, match); }
+		}
+		
+		for (Map.Entry<Long,RuleAction> entry : desired.entrySet())
+		{ this.setRule(entry.getKey(), match, entry.getValue()); }
+	}
+	
+	/**
+	 * Check whether a rule is already the same in every switch as a call to
+	 * {@link #sync(RuleMatch, Map)} would make it.
+	 * @param match the rule's match criteria and priority
+	 * @param desired the action wanted in each switch, keyed by DPID
+	 */
+	public boolean isSynced(RuleMatch match, Map<Long,RuleAction> desired)
+	{
+		Map<Long,RuleAction> installed = this.rules.get(match);
+		if (null == installed)
+		{ return desired.isEmpty(); }
+		return installed.equals(desired);
+	}
+	
+	/**
+	 * Make sure a switch has a rule with a given action.
+	 * @param dpid DPID of the switch
+	 * @param match the rule's match criteria and priority
+	 * @param action the action the rule should have
+	 */
+	public void setRule(long dpid, RuleMatch match, RuleAction action)
+	{
+		RuleAction current = this.get(dpid, match);
+		if (action.equals(current))
+		{ return; }
+		FlowModBatch batch = this.writer.get(dpid);
+		if (null == batch)
+		{ return; }
+		
+		if (null == current)
+		{
+			batch.installRule(this.table, match.getPriority(), 
+					match.toOFMatch(), action.toInstructions());
+			this.adds++;
+		}
+		else
+		{
+			batch.modifyRule(this.table, match.getPriority(), 
+					match.toOFMatch(), action.toInstructions());
+			this.modifies++;
+		}
+		this.put(dpid, match, action);
+	}
+	
+	/**
+	 * Make sure a switch does not have a rule.
+	 * @param dpid DPID of the switch
+	 * @param match the rule's match criteria and priority
+	 */
+	public void removeRule(long dpid, RuleMatch match)
+	{
+		if (null == this.get(dpid, match))
+		{ return; }
+		FlowModBatch batch = this.writer.get(dpid);
+		if (batch != null)
+		{
+			batch.removeRule(this.table, match.getPriority(), 
+					match.toOFMatch());
+			this.deletes++;
+		}
+		this.remove(dpid, match);
+	}
+	
+	/**
+	 * Record rules as installed in a switch, without sending anything to 
+	 * it. Used when the rules are known to be in the switch already.
+	 * @param dpid DPID of the switch
+	 * @param installed action of each rule, keyed by match
+	 */
+	public void restoreSwitch(long dpid, Map<RuleMatch,RuleAction> installed)
+	{
+		this.removeSwitch(dpid);
+		for (Map.Entry<RuleMatch,RuleAction> entry : installed.entrySet())
+		{ this.put(dpid, entry.getKey(), entry.getValue()); }
+	}
+	
+	/**
+	 * Forget every rule in a switch, without sending anything to it. Used
+	 * when a switch leaves the network.
+	 * @param dpid DPID of the switch
+	 */
+	public void removeSwitch(long dpid)
+	{
+		Map<RuleMatch,RuleAction> installed = this.switches.remove(dpid);
+		if (null == installed)
+		{ return; }
+		for (RuleMatch match : installed.keySet())
+		{
+			Map<Long,RuleAction> holders = this.rules.get(match);
+			holders.remove(dpid);
+			if (holders.isEmpty())
+			{ this.rules.remove(match); }
+		}
+	}
+	
+	/**
+	 * Log the number of flow-mods sent so far.
+	 */
+	public void logCounts()
+	{
+		log.info(String.format("Flow-mods sent: %d adds, %d modifies, "
+				+ "%d deletes", this.adds, this.modifies, this.deletes));
+	}
+	
+	public long getAdds()
+	{ return this.adds; }
+	
+	public long getModifies()
+	{ return this.modifies; }
+	
+	public long getDeletes()
+	{ return this.deletes; }
+	
+	private RuleAction get(long dpid, RuleMatch match)
+	{
+		Map<RuleMatch,RuleAction> installed = this.switches.get(dpid);
+		return (null == installed ? null : installed.get(match));
+	}
+	
+	private void put(long dpid, RuleMatch match, RuleAction action)
+	{
+		Map<RuleMatch,RuleAction> installed = this.switches.get(dpid);
+		if (null == installed)
+		{
+			installed = new HashMap<RuleMatch,RuleAction>();
+			this.switches.put(dpid, installed);
+		}
+		installed.put(match, action);
+		
+		Map<Long,RuleAction> holders = this.rules.get(match);
+		if (null == holders)
+		{
+			holders = new HashMap<Long,RuleAction>();
+			this.rules.put(match, holders);
+		}
+		holders.put(dpid, action);
+	}
+	
+	private void remove(long dpid, RuleMatch match)
+	{
+		Map<RuleMatch,RuleAction> installed = this.switches.get(dpid);
+		if (installed != null)
+		{
+			installed.remove(match);
+			if (installed.isEmpty())
+			{ this.switches.remove(dpid); }
+		}
+		
+		Map<Long,RuleAction> holders = this.rules.get(match);
+		if (holders != null)
+		{
+			holders.remove(dpid);
+			if (holders.isEmpty())
+			{ this.rules.remove(match); }
+		}
+	}
+}
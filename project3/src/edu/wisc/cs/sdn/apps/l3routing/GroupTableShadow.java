@@ -0,0 +1,258 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.BatchWriter;
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
+
+/**
+ * Copy of the groups L3Routing has installed in each switch. Like
+ * {@link FlowTableShadow}, groups are brought to a desired state by sending
+ * only the group-mods for groups that actually differ.
+ */
+public class GroupTableShadow 
+{
+	// Interface to the logging system
+    private static Logger log =
+    		LoggerFactory.getLogger(GroupTableShadow.class.getSimpleName());
+	
+	// Queues group-mods for each switch
+	private BatchWriter writer;
+	
+	// Groups installed in each switch, keyed by DPID and then by group ID
+	private Map<Long,Map<Integer,RuleGroup>> switches;
+	
+	// Switches in which each group is installed, keyed by group ID and then
+	// by DPID
+	private Map<Integer,Map<Long,RuleGroup>> groups;
+	
+	// Number of group-mods of each kind sent
+	private long adds;
+	private long modifies;
+	private long deletes;
+	
+	/**
+	 * Create an empty shadow.
+	 * @param writer queues group-mods for each switch
+	 */
+	public GroupTableShadow(BatchWriter writer)
+	{
+		this.writer = writer;
+		this.switches = new HashMap<Long,Map<Integer,RuleGroup>>();
+		this.groups = new HashMap<Integer,Map<Long,RuleGroup>>();
+	}
+	
+	/**
+	 * Get the groups installed in a switch.
+	 * @param dpid DPID of the switch
+	 * @return contents of each installed group, keyed by group ID
+	 */
+	public Map<Integer,RuleGroup> getGroups(long dpid)
+	{
+		Map<Integer,RuleGroup> installed = this.switches.get(dpid);
+		if (null == installed)
+		{ return new HashMap<Integer,RuleGroup>(); }
+		return new HashMap<Integer,RuleGroup>(installed);
+	}
+	
+	/**
+	 * Get the DPIDs of the switches with groups installed.
+	 */
+	public Set<Long> getSwitches()
+	{ return new HashSet<Long>(this.switches.keySet()); }
+	
+	/**
+	 * Install or change a group in every switch where it is desired. Groups
+	 * must exist before rules that refer to them are installed.
+	 * @param groupId the group's ID
+	 * @param desired the contents wanted in each switch, keyed by DPID
+	 */
+	public void update(int groupId, Map<Long,RuleGroup> desired)
+	{
+		for (Map.Entry<Long,RuleGroup> entry : desired.entrySet())
+		{ this.setGroup(entry.getKey(), groupId, entry.getValue()); }
+	}
+	
+	/**
+	 * Remove a group from every switch where it is not desired. Rules that
+	 * refer to the group should be removed first.
+	 * @param groupId the group's ID
+	 * @param desired the contents wanted in each switch, keyed by DPID
+	 */
+	public void prune(int groupId, Map<Long,RuleGroup> desired)
+	{
+		Map<Long,RuleGroup> installed = this.groups.get(groupId);
+		if (null == installed)
+		{ return; }
+		List<Long> unwanted = new ArrayList<Long>();
+		for (Long dpid : installed.keySet())
+		{
+			if (!desired.containsKey(dpid))
+			{ unwanted.add(dpid); }
+		}
+		for (Long dpid : unwanted)
+		{ this.removeGroup(dpid, groupId); }
+	}
+	
+	/**
+	 * Check whether a group is installed with the desired contents in 
+	 * exactly the switches where it is desired.
+	 * @param groupId the group's ID
+	 * @param desired the contents wanted in each switch, keyed by DPID
+	 */
+	public boolean isSynced(int groupId, Map<Long,RuleGroup> desired)
+	{
+		Map<Long,RuleGroup> installed = this.groups.get(groupId);
+		if (null == installed)
+		{ return desired.isEmpty(); }
+		return installed.equals(desired);
+	}
+	
+	/**
+	 * Make sure a switch has a group with the given contents.
+	 * @param dpid DPID of the switch
+	 * @param groupId the group's ID
+	 * @param group the contents the group should have
+	 */
+	public void setGroup(long dpid, int groupId, RuleGroup group)
+	{
+		RuleGroup current = this.get(dpid, groupId);
+		if (group.equals(current))
+		{ return; }
+		FlowModBatch batch = this.writer.get(dpid);
+		if (null == batch)
+		{ return; }
+		
+		if (null == current)
+		{
+			batch.installGroup(group.getType(), groupId, group.toBuckets());
+			this.adds++;
+		}
+		else
+		{
+			batch.modifyGroup(group.getType(), groupId, group.toBuckets());
+			this.modifies++;
+		}
+		this.put(dpid, groupId, group);
+	}
+	
+	/**
+	 * Make sure a switch does not have a group.
+	 * @param dpid DPID of the switch
+	 * @param groupId the group's ID
+	 */
+	public void removeGroup(long dpid, int groupId)
+	{
+		if (null == this.get(dpid, groupId))
+		{ return; }
+		FlowModBatch batch = this.writer.get(dpid);
+		if (batch != null)
+		{
+			batch.removeGroup(groupId);
+			this.deletes++;
+		}
+		this.remove(dpid, groupId);
+	}
+	
+	/**
+	 * Record groups as installed in a switch, without sending anything to 
+	 * it. Used when the groups are known to be in the switch already.
+	 * @param dpid DPID of the switch
+	 * @param installed contents of each group, keyed by group ID
+	 */
+	public void restoreSwitch(long dpid, Map<Integer,RuleGroup> installed)
+	{
+		this.removeSwitch(dpid);
+		for (Map.Entry<Integer,RuleGroup> entry : installed.entrySet())
+		{ this.put(dpid, entry.getKey(), entry.getValue()); }
+	}
+	
+	/**
+	 * Forget every group in a switch, without sending anything to it. Used
+	 * when a switch leaves the network.
+	 * @param dpid DPID of the switch
+	 */
+	public void removeSwitch(long dpid)
+	{
+		Map<Integer,RuleGroup> installed = this.switches.remove(dpid);
+		if (null == installed)
+		{ return; }
+		for (Integer groupId : installed.keySet())
+		{
+			Map<Long,RuleGroup> holders = this.groups.get(groupId);
+			holders.remove(dpid);
+			if (holders.isEmpty())
+			{ this.groups.remove(groupId); }
+		}
+	}
+	
+	/**
+	 * Log the number of group-mods sent so far.
+	 */
+	public void logCounts()
+	{
+		log.info(String.format("Group-mods sent: %d adds, %d modifies, "
+				+ "%d deletes", this.adds, this.modifies, this.deletes));
+	}
+	
+	public long getAdds()
+	{ return this.adds; }
+	
+	public long getModifies()
+	{ return this.modifies; }
+	
+	public long getDeletes()
+	{ return this.deletes; }
+	
+	private RuleGroup get(long dpid, int groupId)
+	{
+		Map<Integer,RuleGroup> installed = this.switches.get(dpid);
+		return (null == installed ? null : installed.get(groupId));
+	}
+	
+	private void put(long dpid, int groupId, RuleGroup group)
+	{
+		Map<Integer,RuleGroup> installed = this.switches.get(dpid);
+		if (null == installed)
+		{
+			installed = new HashMap<Integer,RuleGroup>();
+			this.switches.put(dpid, installed);
+		}
+		installed.put(groupId, group);
+		
+		Map<Long,RuleGroup> holders = this.groups.get(groupId);
+		if (null == holders)
+		{
+			holders = new HashMap<Long,RuleGroup>();
+			this.groups.put(groupId, holders);
+		}
+		holders.put(dpid, group);
+	}
+	
+	private void remove(long dpid, int groupId)
+	{
+		Map<Integer,RuleGroup> installed = this.switches.get(dpid);
+		if (installed != null)
+		{
+			installed.remove(groupId);
+			if (installed.isEmpty())
+			{ this.switches.remove(dpid); }
+		}
+		
+		Map<Long,RuleGroup> holders = this.groups.get(groupId);
+		if (holders != null)
+		{
+			holders.remove(dpid);
+			if (holders.isEmpty())
+			{ this.groups.remove(groupId); }
+		}
+	}
+}
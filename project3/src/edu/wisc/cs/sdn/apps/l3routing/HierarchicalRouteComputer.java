@@ -0,0 +1,873 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+
+/**
+ * Computes the routes towards every switch in two levels, so the work a
+ * change causes grows with the size of an area rather than the network.
+ * Switches are split into areas: connected groups of switches that were
+ * configured to belong together, or that were clustered automatically as
+ * they joined. Switches keep their area until they leave.
+ * <p>
+ * Within an area, each switch has a shortest-path tree over the area's own
+ * switches and links; a change to a link inside an area only recomputes the
+ * trees of that area. Between areas, routing uses a summarized border graph
+ * whose nodes are the switches at the ends of links between areas. Its
+ * links are those links, plus one link between every two border switches
+ * of an area, weighted by their distance within the area. A switch outside
+ * an area heads for the area along the cheapest combination of a path to a
+ * border switch of its own area and a path across the border graph; once
+ * inside, packets follow the tree within the area. Every step on the way
+ * lowers the remaining cost, so routes cannot loop.
+ * <p>
+ * Trees towards each switch are views over the per-area trees and a table
+ * of routes towards each area, so memory grows with the number of switches
+ * times the size of an area, plus the number of switches times the number
+ * of areas. The price is that routes between areas may be longer than the
+ * shortest path, and that the distance a tree reports for a switch outside
+ * the root's area is an upper bound: the switch's cost of reaching the area
+ * plus the longest distance to the root within it. Equal-cost paths are
+ * therefore only offered within the root's area. Not safe for concurrent
+ * use.
+ */
+public class HierarchicalRouteComputer 
+{
+	// Interface to the logging system
+    private static Logger log = LoggerFactory.getLogger(
+    		HierarchicalRouteComputer.class.getSimpleName());
+	
+	// Port of the link from a border switch to the node that stands for its
+	// area in the border graph
+	private static final int AREA_PORT = 0;
+	
+	/**
+	 * A connected group of switches with the same area label.
+	 */
+	private static class Area
+	{
+		// DPIDs of the switches in the area, in ascending order
+		private final List<Long> members;
+		
+		// Switches of the area and the links between them
+		private final TopologyGraph graph;
+		
+		// Tree towards each switch within the area, keyed by DPID
+		private final Map<Long,ShortestPathTree> trees;
+		
+		// Index in the full graph of each switch, by its index in the area's
+		// graph
+		private final int[] globalIndexes;
+		
+		// Routes from every other switch towards the area; null until the
+		// area has been reached from the border graph
+		private AreaRoutes routes;
+		
+		// Tree towards each switch of the area, in the full graph, keyed by
+		// DPID
+		private Map<Long,RouteTree> views;
+		
+		Area(List<Long> members, TopologyGraph graph,
+				Map<Long,ShortestPathTree> trees, int[] globalIndexes)
+		{
+			this.members = members;
+			this.graph = graph;
+			this.trees = trees;
+			this.globalIndexes = globalIndexes;
+			this.routes = null;
+			this.views = new HashMap<Long,RouteTree>();
+		}
+	}
+	
+	/**
+	 * Route from every switch outside an area towards the area, indexed by
+	 * the switch's index in the full graph.
+	 */
+	private static class AreaRoutes
+	{
+		// Cost of reaching the area from each switch
+		private final int[] distance;
+		
+		// Index of the next switch on the way to the area
+		private final int[] nextHop;
+		
+		// Port out which the next switch is reached
+		private final int[] outPort;
+		
+		AreaRoutes(int capacity)
+		{
+			this.distance = new int[capacity];
+			this.nextHop = new int[capacity];
+			this.outPort = new int[capacity];
+			Arrays.fill(this.distance, ShortestPathTree.UNREACHABLE);
+			Arrays.fill(this.nextHop, ShortestPathTree.NONE);
+			Arrays.fill(this.outPort, ShortestPathTree.NONE);
+		}
+		
+		int getDistance(int index)
+		{
+			return (index < this.distance.length ? this.distance[index]
+					: ShortestPathTree.UNREACHABLE);
+		}
+		
+		int getNextHop(int index)
+		{
+			return (index < this.nextHop.length ? this.nextHop[index]
+					: ShortestPathTree.NONE);
+		}
+		
+		int getOutPort(int index)
+		{
+			return (index < this.outPort.length ? this.outPort[index]
+					: ShortestPathTree.NONE);
+		}
+		
+		/**
+		 * Check whether every switch has the same route in both tables.
+		 */
+		boolean isSame(AreaRoutes other)
+		{
+			int size = Math.max(this.distance.length, other.distance.length);
+			for (int i = 0; i < size; i++)
+			{
+				if (this.getDistance(i) != other.getDistance(i)
+						|| this.getNextHop(i) != other.getNextHop(i)
+						|| this.getOutPort(i) != other.getOutPort(i))
+				{ return false; }
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * Shortest-path tree towards a switch, in the full graph, made up of the
+	 * switch's tree within its area and the routes towards the area.
+	 */
+	private static class AreaTree implements RouteTree
+	{
+		// Graph over which the paths are worked out
+		private final TopologyGraph graph;
+		
+		// Index of the root in the full graph
+		private final int root;
+		
+		// Tree towards the root within its area
+		private final ShortestPathTree local;
+		
+		// Number of the root's area, and the area of each switch in the full
+		// graph, or -1
+		private final int area;
+		private final int[] areas;
+		
+		// Index of each switch in its area's graph, and back
+		private final int[] localIndexes;
+		private final int[] globalIndexes;
+		
+		// Routes from switches outside the area towards it
+		private final AreaRoutes routes;
+		
+		// Longest distance to the root within the area
+		private final int span;
+		
+		AreaTree(TopologyGraph graph, int root, ShortestPathTree local,
+				int area, int[] areas, int[] localIndexes,
+				int[] globalIndexes, AreaRoutes routes)
+		{
+			this.graph = graph;
+			this.root = root;
+			this.local = local;
+			this.area = area;
+			this.areas = areas;
+			this.localIndexes = localIndexes;
+			this.globalIndexes = globalIndexes;
+			this.routes = routes;
+			
+			int span = 0;
+			for (int i = 0; i < globalIndexes.length; i++)
+			{
+				if (local.isReachable(i))
+				{ span = Math.max(span, local.getDistance(i)); }
+			}
+			this.span = span;
+		}
+		
+		@Override
+		public TopologyGraph getGraph()
+		{ return this.graph; }
+		
+		@Override
+		public int getRoot()
+		{ return this.root; }
+		
+		@Override
+		public long getRootDpid()
+		{ return this.graph.getDpid(this.root); }
+		
+		@Override
+		public int getDistance(int index)
+		{
+			if (this.isInArea(index))
+			{ return this.local.getDistance(this.localIndexes[index]); }
+			int distance = this.routes.getDistance(index);
+			if (ShortestPathTree.UNREACHABLE == distance)
+			{ return ShortestPathTree.UNREACHABLE; }
+			return distance + this.span;
+		}
+		
+		@Override
+		public int getNextHop(int index)
+		{
+			if (!this.isInArea(index))
+			{ return this.routes.getNextHop(index); }
+			int next = this.local.getNextHop(this.localIndexes[index]);
+			return (ShortestPathTree.NONE == next ? ShortestPathTree.NONE
+					: this.globalIndexes[next]);
+		}
+		
+		@Override
+		public int getOutPort(int index)
+		{
+			if (!this.isInArea(index))
+			{ return this.routes.getOutPort(index); }
+			return this.local.getOutPort(this.localIndexes[index]);
+		}
+		
+		@Override
+		public boolean isReachable(int index)
+		{ return (this.getDistance(index) != ShortestPathTree.UNREACHABLE); }
+		
+		/**
+		 * Get the links out of a switch that start a shortest path towards
+		 * the root. Distances outside the area are only upper bounds, so a
+		 * switch outside it only has the link its route uses; a switch in
+		 * the area has every link of a shortest path within the area.
+		 */
+		@Override
+		public List<Edge> getEqualCostLinks(int index, int excludedHop)
+		{
+			List<Edge> links = new ArrayList<Edge>();
+			if (index == this.root || !this.isReachable(index))
+			{ return links; }
+			if (!this.isInArea(index))
+			{
+				Edge link = this.graph.getLink(this.graph.getDpid(index),
+						this.getOutPort(index));
+				if (link != null && link.getDst() != excludedHop)
+				{ links.add(link); }
+				return links;
+			}
+			
+			int excluded = (this.isInArea(excludedHop)
+					? this.localIndexes[excludedHop] : ShortestPathTree.NONE);
+			for (Edge link : this.local.getEqualCostLinks(
+					this.localIndexes[index], excluded))
+			{
+				links.add(new Edge(index, link.getSrcPort(),
+						this.globalIndexes[link.getDst()],
+						ShortestPathTree.NONE, link.getWeight()));
+			}
+			return links;
+		}
+		
+		@Override
+		public Edge getLoopFreeAlternate(int index, RouteTree towardsSwitch,
+				int excludedHop)
+		{
+			return ShortestPathTree.findLoopFreeAlternate(this, index, 
+					towardsSwitch, excludedHop);
+		}
+		
+		/**
+		 * Get the number of shortest paths from a switch to the root: those
+		 * within the area for a switch in it, and the one its route takes
+		 * for a switch outside it.
+		 */
+		@Override
+		public double getPathCount(int index)
+		{
+			if (!this.isReachable(index))
+			{ return 0; }
+			if (!this.isInArea(index))
+			{ return 1; }
+			return this.local.getPathCount(this.localIndexes[index]);
+		}
+		
+		/**
+		 * Copy the paths into a tree of the usual kind.
+		 */
+		@Override
+		public ShortestPathTree copy()
+		{
+			ShortestPathTree copy = new ShortestPathTree(this.graph,
+					this.root);
+			for (int i = 0; i < this.areas.length; i++)
+			{
+				if (i != this.root && this.isReachable(i))
+				{
+					copy.setPath(i, this.getDistance(i), this.getNextHop(i),
+							this.getOutPort(i));
+				}
+			}
+			return copy;
+		}
+		
+		private boolean isInArea(int index)
+		{ 
+			return (index >= 0 && index < this.areas.length 
+					&& this.areas[index] == this.area); 
+		}
+	}
+	
+	// Computes the trees within each area
+	private AllPairsRouteComputer allPairs;
+	
+	// Computes routes across the border graph, whose links have weights
+	private PathEngine borderEngine;
+	
+	// Area label of each configured switch, keyed by DPID
+	private Map<Long,Integer> configuredLabels;
+	
+	// Number of configured areas, whose labels come before the others
+	private int configuredAreas;
+	
+	// Most switches put in an area automatically
+	private int areaSize;
+	
+	// Area label of every switch, keyed by DPID
+	private Map<Long,Integer> labels;
+	
+	// Label the next automatically formed area gets
+	private int nextLabel;
+	
+	// Areas as of the last computation, keyed by their lowest DPID
+	private Map<Long,Area> areas;
+	
+	// Number of trees within areas computed
+	private long treesComputed;
+	
+	/**
+	 * Create a computer with no areas yet.
+	 * @param allPairs computes the trees within each area
+	 * @param configuredAreas DPIDs of the switches that form each configured
+	 *        area; other switches are clustered automatically
+	 * @param areaSize most switches put in an area automatically
+	 */
+	public HierarchicalRouteComputer(AllPairsRouteComputer allPairs,
+			List<List<Long>> configuredAreas, int areaSize)
+	{
+		this.allPairs = allPairs;
+		this.borderEngine = new DijkstraPathEngine();
+		this.configuredLabels = new HashMap<Long,Integer>();
+		for (int label = 0; label < configuredAreas.size(); label++)
+		{
+			for (Long dpid : configuredAreas.get(label))
+			{ this.configuredLabels.put(dpid, label); }
+		}
+		this.configuredAreas = configuredAreas.size();
+		this.areaSize = Math.max(1, areaSize);
+		this.labels = new HashMap<Long,Integer>(this.configuredLabels);
+		this.nextLabel = configuredAreas.size();
+		this.areas = new HashMap<Long,Area>();
+		this.treesComputed = 0;
+	}
+	
+	/**
+	 * Parse areas from the configuration.
+	 * @param value DPIDs of the switches in each area, separated by commas,
+	 *        with areas separated by semicolons; null or empty for none
+	 * @return DPIDs of the switches in each area
+	 * @throws NumberFormatException if a DPID is not a number
+	 */
+	public static List<List<Long>> parseAreas(String value)
+	{
+		List<List<Long>> areas = new ArrayList<List<Long>>();
+		if (null == value || value.trim().isEmpty())
+		{ return areas; }
+		for (String area : value.split(";"))
+		{
+			List<Long> members = new ArrayList<Long>();
+			for (String dpid : area.split(","))
+			{
+				if (!dpid.trim().isEmpty())
+				{ members.add(Long.decode(dpid.trim())); }
+			}
+			if (!members.isEmpty())
+			{ areas.add(members); }
+		}
+		return areas;
+	}
+	
+	/**
+	 * Get the number of trees within areas computed so far.
+	 */
+	public long getTreesComputed()
+	{ return this.treesComputed; }
+	
+	/**
+	 * Get the number of areas as of the last computation.
+	 */
+	public int getAreaCount()
+	{ return this.areas.size(); }
+	
+	/**
+	 * Bring the routes up to date after the graph changed. Only the areas
+	 * whose switches or internal links changed get their trees computed
+	 * again; the routes between areas are always worked out anew, which
+	 * takes no path computation over the full graph. The graph must not
+	 * change until the computation returns.
+	 * @param graph the topology
+	 * @param removed links removed from the graph since the last call
+	 * @param added links added to the graph since the last call
+	 * @return tree towards each switch, keyed by DPID; trees that did not
+	 *         change are the same objects as before
+	 */
+	public Map<Long,RouteTree> update(TopologyGraph graph,
+			List<Edge> removed, List<Edge> added)
+	{
+		int capacity = graph.getCapacity();
+		this.assignLabels(graph);
+		
+		// Areas are the connected groups of switches with the same label
+		int[] areaOf = new int[capacity];
+		Arrays.fill(areaOf, -1);
+		List<List<Integer>> groups = this.findAreas(graph, areaOf);
+		
+		// An area must be computed again if a link within it changed
+		Set<Integer> touched = new HashSet<Integer>();
+		List<Edge> changes = new ArrayList<Edge>(removed);
+		changes.addAll(added);
+		for (Edge edge : changes)
+		{
+			int src = edge.getSrc();
+			int dst = edge.getDst();
+			if (src < capacity && dst < capacity && graph.contains(src)
+					&& graph.contains(dst) && areaOf[src] == areaOf[dst])
+			{ touched.add(areaOf[src]); }
+		}
+		
+		// Areas with the same switches and untouched links keep their trees
+		List<Edge> links = graph.getLinks();
+		List<Area> current = new ArrayList<Area>();
+		Map<Long,Area> next = new HashMap<Long,Area>();
+		int recomputed = 0;
+		int[] localIndexes = new int[capacity];
+		for (int number = 0; number < groups.size(); number++)
+		{
+			List<Long> members = new ArrayList<Long>();
+			for (Integer index : groups.get(number))
+			{ members.add(graph.getDpid(index)); }
+			Collections.sort(members);
+			Area area = this.areas.get(members.get(0));
+			if (null == area || touched.contains(number)
+					|| !area.members.equals(members))
+			{
+				area = this.computeArea(graph, members, links, areaOf, number);
+				recomputed++;
+			}
+			for (int i = 0; i < area.globalIndexes.length; i++)
+			{ localIndexes[area.globalIndexes[i]] = i; }
+			current.add(area);
+			next.put(members.get(0), area);
+		}
+		this.areas = next;
+		
+		// Routes between areas follow the border graph
+		Map<Integer,List<Edge>> exits = new HashMap<Integer,List<Edge>>();
+		for (Edge link : links)
+		{
+			if (areaOf[link.getSrc()] == areaOf[link.getDst()])
+			{ continue; }
+			List<Edge> out = exits.get(link.getSrc());
+			if (null == out)
+			{
+				out = new ArrayList<Edge>();
+				exits.put(link.getSrc(), out);
+			}
+			out.add(link);
+		}
+		TopologyGraph borders = this.getBorderGraph(capacity, current,
+				exits, areaOf, localIndexes);
+		
+		Map<Long,RouteTree> trees = new HashMap<Long,RouteTree>();
+		for (int number = 0; number < current.size(); number++)
+		{
+			Area area = current.get(number);
+			AreaRoutes routes = this.getAreaRoutes(borders, capacity, number,
+					current, exits, areaOf, localIndexes);
+			
+			// Trees are only replaced if their paths changed
+			if (area.routes != null && area.routes.isSame(routes))
+			{ routes = area.routes; }
+			else
+			{ area.views.clear(); }
+			area.routes = routes;
+			for (int i = 0; i < area.globalIndexes.length; i++)
+			{
+				long dpid = area.members.get(i);
+				RouteTree view = area.views.get(dpid);
+				if (null == view)
+				{
+					view = new AreaTree(graph, area.globalIndexes[i],
+							area.trees.get(dpid), number, areaOf,
+							localIndexes, area.globalIndexes, routes);
+					area.views.put(dpid, view);
+				}
+				trees.put(dpid, view);
+			}
+		}
+		log.info(String.format("Computed the trees within %d of %d areas",
+				recomputed, current.size()));
+		return trees;
+	}
+	
+	/**
+	 * Give every switch without an area label one. A switch joins the
+	 * smallest automatically formed area next to it that has room;
+	 * otherwise it starts a new area, which takes in the switches around it
+	 * that have no label yet, up to the area size.
+	 */
+	private void assignLabels(TopologyGraph graph)
+	{
+		// Switches that left give up their label, unless it was configured
+		Map<Long,Integer> labels = new HashMap<Long,Integer>();
+		Map<Integer,Integer> sizes = new HashMap<Integer,Integer>();
+		List<Long> unlabelled = new ArrayList<Long>();
+		for (int index = 0; index < graph.getCapacity(); index++)
+		{
+			if (!graph.contains(index))
+			{ continue; }
+			long dpid = graph.getDpid(index);
+			Integer label = this.labels.get(dpid);
+			if (null == label)
+			{
+				unlabelled.add(dpid);
+				continue;
+			}
+			labels.put(dpid, label);
+			Integer size = sizes.get(label);
+			sizes.put(label, (null == size ? 1 : size + 1));
+		}
+		labels.putAll(this.configuredLabels);
+		this.labels = labels;
+		
+		int[] offsets = graph.getOutOffsets();
+		int[] neighbors = graph.getOutNeighbors();
+		Collections.sort(unlabelled);
+		for (Long dpid : unlabelled)
+		{
+			if (this.labels.containsKey(dpid))
+			{ continue; }
+			int index = graph.getIndex(dpid);
+			int label = -1;
+			int best = Integer.MAX_VALUE;
+			for (int i = offsets[index]; i < offsets[index + 1]; i++)
+			{
+				Integer other = this.labels.get(graph.getDpid(neighbors[i]));
+				if (null == other || other < this.configuredAreas)
+				{ continue; }
+				int size = sizes.get(other);
+				if (size < this.areaSize && (size < best
+						|| (size == best && other < label)))
+				{
+					label = other;
+					best = size;
+				}
+			}
+			if (label >= 0)
+			{
+				this.labels.put(dpid, label);
+				sizes.put(label, best + 1);
+				continue;
+			}
+			
+			// Grow a new area breadth first from the switch
+			label = this.nextLabel++;
+			int size = 0;
+			Deque<Integer> queue = new ArrayDeque<Integer>();
+			this.labels.put(dpid, label);
+			size++;
+			queue.add(index);
+			while (!queue.isEmpty() && size < this.areaSize)
+			{
+				int u = queue.poll();
+				for (int i = offsets[u]; i < offsets[u + 1]
+						&& size < this.areaSize; i++)
+				{
+					long neighbor = graph.getDpid(neighbors[i]);
+					if (this.labels.containsKey(neighbor))
+					{ continue; }
+					this.labels.put(neighbor, label);
+					size++;
+					queue.add(neighbors[i]);
+				}
+			}
+			sizes.put(label, size);
+		}
+	}
+	
+	/**
+	 * Split the switches into connected groups with the same label. Only
+	 * links that work in both directions join switches, so every switch of
+	 * a group can reach every other within the group.
+	 * @param areaOf filled with the number of each switch's group
+	 * @return indices of the switches in each group
+	 */
+	private List<List<Integer>> findAreas(TopologyGraph graph, int[] areaOf)
+	{
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		int[] offsets = graph.getOutOffsets();
+		int[] neighbors = graph.getOutNeighbors();
+		for (int index = 0; index < graph.getCapacity(); index++)
+		{
+			if (!graph.contains(index) || areaOf[index] >= 0)
+			{ continue; }
+			int number = groups.size();
+			int label = this.labels.get(graph.getDpid(index));
+			List<Integer> group = new ArrayList<Integer>();
+			areaOf[index] = number;
+			group.add(index);
+			for (int k = 0; k < group.size(); k++)
+			{
+				int u = group.get(k);
+				for (int i = offsets[u]; i < offsets[u + 1]; i++)
+				{
+					int v = neighbors[i];
+					if (areaOf[v] < 0
+							&& label == this.labels.get(graph.getDpid(v))
+							&& hasLink(offsets, neighbors, v, u))
+					{
+						areaOf[v] = number;
+						group.add(v);
+					}
+				}
+			}
+			groups.add(group);
+		}
+		return groups;
+	}
+	
+	/**
+	 * Build an area's graph and compute the tree towards each of its
+	 * switches within it.
+	 * @param members DPIDs of the area's switches, in ascending order
+	 * @param links every link in the full graph
+	 * @param areaOf number of each switch's area
+	 * @param number number of the area
+	 */
+	private Area computeArea(TopologyGraph graph, List<Long> members,
+			List<Edge> links, int[] areaOf, int number)
+	{
+		TopologyGraph local = new TopologyGraph();
+		int[] globalIndexes = new int[members.size()];
+		for (Long dpid : members)
+		{ globalIndexes[local.addSwitch(dpid)] = graph.getIndex(dpid); }
+		for (Edge link : links)
+		{
+			if (areaOf[link.getSrc()] != number
+					|| areaOf[link.getDst()] != number)
+			{ continue; }
+			long src = graph.getDpid(link.getSrc());
+			local.addLink(src, link.getSrcPort(),
+					graph.getDpid(link.getDst()), link.getDstPort());
+			local.setWeight(src, link.getSrcPort(), link.getWeight());
+		}
+		Map<Long,ShortestPathTree> trees = this.allPairs.computeAll(local);
+		this.treesComputed += trees.size();
+		return new Area(members, local, trees, globalIndexes);
+	}
+	
+	/**
+	 * Build the border graph. Its nodes are the switches at either end of a
+	 * link between areas, numbered by their index in the full graph plus
+	 * one, and a node for each area, numbered after them. Every border
+	 * switch has a link of weight zero to its area's node.
+	 */
+	private TopologyGraph getBorderGraph(int capacity, List<Area> areas,
+			Map<Integer,List<Edge>> exits, int[] areaOf, int[] localIndexes)
+	{
+		TopologyGraph borders = new TopologyGraph();
+		List<List<Integer>> areaBorders = new ArrayList<List<Integer>>();
+		for (int number = 0; number < areas.size(); number++)
+		{
+			areaBorders.add(new ArrayList<Integer>());
+			borders.addSwitch(getAreaNode(capacity, number));
+		}
+		for (List<Edge> out : exits.values())
+		{
+			for (Edge link : out)
+			{
+				for (int index : new int[] { link.getSrc(), link.getDst() })
+				{
+					if (borders.getIndex(index + 1) >= 0)
+					{ continue; }
+					borders.addSwitch(index + 1);
+					borders.addLink(index + 1, AREA_PORT,
+							getAreaNode(capacity, areaOf[index]), AREA_PORT);
+					borders.setWeight(index + 1, AREA_PORT, 0);
+					areaBorders.get(areaOf[index]).add(index);
+				}
+			}
+		}
+		for (List<Edge> out : exits.values())
+		{
+			for (Edge link : out)
+			{
+				borders.addLink(link.getSrc() + 1, link.getSrcPort(),
+						link.getDst() + 1, link.getDstPort());
+				borders.setWeight(link.getSrc() + 1, link.getSrcPort(),
+						link.getWeight());
+			}
+		}
+		
+		// Border switches of an area are linked by their distance within it
+		for (int number = 0; number < areas.size(); number++)
+		{
+			Area area = areas.get(number);
+			for (int src : areaBorders.get(number))
+			{
+				for (int dst : areaBorders.get(number))
+				{
+					ShortestPathTree tree = area.trees.get(
+							area.members.get(localIndexes[dst]));
+					if (src == dst || !tree.isReachable(localIndexes[src]))
+					{ continue; }
+					borders.addLink(src + 1, -(dst + 1), dst + 1,
+							-(src + 1));
+					borders.setWeight(src + 1, -(dst + 1),
+							tree.getDistance(localIndexes[src]));
+				}
+			}
+		}
+		return borders;
+	}
+	
+	/**
+	 * Work out the route from every switch outside an area towards it. A
+	 * switch picks the border switch of its own area, and the link leaving
+	 * it, that make the cheapest way to the area across the border graph.
+	 * @param number number of the area
+	 */
+	private AreaRoutes getAreaRoutes(TopologyGraph borders, int capacity,
+			int number, List<Area> areas, Map<Integer,List<Edge>> exits,
+			int[] areaOf, int[] localIndexes)
+	{
+		AreaRoutes routes = new AreaRoutes(capacity);
+		int root = borders.getIndex(getAreaNode(capacity, number));
+		ShortestPathTree across = this.borderEngine.computeTree(borders,
+				root);
+		
+		// Cheapest way to the area from each switch with a link leaving its
+		// own area, and the link it takes
+		Map<Integer,Edge> bestExits = new HashMap<Integer,Edge>();
+		Map<Integer,Integer> exitCosts = new HashMap<Integer,Integer>();
+		for (Map.Entry<Integer,List<Edge>> entry : exits.entrySet())
+		{
+			if (areaOf[entry.getKey()] == number)
+			{ continue; }
+			for (Edge link : entry.getValue())
+			{
+				int far = borders.getIndex(link.getDst() + 1);
+				if (!across.isReachable(far))
+				{ continue; }
+				int cost = link.getWeight() + across.getDistance(far);
+				Integer best = exitCosts.get(entry.getKey());
+				if (null == best || cost < best || (cost == best
+						&& link.getSrcPort()
+						< bestExits.get(entry.getKey()).getSrcPort()))
+				{
+					exitCosts.put(entry.getKey(), cost);
+					bestExits.put(entry.getKey(), link);
+				}
+			}
+		}
+		List<List<Integer>> exitSwitches = new ArrayList<List<Integer>>();
+		for (int other = 0; other < areas.size(); other++)
+		{ exitSwitches.add(new ArrayList<Integer>()); }
+		for (Integer exit : exitCosts.keySet())
+		{ exitSwitches.get(areaOf[exit]).add(exit); }
+		
+		// Every other switch heads for the exit it reaches most cheaply
+		for (int other = 0; other < areas.size(); other++)
+		{
+			if (other == number)
+			{ continue; }
+			Area area = areas.get(other);
+			List<Integer> exitList = exitSwitches.get(other);
+			Collections.sort(exitList);
+			int[] exitIndexes = new int[exitList.size()];
+			int[] costs = new int[exitList.size()];
+			ShortestPathTree[] towardsExits = 
+					new ShortestPathTree[exitList.size()];
+			for (int k = 0; k < exitIndexes.length; k++)
+			{
+				exitIndexes[k] = exitList.get(k);
+				costs[k] = exitCosts.get(exitIndexes[k]);
+				towardsExits[k] = area.trees.get(
+						area.members.get(localIndexes[exitIndexes[k]]));
+			}
+			
+			for (int i = 0; i < area.globalIndexes.length; i++)
+			{
+				int index = area.globalIndexes[i];
+				long best = ShortestPathTree.UNREACHABLE;
+				int chosen = -1;
+				for (int k = 0; k < exitIndexes.length; k++)
+				{
+					if (!towardsExits[k].isReachable(i))
+					{ continue; }
+					long cost = (long)towardsExits[k].getDistance(i) + costs[k];
+					if (cost < best)
+					{
+						best = cost;
+						chosen = k;
+					}
+				}
+				if (chosen < 0)
+				{ continue; }
+				
+				routes.distance[index] = (int)best;
+				if (exitIndexes[chosen] == index)
+				{
+					Edge link = bestExits.get(index);
+					routes.nextHop[index] = link.getDst();
+					routes.outPort[index] = link.getSrcPort();
+				}
+				else
+				{
+					ShortestPathTree tree = towardsExits[chosen];
+					routes.nextHop[index] = 
+							area.globalIndexes[tree.getNextHop(i)];
+					routes.outPort[index] = tree.getOutPort(i);
+				}
+			}
+		}
+		return routes;
+	}
+	
+	private static boolean hasLink(int[] offsets, int[] neighbors, int src,
+			int dst)
+	{
+		for (int i = offsets[src]; i < offsets[src + 1]; i++)
+		{
+			if (neighbors[i] == dst)
+			{ return true; }
+		}
+		return false;
+	}
+	
+	private static long getAreaNode(int capacity, int number)
+	{ return (long)capacity + 1 + number; }
+}
@@ -0,0 +1,175 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.apps.util.Host;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+
+/**
+ * Hosts known to L3Routing, indexed by device, by IPv4 address, and by the
+ * switch they are attached to. Each host's address and attachment point are
+ * read from the device manager once, when the host is added or moves, and
+ * cached until its next change. Not safe for concurrent use.
+ */
+public class HostIndex 
+{
+	/**
+	 * A host along with its cached address and attachment point.
+	 */
+	public static class Entry
+	{
+		// The host
+		private final Host host;
+		
+		// IPv4 address of the host
+		private final int ip;
+		
+		// DPID of the switch to which the host is attached
+		private final long dpid;
+		
+		// Port on the switch to which the host is attached
+		private final int port;
+		
+		public Entry(Host host, int ip, long dpid, int port)
+		{
+			this.host = host;
+			this.ip = ip;
+			this.dpid = dpid;
+			this.port = port;
+		}
+		
+		public Host getHost()
+		{ return this.host; }
+		
+		public int getIp()
+		{ return this.ip; }
+		
+		public long getDpid()
+		{ return this.dpid; }
+		
+		public int getPort()
+		{ return this.port; }
+		
+		/**
+		 * Check whether another entry has the same address and attachment
+		 * point.
+		 */
+		public boolean sameLocation(Entry other)
+		{
+			return (other != null && other.ip == this.ip
+					&& other.dpid == this.dpid && other.port == this.port);
+		}
+	}
+	
+	// Entry for each host, keyed by device
+	private Map<IDevice,Entry> devices;
+	
+	// Entry for each host, keyed by IPv4 address
+	private LongObjectMap<Entry> addresses;
+	
+	// Entries for the hosts attached to each switch, keyed by DPID
+	private LongObjectMap<List<Entry>> switches;
+	
+	/**
+	 * Create an empty index.
+	 */
+	public HostIndex()
+	{
+		this.devices = new HashMap<IDevice,Entry>();
+		this.addresses = new LongObjectMap<Entry>();
+		this.switches = new LongObjectMap<List<Entry>>();
+	}
+	
+	/**
+	 * Get the number of hosts in the index.
+	 */
+	public int size()
+	{ return this.devices.size(); }
+	
+	/**
+	 * Get the entry for a device.
+	 * @return the entry, null if the device is not in the index
+	 */
+	public Entry get(IDevice device)
+	{ return this.devices.get(device); }
+	
+	/**
+	 * Get the entry for the host with an IPv4 address.
+	 * @return the entry, null if no host has the address
+	 */
+	public Entry getByIp(int ip)
+	{ return this.addresses.get(ip & 0xffffffffL); }
+	
+	/**
+	 * Get the entries for the hosts attached to a switch.
+	 * @return the entries; empty if no hosts are attached to the switch
+	 */
+	public List<Entry> getBySwitch(long dpid)
+	{
+		List<Entry> attached = this.switches.get(dpid);
+		if (null == attached)
+		{ return Collections.emptyList(); }
+		return Collections.unmodifiableList(attached);
+	}
+	
+	/**
+	 * Get the DPIDs of the switches with at least one host attached.
+	 */
+	public long[] getSwitches()
+	{ return this.switches.keys(); }
+	
+	/**
+	 * Get every entry in the index.
+	 */
+	public List<Entry> getAll()
+	{ return new ArrayList<Entry>(this.devices.values()); }
+	
+	/**
+	 * Add a host, or replace its entry if the device is already indexed.
+	 * @param device the host's device
+	 * @param entry the host's new entry
+	 * @return the host's previous entry, null if it was not in the index
+	 */
+	public Entry put(IDevice device, Entry entry)
+	{
+		Entry previous = this.remove(device);
+		this.devices.put(device, entry);
+		this.addresses.put(entry.getIp() & 0xffffffffL, entry);
+		List<Entry> attached = this.switches.get(entry.getDpid());
+		if (null == attached)
+		{
+			attached = new ArrayList<Entry>();
+			this.switches.put(entry.getDpid(), attached);
+		}
+		attached.add(entry);
+		return previous;
+	}
+	
+	/**
+	 * Remove a host.
+	 * @param device the host's device
+	 * @return the host's entry, null if it was not in the index
+	 */
+	public Entry remove(IDevice device)
+	{
+		Entry entry = this.devices.remove(device);
+		if (null == entry)
+		{ return null; }
+		
+		// Another host may have taken over the address
+		long ip = entry.getIp() & 0xffffffffL;
+		if (this.addresses.get(ip) == entry)
+		{ this.addresses.remove(ip); }
+		
+		List<Entry> attached = this.switches.get(entry.getDpid());
+		attached.remove(entry);
+		if (attached.isEmpty())
+		{ this.switches.remove(entry.getDpid()); }
+		return entry;
+	}
+}
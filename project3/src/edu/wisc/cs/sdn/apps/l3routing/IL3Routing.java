@@ -1,11 +1,91 @@
 package edu.wisc.cs.sdn.apps.l3routing;
 
+import java.util.List;
+import java.util.concurrent.Future;
+
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
+
 import net.floodlightcontroller.core.module.IFloodlightService;
 
+/**
+ * Queries answered from the routes L3Routing has already computed. They can
+ * be called from any thread; each call sees one consistent set of routes.
+ */
 public interface IL3Routing extends IFloodlightService
 {
 	/**
 	 * Get the table in which this application installs rules.
 	 */
 	public byte getTable();
+	
+	/**
+	 * Get the next step from a switch towards a host. Takes constant time.
+	 * @param dpid DPID of the switch
+	 * @param ip IPv4 address of the host
+	 * @return the port out which the switch forwards packets for the host,
+	 *         and the switch reached through it; null if the host is 
+	 *         unknown or cannot be reached from the switch
+	 */
+	public RouteHop getNextHop(long dpid, int ip);
+	
+	/**
+	 * Get the length of the shortest path between two switches. Takes 
+	 * constant time.
+	 * @param src DPID of the switch where the path starts
+	 * @param dst DPID of the switch where the path ends
+	 * @return the sum of the link weights along the path, which is the 
+	 *         number of hops with the default metric; -1 if there is no path
+	 */
+	public int getDistance(long src, long dst);
+	
+	/**
+	 * Get the path from a switch to a host. Takes time proportional to the
+	 * length of the path.
+	 * @param dpid DPID of the switch where the path starts
+	 * @param ip IPv4 address of the host
+	 * @return each switch on the path along with the port out which it 
+	 *         forwards, ending with the host's own switch; null if the host 
+	 *         is unknown or cannot be reached from the switch
+	 */
+	public List<RouteHop> getPath(long dpid, int ip);
+	
+	/**
+	 * Get what a switch does with untagged packets for a host. Takes 
+	 * constant time.
+	 * @param dpid DPID of the switch
+	 * @param ip IPv4 address of the host
+	 * @return the action of the switch's rule for the host, or, in a switch
+	 *         that only forwards on labels, the action such a rule would 
+	 *         have; null if the host is unknown, cannot be reached from the
+	 *         switch, or has no rules yet
+	 */
+	public RuleAction getRuleAction(long dpid, int ip);
+	
+	/**
+	 * Get the weight of the link leaving a port, from the port's speed and
+	 * measured load.
+	 * @param dpid DPID of the switch
+	 * @param port the port the link leaves
+	 * @return the weight; {@link TopologyGraph#HOP_WEIGHT} if load is not
+	 *         measured
+	 */
+	public int getLinkWeight(long dpid, int port);
+	
+	/**
+	 * Get the smoothed rate at which a port receives.
+	 * @param dpid DPID of the switch
+	 * @param port the port
+	 * @return the rate in bits per second; 0 if load is not measured
+	 */
+	public double getReceiveRate(long dpid, int port);
+	
+	/**
+	 * Send a batch of rules and groups through the same outbound queue, and
+	 * at the same limited rate, as the rules of this application, followed
+	 * by a barrier. The batch is emptied.
+	 * @param batch the rules and groups to send
+	 * @return true once the switch has handled every message without an
+	 *         error; false if any message failed or could not be sent
+	 */
+	public Future<Boolean> send(FlowModBatch batch);
 }
@@ -1,27 +1,38 @@
 package edu.wisc.cs.sdn.apps.l3routing;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.openflow.protocol.OFMatch;
-import org.openflow.protocol.action.OFAction;
-import org.openflow.protocol.action.OFActionOutput;
-import org.openflow.protocol.instruction.OFInstruction;
-import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openflow.protocol.OFType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+import edu.wisc.cs.sdn.apps.util.BarrierTracker;
+import edu.wisc.cs.sdn.apps.util.BatchWriter;
+import edu.wisc.cs.sdn.apps.util.FlowModBatch;
 import edu.wisc.cs.sdn.apps.util.Host;
 import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+import edu.wisc.cs.sdn.apps.util.SwitchQueues;
+import edu.wisc.cs.sdn.apps.util.SwitchReconciler;
 
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
@@ -44,8 +55,109 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 {
 	public static final String MODULE_NAME = L3Routing.class.getSimpleName();
 	
+	// Recompute all trees when over 1/MAX_REPAIR_FRACTION of the links change
+	private static final int MAX_REPAIR_FRACTION = 4;
+	
+	// Weight of the bucket with the most shortest paths behind it, when
+	// buckets are weighted by path count
+	private static final int MAX_BUCKET_WEIGHT = 100;
+	
+	// Largest VLAN ID that can be used as a label
+	private static final int MAX_LABEL = 4094;
+	
+	// Bit of a label, and of a group ID, that holds the generation of the 
+	// rules it belongs to, when rules are updated consistently
+	private static final int LABEL_GENERATION_BIT = 0x800;
+	private static final int GROUP_GENERATION_BIT = 0x1000000;
+	
+	// Largest group ID this application uses; other applications' groups
+	// have higher IDs
+	private static final int MAX_GROUP_ID = 2 * GROUP_GENERATION_BIT - 1;
+	
+	// Flow-mods and group-mods sent to each switch per second, by default
+	private static final int DEFAULT_FLOW_MOD_RATE = 1000;
+	
+	// Most messages that may wait to be sent to each switch, by default
+	private static final int DEFAULT_QUEUE_CAPACITY = 10000;
+	
+	// Milliseconds to wait for switches to confirm a batch of rules, on top
+	// of the time their queues take to drain
+	private static final long BARRIER_TIMEOUT = 2000;
+	
+	// Seconds a rule installed on demand stays without matching packets
+	private static final int DEFAULT_IDLE_TIMEOUT = 10;
+	
+	// Most switches put in an area automatically, by default
+	private static final int DEFAULT_AREA_SIZE = 64;
+	
+	// Seconds between polls of port statistics, by default
+	private static final int DEFAULT_POLL_INTERVAL = 10;
+	
+	// Weight of the newest utilization sample in its moving average, and 
+	// smallest relative change in a link's weight that is applied, by 
+	// default
+	private static final double DEFAULT_SMOOTHING = 0.3;
+	private static final double DEFAULT_WEIGHT_THRESHOLD = 0.25;
+	
+	// Seconds between saves of the routing state, by default
+	private static final int DEFAULT_STATE_INTERVAL = 60;
+	
+	// Milliseconds that restored switches, links, and hosts are kept without
+	// being rediscovered
+	private static final long RESTORED_STATE_LIFETIME = 60000;
+	
+	// Longest address prefix; rules for prefixes get the default priority 
+	// plus their length, so longer prefixes win
+	private static final int MAX_PREFIX_LENGTH = 32;
+	
+	// Rules that forward on a label must win over rules for host IPs and
+	// prefixes, so tagged packets are not tagged again
+	private static final short LABEL_PRIORITY = 
+			SwitchCommands.DEFAULT_PRIORITY + MAX_PREFIX_LENGTH + 1;
+	
 	// Interface to the logging system
     private static Logger log = LoggerFactory.getLogger(MODULE_NAME);
+	
+	/**
+	 * Rules and groups of one generation that forward packets towards a
+	 * destination switch.
+	 */
+	private static class DestinationRules
+	{
+		// Shortest-path tree rooted at the destination switch
+		private final RouteTree tree;
+		
+		// Generation the rules belong to
+		private final int generation;
+		
+		// ID of the groups that forward towards the destination
+		private final int groupId;
+		
+		// Label of packets for the destination; 0 if they are not labelled
+		private final short label;
+		
+		// Group through which each switch forwards, keyed by DPID
+		private final Map<Long,RuleGroup> groups;
+		
+		// Action of the label's rule in each switch, keyed by DPID
+		private final Map<Long,RuleAction> labelRules;
+		
+		// Action of the rules for the destination's hosts in each switch 
+		// other than the destination, keyed by DPID
+		private final Map<Long,RuleAction> hostRules;
+		
+		DestinationRules(RouteTree tree, int generation, int groupId,
+				short label)
+		{
+			this.tree = tree;
+			this.generation = generation;
+			this.groupId = groupId;
+			this.label = label;
+			this.groups = new HashMap<Long,RuleGroup>();
+			this.labelRules = new HashMap<Long,RuleAction>();
+			this.hostRules = new HashMap<Long,RuleAction>();
+		}
+	}
     
     // Interface to Floodlight core for interacting with connected switches
     private IFloodlightProviderService floodlightProv;
@@ -59,10 +171,149 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
     // Switch table in which rules should be installed
     private byte table;
     
-    // Map of hosts to devices
-    private Map<IDevice,Host> knownHosts;
+    // Hosts known to the module, with their cached addresses and 
+    // attachment points
+    private HostIndex hosts;
+    
+    // Algorithm used to compute shortest paths
+    private PathEngine pathEngine;
+    
+    // Measures the speed and load of every port; null if load is not 
+    // measured
+    private LinkWeights linkWeights;
+    
+    // Whether links are weighted by the speed and load of their ports, 
+    // rather than all weighing the same
+    private boolean weightLinks;
+    
+    // Seconds between polls of port statistics
+    private int pollInterval;
+    
+    // Updates shortest paths in place when links change
+    private TreeRepairer treeRepairer;
+    
+    // Switches and links known to the module
+    private TopologyGraph graph;
+    
+    // Computes the trees towards every switch in parallel
+    private AllPairsRouteComputer allPairs;
+    
+    // Computes the trees within areas of the topology and the routes 
+    // between areas; null if trees are computed over the whole topology
+    private HierarchicalRouteComputer hierarchy;
+    
+    // Current shortest-path tree towards each switch; replaced, never 
+    // modified, so other threads can read it without locking
+    private AtomicReference<RoutingSnapshot> routes;
+    
+    // Number of trees updated in place after a topology change
+    private volatile long treesRepaired;
+    
+    // Number of trees computed from scratch
+    private volatile long treesRecomputed;
+    
+    // Queue of events waiting to be handled together
+    private EventCoalescer<RoutingEvent> events;
+    
+    // Number of times routes have been brought up to date
+    private volatile long recomputations;
+    
+    // Outbound queue for each switch, which limits how fast rules are sent
+    private SwitchQueues queues;
+    
+    // Learns whether switches accepted the rules sent to them
+    private BarrierTracker barriers;
+    
+    // Rules and groups waiting to be sent to each switch
+    private BatchWriter writer;
+    
+    // Keeps the rules and groups a joining switch already has
+    private SwitchReconciler reconciler;
+    
+    // Rules installed in each switch
+    private FlowTableShadow flowTable;
+    
+    // Whether host rules point to a group per destination switch, instead
+    // of sending packets out a port directly
+    private boolean useGroups;
+    
+    // Groups installed in each switch
+    private GroupTableShadow groupTable;
+    
+    // Whether traffic is spread over every equal-cost next hop
+    private boolean useEcmp;
+    
+    // Whether each next hop gets a share of traffic in proportion to the
+    // number of shortest paths behind it, rather than an equal share
+    private boolean weightByPaths;
+    
+    // Whether switches fall back to a precomputed loop-free alternate next
+    // hop as soon as their next hop's port goes down
+    private boolean useFailover;
+    
+    // Whether only edge switches have rules for host IPs, and packets are
+    // tagged with a label that identifies their destination switch
+    private boolean useLabels;
+    
+    // Switches with hosts attached
+    private Set<Long> edgeSwitches;
+    
+    // Whether packets are labelled with a new generation of rules only once
+    // every switch has the rules for it, so no packet meets a mix of old and
+    // new rules
+    private boolean useConsistentUpdates;
+    
+    // Generation of the rules forwarding towards each destination switch,
+    // keyed by DPID; 0 if not listed. Read by other threads
+    private Map<Long,Integer> generations;
+    
+    // Switches that rejected rules sent between the phases of an update;
+    // their rules are installed again once the update is done
+    private Set<Long> failedSwitches;
+    
+    // Whether rules for host IPs are compiled into as few rules for address
+    // prefixes as possible
+    private boolean useAggregation;
+    
+    // Rules towards each destination switch that host rules currently 
+    // follow, keyed by DPID; only kept when rules are aggregated
+    private Map<Long,DestinationRules> destinationRules;
+    
+    // Whether host rules changed since the prefix rules were last compiled
+    private boolean prefixRulesChanged;
+    
+    // Number that identifies each switch as a destination, keyed by DPID;
+    // used as the switch's group ID and label, and read by other threads
+    private Map<Long,Integer> destinationIds;
+    
+    // Installs rules along a path when a switch has no rule for a packet;
+    // null if rules for every host are installed in advance
+    private ReactiveRouter reactiveRouter;
+    
+    // File the routing state is saved to; null if it is not saved
+    private File stateFile;
+    
+    // Seconds between saves of the routing state
+    private int stateInterval;
+    
+    // Whether the routing state changed since it was last saved
+    private boolean stateChanged;
+    
+    // Routing state saved before the controller restarted; null once what
+    // it holds has been rediscovered or has expired
+    private RoutingStateFile savedState;
+    
+    // Restored switches and links that have not been rediscovered yet
+    private Set<Long> unconfirmedSwitches;
+    private Set<Link> unconfirmedLinks;
+    
+    // Addresses and attachment points of restored hosts, used for routing
+    // until the hosts are rediscovered
+    private List<HostIndex.Entry> restoredHosts;
+    
+    // Submits the events that poll ports, and save and expire routing state
+    private Timer timer;
     
-    private int INFINITY = 100000000;
 	/**
      * Loads dependencies and initializes data structures.
      */
@@ -79,12 +330,166 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
         this.linkDiscProv = context.getServiceImpl(ILinkDiscoveryService.class);
         this.deviceProv = context.getServiceImpl(IDeviceService.class);
         
-        this.knownHosts = new ConcurrentHashMap<IDevice,Host>();
+        this.hosts = new HostIndex();
+        
+        // Hop count is the default metric; Dijkstra handles weighted links.
+        // Load can also be measured only for other modules to read
+        String algorithm = config.get("algorithm");
+        this.weightLinks = "traffic".equalsIgnoreCase(
+        		config.get("linkWeights"));
+        this.linkWeights = null;
+        if (this.weightLinks 
+        		|| Boolean.parseBoolean(config.get("measureLoad")))
+        {
+        	this.linkWeights = new LinkWeights(this.floodlightProv,
+        			parseConfig(config, "smoothing", DEFAULT_SMOOTHING),
+        			parseConfig(config, "weightThreshold", 
+        					DEFAULT_WEIGHT_THRESHOLD));
+        	this.pollInterval = parseConfig(config, "pollInterval",
+        			DEFAULT_POLL_INTERVAL);
+        }
+        if (this.weightLinks)
+        {
+        	if (!PathEngines.DIJKSTRA.equalsIgnoreCase(algorithm))
+        	{
+        		log.warn("Traffic-aware link weights need Dijkstra; using "
+        				+ "Dijkstra");
+        		algorithm = PathEngines.DIJKSTRA;
+        	}
+        }
+        this.pathEngine = PathEngines.create(algorithm);
+        int threads = parseConfig(config, "threads", 
+        		Runtime.getRuntime().availableProcessors());
+        this.allPairs = new AllPairsRouteComputer(threads, algorithm);
+        log.info(String.format("Using %s to compute shortest paths with "
+        		+ "%d threads", this.pathEngine.getClass().getSimpleName(),
+        		this.allPairs.getThreads()));
+        
+        
+        // Very large topologies can be split into areas, so most changes 
+        // only recompute the trees within one area
+        this.hierarchy = null;
+        if (Boolean.parseBoolean(config.get("hierarchical")))
+        {
+        	this.hierarchy = new HierarchicalRouteComputer(this.allPairs,
+        			HierarchicalRouteComputer.parseAreas(config.get("areas")),
+        			parseConfig(config, "areaSize", DEFAULT_AREA_SIZE));
+        	log.info("Computing routes within and between areas");
+        }
+        
+        this.treeRepairer = new TreeRepairer();
+        this.graph = new TopologyGraph();
+        this.routes = new AtomicReference<RoutingSnapshot>(
+        		new RoutingSnapshot());
+        this.treesRepaired = 0;
+        this.treesRecomputed = 0;
+        
+        // Events are collected for a short window and handled together
+        int batchWindow = parseConfig(config, "batchWindow", 50);
+        int batchSize = parseConfig(config, "batchSize", 1000);
+        this.events = new EventCoalescer<RoutingEvent>(MODULE_NAME + "-events",
+        		batchWindow, batchSize, 
+        		new EventCoalescer.BatchHandler<RoutingEvent>() {
+        	@Override
+        	public void handleBatch(List<RoutingEvent> batch)
+        	{ processEvents(batch); }
+        });
+        this.recomputations = 0;
+        
+        // Rules are sent to each switch in one batch per batch of events,
+        // no faster than the switch can take them
+        int flowModRate = parseConfig(config, "maxFlowModRate", 
+        		DEFAULT_FLOW_MOD_RATE);
+        int queueCapacity = parseConfig(config, "queueCapacity", 
+        		DEFAULT_QUEUE_CAPACITY);
+        this.queues = new SwitchQueues(MODULE_NAME + "-writer", queueCapacity,
+        		flowModRate);
+        this.barriers = new BarrierTracker(this.queues);
+        this.writer = new BatchWriter(this.floodlightProv, this.barriers);
+        this.flowTable = new FlowTableShadow(this.writer, this.table);
+        
+        // Rerouting then only changes the groups, not every host's rules
+        this.useGroups = Boolean.parseBoolean(config.get("groups"));
+        this.groupTable = new GroupTableShadow(this.writer);
+        
+        // Equal-cost next hops are programmed as select groups
+        this.useEcmp = Boolean.parseBoolean(config.get("ecmp"));
+        this.weightByPaths = "paths".equalsIgnoreCase(
+        		config.get("ecmpWeights"));
         
-        /*********************************************************************/
-        /* TODO: Initialize other class variables, if necessary              */
+        // Backup next hops are programmed as fast-failover groups
+        this.useFailover = Boolean.parseBoolean(config.get("failover"));
+        if ((this.useEcmp || this.useFailover) && !this.useGroups)
+        {
+        	log.warn("ECMP and failover need groups; enabling groups");
+        	this.useGroups = true;
+        }
+        this.destinationIds = new ConcurrentHashMap<Long,Integer>();
         
-        /*********************************************************************/
+        // Core switches then only need rules for each switch, not each host
+        this.useLabels = Boolean.parseBoolean(config.get("labels"));
+        this.edgeSwitches = new HashSet<Long>();
+        
+        // Labels carry the generation of the rules a packet should follow
+        this.useConsistentUpdates = Boolean.parseBoolean(
+        		config.get("consistentUpdates"));
+        if (this.useConsistentUpdates && !this.useLabels)
+        {
+        	log.warn("Consistent updates need labels; enabling labels");
+        	this.useLabels = true;
+        }
+        this.generations = new ConcurrentHashMap<Long,Integer>();
+        this.failedSwitches = new HashSet<Long>();
+        
+        // Hosts whose addresses share a prefix and a destination switch can
+        // then share one rule in every other switch
+        this.useAggregation = Boolean.parseBoolean(
+        		config.get("aggregation"));
+        this.destinationRules = new HashMap<Long,DestinationRules>();
+        this.prefixRulesChanged = false;
+        
+        // Rules can instead be installed only along paths that carry traffic
+        this.reactiveRouter = null;
+        if ("reactive".equalsIgnoreCase(config.get("mode")))
+        {
+        	short idleTimeout = (short)parseConfig(config, "idleTimeout", 
+        			DEFAULT_IDLE_TIMEOUT);
+        	this.reactiveRouter = new ReactiveRouter(this.floodlightProv, 
+        			this.routes, this.table, idleTimeout);
+        	log.info(String.format("Installing rules on demand, with a %d s "
+        			+ "idle timeout; groups and labels are not used", 
+        			idleTimeout));
+        	this.useGroups = false;
+        	this.useEcmp = false;
+        	this.useFailover = false;
+        	this.useLabels = false;
+        	this.useConsistentUpdates = false;
+        	this.useAggregation = false;
+        }
+        
+        // Switches that reconnect are compared with the rules they should 
+        // have, instead of being wiped; rules for prefixes of any length are
+        // ours, even if aggregation has since been turned off
+        List<Short> priorities = new ArrayList<Short>();
+        for (int length = 0; length <= MAX_PREFIX_LENGTH; length++)
+        { priorities.add((short)(SwitchCommands.DEFAULT_PRIORITY + length)); }
+        priorities.add(LABEL_PRIORITY);
+        this.reconciler = new SwitchReconciler(this.table, priorities,
+        		this.useGroups, MAX_GROUP_ID);
+        
+        // Routing state is saved periodically, so a restarted controller 
+        // can route before it has rediscovered the network
+        String statePath = config.get("stateFile");
+        this.stateFile = null;
+        if (statePath != null && !statePath.trim().isEmpty())
+        { this.stateFile = new File(statePath.trim()); }
+        this.stateInterval = parseConfig(config, "stateInterval", 
+        		DEFAULT_STATE_INTERVAL);
+        this.stateChanged = false;
+        this.savedState = null;
+        this.unconfirmedSwitches = new HashSet<Long>();
+        this.unconfirmedLinks = new HashSet<Link>();
+        this.restoredHosts = new ArrayList<HostIndex.Entry>();
 	}
 
 	/**
@@ -95,14 +500,105 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 			throws FloodlightModuleException 
 	{
 		log.info(String.format("Starting %s...", MODULE_NAME));
+		this.timer = new Timer(MODULE_NAME + "-timer", true);
+		if (this.stateFile != null)
+		{ this.startStatePersistence(); }
+		if (this.linkWeights != null)
+		{
+			long interval = 1000L * Math.max(1, this.pollInterval);
+			this.timer.schedule(new TimerTask() {
+				@Override
+				public void run()
+				{ events.submit(RoutingEvent.pollPorts()); }
+			}, interval, interval);
+		}
 		this.floodlightProv.addOFSwitchListener(this);
 		this.linkDiscProv.addListener(this);
 		this.deviceProv.addListener(this);
+		this.floodlightProv.addOFMessageListener(OFType.BARRIER_REPLY, 
+				this.barriers);
+		this.floodlightProv.addOFMessageListener(OFType.ERROR, this.barriers);
+		
+		// Packets that match no rule reach the controller through the 
+		// switches' table-miss rules
+		if (this.reactiveRouter != null)
+		{ 
+			this.floodlightProv.addOFMessageListener(OFType.PACKET_IN, 
+					this.reactiveRouter); 
+		}
+	}
+	
+	/**
+	 * Restore the routing state saved before a restart, if any, and start
+	 * saving it periodically. Runs before any event is received.
+	 */
+	private void startStatePersistence()
+	{
+		long interval = 1000L * Math.max(1, this.stateInterval);
+		this.timer.schedule(new TimerTask() {
+			@Override
+			public void run()
+			{ events.submit(RoutingEvent.saveState()); }
+		}, interval, interval);
+		if (!this.stateFile.exists() || !this.restoreState())
+		{ return; }
+		
+		// Whatever has not been rediscovered by then is gone
+		this.timer.schedule(new TimerTask() {
+			@Override
+			public void run()
+			{ events.submit(RoutingEvent.restoredStateExpired()); }
+		}, RESTORED_STATE_LIFETIME);
+	}
+	
+	/**
+	 * Load the switches, links, and hosts saved before a restart, and
+	 * publish routes over them until the network has been rediscovered.
+	 * Rules and groups are only read if a switch's tables cannot be.
+	 * @return true if state was restored
+	 */
+	private boolean restoreState()
+	{
+		long start = System.currentTimeMillis();
+		try
+		{ this.savedState = RoutingStateFile.open(this.stateFile); }
+		catch (IOException e)
+		{
+			log.warn(String.format("Ignoring saved routing state in %s", 
+					this.stateFile), e);
+			return false;
+		}
 		
-		/*********************************************************************/
-		/* TODO: Perform other tasks, if necessary                           */
+		for (int i = 0; i < this.savedState.getSwitchCount(); i++)
+		{
+			this.graph.addSwitch(this.savedState.getSwitch(i));
+			this.unconfirmedSwitches.add(this.savedState.getSwitch(i));
+		}
+		for (int i = 0; i < this.savedState.getLinkCount(); i++)
+		{
+			Link link = new Link(this.savedState.getLinkSrc(i), 
+					this.savedState.getLinkSrcPort(i), 
+					this.savedState.getLinkDst(i), 
+					this.savedState.getLinkDstPort(i));
+			if (this.graph.addLink(link.getSrc(), link.getSrcPort(), 
+					link.getDst(), link.getDstPort()) != null)
+			{ this.unconfirmedLinks.add(link); }
+		}
+		this.restoredHosts = this.savedState.getHosts();
 		
-		/*********************************************************************/
+		Map<Long,? extends RouteTree> trees = (null == this.hierarchy 
+				? this.allPairs.computeAll(this.graph) 
+				: this.hierarchy.update(this.graph, new ArrayList<Edge>(), 
+						new ArrayList<Edge>()));
+		this.treesRecomputed += trees.size();
+		this.routes.set(new RoutingSnapshot(this.graph, trees, 
+				this.restoredHosts, this.routes.get().getVersion() + 1));
+		log.info(String.format("Restored %d switches, %d links and %d hosts "
+				+ "saved %d s ago, in %d ms", this.unconfirmedSwitches.size(),
+				this.unconfirmedLinks.size(), this.restoredHosts.size(),
+				(start - this.savedState.getSavedAt()) / 1000,
+				System.currentTimeMillis() - start));
+		return true;
 	}
 	
 	/**
@@ -111,11 +607,177 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	public byte getTable()
 	{ return this.table; }
 	
+	/**
+	 * Get the next step from a switch towards a host, using the current 
+	 * routes.
+	 * @param dpid DPID of the switch
+	 * @param ip IPv4 address of the host
+	 * @return the port out which the switch forwards packets for the host,
+	 *         and the switch reached through it; null if the host is 
+	 *         unknown or cannot be reached from the switch
+	 */
+	@Override
+	public RouteHop getNextHop(long dpid, int ip)
+	{ return this.routes.get().getNextHop(dpid, ip); }
+	
+	/**
+	 * Get the length of the shortest path between two switches, using the
+	 * current routes.
+	 * @param src DPID of the switch where the path starts
+	 * @param dst DPID of the switch where the path ends
+	 * @return the sum of the link weights along the path; -1 if there is 
+	 *         no path
+	 */
+	@Override
+	public int getDistance(long src, long dst)
+	{ return this.routes.get().getDistance(src, dst); }
+	
+	/**
+	 * Get the path from a switch to a host, using the current routes.
+	 * @param dpid DPID of the switch where the path starts
+	 * @param ip IPv4 address of the host
+	 * @return each switch on the path along with the port out which it 
+	 *         forwards, ending with the host's own switch; null if the host 
+	 *         is unknown or cannot be reached from the switch
+	 */
+	@Override
+	public List<RouteHop> getPath(long dpid, int ip)
+	{ return this.routes.get().getPath(dpid, ip); }
+	
+	/**
+	 * Get what a switch does with untagged packets for a host, using the 
+	 * current routes. The action is the one {@link #getDestinationRules} 
+	 * gives the host's rule, except that a switch that only forwards on 
+	 * labels is given the action an edge switch's rule would have.
+	 * @param dpid DPID of the switch
+	 * @param ip IPv4 address of the host
+	 * @return the action; null if the host is unknown, cannot be reached 
+	 *         from the switch, or has no rules yet
+	 */
+	@Override
+	public RuleAction getRuleAction(long dpid, int ip)
+	{
+		RoutingSnapshot current = this.routes.get();
+		HostIndex.Entry host = current.getHost(ip);
+		if (null == host)
+		{ return null; }
+		if (host.getDpid() == dpid)
+		{ return RuleAction.output(host.getPort()); }
+		RouteTree tree = current.getTree(host.getDpid());
+		int index = current.getIndex(dpid);
+		if (null == tree || index < 0 || !tree.isReachable(index))
+		{ return null; }
+		
+		RuleAction nextHop = RuleAction.output(tree.getOutPort(index));
+		if (!this.useGroups && !this.useLabels)
+		{ return nextHop; }
+		Integer destinationId = this.destinationIds.get(host.getDpid());
+		if (null == destinationId)
+		{ return null; }
+		int generation = this.getGeneration(host.getDpid());
+		if (this.useGroups)
+		{ 
+			nextHop = RuleAction.group(destinationId 
+					| generation * GROUP_GENERATION_BIT); 
+		}
+		if (!this.useLabels || destinationId > this.getMaxLabel()
+				|| tree.getNextHop(index) == tree.getRoot())
+		{ return nextHop; }
+		return nextHop.withPushVlan((short)(destinationId 
+				| generation * LABEL_GENERATION_BIT));
+	}
+	
+	/**
+	 * Get the weight of the link leaving a port, from the port's speed and
+	 * measured load.
+	 * @param dpid DPID of the switch
+	 * @param port the port the link leaves
+	 * @return the weight; {@link TopologyGraph#HOP_WEIGHT} if load is not
+	 *         measured
+	 */
+	@Override
+	public int getLinkWeight(long dpid, int port)
+	{
+		if (null == this.linkWeights)
+		{ return TopologyGraph.HOP_WEIGHT; }
+		return this.linkWeights.getWeight(dpid, port);
+	}
+	
+	/**
+	 * Get the smoothed rate at which a port receives.
+	 * @param dpid DPID of the switch
+	 * @param port the port
+	 * @return the rate in bits per second; 0 if load is not measured
+	 */
+	@Override
+	public double getReceiveRate(long dpid, int port)
+	{
+		if (null == this.linkWeights)
+		{ return 0; }
+		return this.linkWeights.getReceiveRate(dpid, port);
+	}
+	
+	/**
+	 * Send a batch of rules and groups through the switch's outbound queue,
+	 * followed by a barrier. The batch is emptied.
+	 * @param batch the rules and groups to send
+	 * @return true once the switch has handled every message without an
+	 *         error; false if any message failed or could not be sent
+	 */
+	@Override
+	public Future<Boolean> send(FlowModBatch batch)
+	{ return batch.send(this.barriers); }
+	
+	/**
+	 * Get the number of rules and groups waiting to be sent to a switch.
+	 * @param dpid DPID of the switch
+	 */
+	public int getQueueDepth(long dpid)
+	{ return this.queues.getDepth(dpid); }
+	
+	/**
+	 * Get the current routes towards every switch.
+	 */
+	public RoutingSnapshot getRoutes()
+	{ return this.routes.get(); }
+	
+	/**
+	 * Get the number of shortest-path trees that have been updated in place
+	 * after a topology change.
+	 */
+	public long getTreesRepaired()
+	{ return this.treesRepaired; }
+	
+	/**
+	 * Get the number of shortest-path trees that have been computed from
+	 * scratch.
+	 */
+	public long getTreesRecomputed()
+	{ return this.treesRecomputed; }
+	
+	/**
+	 * Get the number of switch, link, and host events received.
+	 */
+	public long getEventsReceived()
+	{ return this.events.getEventsReceived(); }
+	
+	/**
+	 * Get the number of times routes have been brought up to date after a
+	 * batch of events.
+	 */
+	public long getRecomputations()
+	{ return this.recomputations; }
+	
     /**
      * Get a list of all known hosts in the network.
      */
     private Collection<Host> getHosts()
-    { return this.knownHosts.values(); }
+    { 
+    	List<Host> known = new ArrayList<Host>();
+    	for (HostIndex.Entry entry : this.hosts.getAll())
+    	{ known.add(entry.getHost()); }
+    	return known;
+    }
 	
     /**
      * Get a map of all active switches in the network. Switch DPID is used as
@@ -136,26 +798,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public void deviceAdded(IDevice device) 
-	{
-
-		Host host = new Host(device, this.floodlightProv);
-		
-		//this.getHosts().add(host); We cannot do that!
-		
-		if(host.getIPv4Address() != null) {
-			this.knownHosts.put(device, host); // Add only hosts with valid IP address.
-		}
-		
-		// We only care about a new host if we know its IP
-		if (host.getIPv4Address() != null)
-		{
-			log.info(String.format("Host %s added", host.getName()));
-			this.knownHosts.put(device, host);
-
-			// do calculations for 1 new host
-			bellmanFord(host);
-		}
-	}
+	{ this.events.submit(RoutingEvent.deviceAdded(device)); }
 
 	/**
      * Event handler called when a host is no longer attached to a switch.
@@ -163,28 +806,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public void deviceRemoved(IDevice device) 
-	{
-		Host host = this.knownHosts.get(device);
-		
-		// remove device
-		this.getHosts().remove(host);
-		
-		if (null == host)
-		{
-			host = new Host(device, this.floodlightProv);
-			this.knownHosts.put(device, host);
-		}
-		
-		log.info(String.format("Host %s is no longer attached to a switch", 
-				host.getName()));
-		
-		removeHost(host);
-		
-		
-		// TODO
-		// Should the paths be recalculated here?
-		
-	}
+	{ this.events.submit(RoutingEvent.deviceRemoved(device)); }
 
 	/**
      * Event handler called when a host moves within the network.
@@ -192,28 +814,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public void deviceMoved(IDevice device) 
-	{
-		Host host = this.knownHosts.get(device);
-		if (null == host)
-		{
-			host = new Host(device, this.floodlightProv);
-			this.knownHosts.put(device, host);
-		}
-		
-		if (!host.isAttachedToSwitch())
-		{
-			this.deviceRemoved(device);
-			return;
-		}
-		log.info(String.format("Host %s moved to s%d:%d", host.getName(),
-				host.getSwitch().getId(), host.getPort()));
-		
-		// remove host from all tables
-		removeHost(host);
-		
-		// redo for this host
-		bellmanFord(host);
-	}
+	{ this.events.submit(RoutingEvent.deviceMoved(device)); }
 	
     /**
      * Event handler called when a switch joins the network.
@@ -221,24 +822,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override		
 	public void switchAdded(long switchId) 
-	{
-		
-		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
-		log.info(String.format("Switch s%d added", switchId));
-		
-		System.out.println("Switch was added!");
-		
-		// remove switch from list 
-		this.getSwitches().put(sw.getId(), sw);
-		
-		// remove information of all hosts from tables
-		for (Host host : this.getHosts()) {
-			removeHost(host);
-		}
-		
-		// recalculate for all hosts
-		bellmanFord();
-	}
+	{ this.events.submit(RoutingEvent.switchAdded(switchId)); }
 
 	/**
 	 * Event handler called when a switch leaves the network.
@@ -246,22 +830,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	 */
 	@Override
 	public void switchRemoved(long switchId) 
-	{
-		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
-		
-		log.info(String.format("Switch s%d removed", switchId));
-		
-		// remove switch from list 
-		this.getSwitches().remove(sw);
-		
-		// remove information of all hosts from tables
-		for (Host host : this.getHosts()) {
-			removeHost(host);
-		}
-		
-		// recalculate for all hosts
-		bellmanFord();
-	}
+	{ this.events.submit(RoutingEvent.switchRemoved(switchId)); }
 
 	/**
 	 * Event handler called when multiple links go up or down.
@@ -269,83 +838,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
 	 */
 	@Override
 	public void linkDiscoveryUpdate(List<LDUpdate> updateList) 
-	{
-		for (LDUpdate update : updateList)
-		{
-			// If we only know the switch & port for one end of the link, then
-			// the link must be from a switch to a host
-			if (0 == update.getDst())
-			{
-				log.info(String.format("Link s%s:%d -> host updated", 
-					update.getSrc(), update.getSrcPort()));
-
-				/*************************************************8**********
-				 * TODO: how do we know whether the switch has gone up or down?
-				 * 
-				 ************************************************************/
-				
-				/***********************************************************
-				 * 
-				 * I think in this point we don't need to worry about that. I suppose when a switch go up or down the methods switchAdded and
-				 * switchRemoved are called. 
-				 * 
-				 * About this method, I think we need only to call the Bellman-ford algorithm to recalculate the paths.
-				 * 
-				 ************************************************************/
-				
-				
-				
-			}
-			
-			// Otherwise, the link is between two switches. Remove the link
-			else
-			{
-				log.info(String.format("Link s%s:%d -> %s:%d updated", 
-					update.getSrc(), update.getSrcPort(),
-					update.getDst(), update.getDstPort()));
-				
-				/*************************************************8**********
-				 * TODO: how do we know whether the switch has gone up or down?
-				 * 
-				 ************************************************************/
-				
-				/***********************************************************
-				 * 
-				 * I think in this point we don't need to worry about that. I suppose when a switch go up or down the methods switchAdded and
-				 * switchRemoved are called. 
-				 * 
-				 * About this method, I think we need only to call the Bellman-ford algorithm to recalculate the paths.
-				 * 
-				 ************************************************************/
-				
-				
-				
-				for (Link link: this.getLinks()) {
-					if (link.getDstPort() == update.getSrc() && link.getSrcPort() == update.getDst()) {
-						// remove link from link list
-						this.getLinks().remove(link);
-						break;
-						
-					}
-				}
-				
-			}
-		}
-		
-		// Why should we remove all hosts only because one link is down?
-		// TODO
-
-		
-		// clean out hosts and recalculate
-		//for (Host host : this.getHosts()) {
-		//	removeHost(host);
-		//}
-		
-		// recalculate for all hosts
-		bellmanFord();
-		
-		
-	}
+	{ this.events.submit(RoutingEvent.linksUpdated(updateList)); }
 
 	/**
 	 * Event handler called when link goes up or down.
@@ -369,7 +862,7 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
      */
 	@Override
 	public void deviceVlanChanged(IDevice device) 
-	{ /* Nothing we need to do, since we're not using VLANs */ }
+	{ /* Nothing we need to do, since hosts' VLANs do not affect routing */ }
 	
 	/**
 	 * Event handler called when the controller becomes the master for a switch.
@@ -465,251 +958,1211 @@ public class L3Routing implements IFloodlightModule, IOFSwitchListener,
         return modules;
 	}
 	
-	private void bellmanFord() {
+	/**
+	 * Handle a batch of queued events with a single route computation. Runs
+	 * on the event coalescer's thread, which is the only thread that changes
+	 * the graph, the trees, and the rules installed in switches.
+	 * @param events the events, in the order they happened
+	 */
+	private void processEvents(List<RoutingEvent> events)
+	{
+		TopologyChanges changes = new TopologyChanges(this.graph);
+		Map<IDevice,RoutingEvent.Type> devices = 
+				new LinkedHashMap<IDevice,RoutingEvent.Type>();
+		boolean switchesAdded = false;
+		boolean restoredHostsExpired = false;
+		int saves = 0;
+		int polls = 0;
+		for (RoutingEvent event : events)
+		{
+			switch (event.getType())
+			{
+			case SAVE_STATE:
+				saves++;
+				break;
+			case POLL_PORTS:
+				this.pollPorts(changes);
+				polls++;
+				break;
+			case RESTORED_STATE_EXPIRED:
+				this.expireRestoredState(changes);
+				restoredHostsExpired = true;
+				break;
+			case SWITCH_ADDED:
+				this.switchAdded(changes, event.getSwitchId());
+				switchesAdded = true;
+				break;
+			case SWITCH_REMOVED:
+				log.info(String.format("Switch s%d removed", 
+						event.getSwitchId()));
+				changes.removeSwitch(event.getSwitchId());
+				this.flowTable.removeSwitch(event.getSwitchId());
+				this.groupTable.removeSwitch(event.getSwitchId());
+				this.writer.discard(event.getSwitchId());
+				this.reconciler.discard(event.getSwitchId());
+				if (this.linkWeights != null)
+				{ this.linkWeights.switchRemoved(event.getSwitchId()); }
+				this.barriers.switchRemoved(event.getSwitchId());
+				this.queues.switchRemoved(event.getSwitchId());
+				break;
+			case LINKS_UPDATED:
+				this.linksUpdated(changes, event.getUpdates());
+				break;
+			default:
+				// Only the last thing that happened to a host matters
+				devices.remove(event.getDevice());
+				devices.put(event.getDevice(), event.getType());
+				break;
+			}
+		}
 		
-		// initially, add all switches to a switch list
-		List<BellFordVertex> switches = new  CopyOnWriteArrayList<BellFordVertex>();
+		// A save that is due, or a poll that changed no weight, changes no
+		// routes
+		if (saves + polls == events.size() && !changes.hasChanges())
+		{ 
+			if (saves > 0)
+			{ this.saveState(); }
+			return;
+		}
+		this.stateChanged = true;
 		
-		// initialize switch nodes
-		for (IOFSwitch sw : this.getSwitches().values()) {
-			BellFordVertex tempVertex = new BellFordVertex();
-			tempVertex = new BellFordVertex(sw, INFINITY);
-			switches.add(tempVertex);
+		// Bring every tree up to date at once
+		Set<Long> changed = new HashSet<Long>();
+		if (changes.hasChanges())
+		{
+			changed = this.updateRoutes(changes.getRemoved(), 
+					changes.getAdded());
+			this.recomputations++;
 		}
 		
-		// find and store the neighbors for each node
-		establishNeighbors(switches);
+		// A switch that (re)joined starts without our rules, so check every
+		// host; only the rules it is missing are sent. Backup next hops 
+		// depend on the trees towards every switch, so any change in the
+		// topology can change them. Switches that only get rules on demand
+		// ask for them again
+		if (null == this.reactiveRouter && (switchesAdded 
+				|| (this.useFailover && changes.hasChanges())))
+		{ changed.addAll(this.routes.get().getTrees().keySet()); }
 		
-		Iterator<BellFordVertex> bfvIterator = switches.iterator();
+		// Apply host changes, then install rules for every host whose paths
+		// changed
+		List<HostIndex.Entry> pending = new ArrayList<HostIndex.Entry>();
+		for (Map.Entry<IDevice,RoutingEvent.Type> entry : devices.entrySet())
+		{
+			HostIndex.Entry host = this.deviceChanged(entry.getKey(), 
+					entry.getValue());
+			if (host != null)
+			{ pending.add(host); }
+		}
+		if (!devices.isEmpty() || restoredHostsExpired)
+		{
+			RoutingSnapshot current = this.routes.get();
+			this.routes.set(current.withHosts(this.getKnownHosts(), 
+					current.getVersion() + 1));
+		}
 		
-		while (bfvIterator.hasNext()) {
-			
-			BellFordVertex src = (BellFordVertex) bfvIterator.next();
+		// A host on a switch the current routes have no tree towards gets 
+		// that tree published along with the rest, so the paths others read
+		// match the host's rules, and in areas the tree is built as theirs
+		for (HostIndex.Entry host : pending)
+		{
+			if (this.graph.getIndex(host.getDpid()) >= 0
+					&& null == this.routes.get().getTree(host.getDpid()))
+			{
+				changed.addAll(this.updateRoutes(new ArrayList<Edge>(), 
+						new ArrayList<Edge>()));
+				break;
+			}
+		}
 		
-			IOFSwitch srcSw = src.getSwitch();
-			
-			
-			// re-establish weights for each iteration
-			for (IOFSwitch sw : this.getSwitches().values()) {
-				BellFordVertex tempVertex = new BellFordVertex();
-				if (sw.equals(srcSw))
-					tempVertex = new BellFordVertex(sw, 0);
-				else
-					tempVertex = new BellFordVertex(sw, INFINITY);
-				switches.add(tempVertex);
+		// Rules installed on demand along paths that changed are removed, so
+		// the next packet is routed along the new path
+		if (this.reactiveRouter != null)
+		{
+			this.removeReactiveRoutes(changed, pending);
+			this.flushWrites();
+			if (saves > 0)
+			{ this.saveState(); }
+			this.logCounts(events.size());
+			return;
+		}
+		
+		// Switches that gained or lost their hosts need rules for host IPs
+		// added or removed
+		if (this.useLabels)
+		{
+			Set<Long> edges = this.getEdgeSwitches();
+			if (!edges.equals(this.edgeSwitches))
+			{ changed.addAll(this.routes.get().getTrees().keySet()); }
+			this.edgeSwitches = edges;
+		}
+		this.installRoutes(changed);
+		for (HostIndex.Entry host : pending)
+		{
+			if (!changed.contains(host.getDpid()))
+			{ this.computeRoutes(host); }
+		}
+		this.flushWrites();
+		if (saves > 0)
+		{ this.saveState(); }
+		this.logCounts(events.size());
+	}
+	
+	/**
+	 * Send the queued rules and groups to every switch, and wait until each
+	 * switch confirms them. A switch that rejected any of them gets all of 
+	 * its rules and groups installed again, once.
+	 */
+	private void flushWrites()
+	{
+		this.awaitWrites();
+		Set<Long> failed = this.takeFailedSwitches();
+		if (failed.isEmpty() || this.reactiveRouter != null)
+		{ return; }
+		
+		log.warn(String.format("Reinstalling rules in switches %s", failed));
+		for (Long dpid : failed)
+		{ this.resetSwitch(dpid); }
+		this.installRoutes(this.routes.get().getTrees().keySet());
+		this.awaitWrites();
+		failed = this.takeFailedSwitches();
+		if (!failed.isEmpty())
+		{ log.error(String.format("Switches %s rejected rules", failed)); }
+	}
+	
+	/**
+	 * Send the queued rules and groups to every switch, and wait until each
+	 * switch confirms them. Switches that rejected any of them are only
+	 * remembered, so their rules can be installed again later.
+	 */
+	private void awaitWrites()
+	{ 
+		if (this.prefixRulesChanged)
+		{ this.installPrefixRules(); }
+		Set<Long> unread = this.reconciler.reconcile(this.writer, 
+				BARRIER_TIMEOUT);
+		if (this.restoreSwitches(unread))
+		{ this.installRoutes(this.routes.get().getTrees().keySet()); }
+		this.failedSwitches.addAll(this.awaitBatches(this.writer.flush())); 
+	}
+	
+	/**
+	 * Take the rules and groups in switches whose tables could not be read
+	 * from the state saved before a restart, so only what changed since is
+	 * sent to them.
+	 * @param switchIds DPIDs of the switches whose tables could not be read
+	 * @return true if the rules of any switch were restored
+	 */
+	private boolean restoreSwitches(Set<Long> switchIds)
+	{
+		if (null == this.savedState)
+		{ return false; }
+		boolean restored = false;
+		for (Long dpid : switchIds)
+		{
+			try
+			{
+				Map<RuleMatch,RuleAction> rules = this.savedState.getRules(dpid);
+				Map<Integer,RuleGroup> groups = this.savedState.getGroups(dpid);
+				if (null == rules || (this.useGroups && null == groups))
+				{ continue; }
+				this.writer.discard(dpid);
+				this.flowTable.restoreSwitch(dpid, rules);
+				if (this.useGroups)
+				{ this.groupTable.restoreSwitch(dpid, groups); }
+				restored = true;
+				log.info(String.format("Restored the rules of s%d", dpid));
 			}
-			
-			// relax the weights
-			for (int i = 2; i < switches.size(); i++) {
-				
-				// go through all links and recalculate costs to each destination from u
-				for (BellFordVertex u: switches) {
-					
-					// for each port for a given switch u, compare the weight of
-					// u to all of its neighbors. If there is a neighbor that 
-					// has a less expensive path, go through that neighbor
-					for (int port: u.getSwitch().getEnabledPortNumbers()) {
-					
-						BellFordVertex neighbor = u.getNeighbors().get(port);
-						if (u.getCost() > neighbor.getCost() + 1) {
-							u.setCost(neighbor.getCost() + 1);
-							u.setOutPort(port);
-						}
-						
-					}
-					
-				}
-				
+			catch (IOException e)
+			{ 
+				log.warn(String.format("Failed to restore the rules of s%d",
+						dpid), e); 
+			}
+		}
+		return restored;
+	}
+	
+	/**
+	 * Forget the restored switches, links, and hosts that have not been 
+	 * rediscovered.
+	 */
+	private void expireRestoredState(TopologyChanges changes)
+	{
+		log.info(String.format("Forgetting %d switches, %d links and %d "
+				+ "hosts that were not rediscovered", 
+				this.unconfirmedSwitches.size(), this.unconfirmedLinks.size(),
+				this.restoredHosts.size()));
+		for (Link link : this.unconfirmedLinks)
+		{
+			// The port may have been rediscovered with another link
+			Edge edge = this.graph.getLink(link.getSrc(), link.getSrcPort());
+			if (edge != null && edge.getDstPort() == link.getDstPort()
+					&& this.graph.getDpid(edge.getDst()) == link.getDst())
+			{ changes.removeLink(link.getSrc(), link.getSrcPort()); }
+		}
+		for (Long dpid : this.unconfirmedSwitches)
+		{ changes.removeSwitch(dpid); }
+		this.unconfirmedSwitches.clear();
+		this.unconfirmedLinks.clear();
+		this.restoredHosts = new ArrayList<HostIndex.Entry>();
+		this.savedState = null;
+	}
+	
+	/**
+	 * Save the routing state, if it changed since it was last saved.
+	 */
+	private void saveState()
+	{
+		if (!this.stateChanged || null == this.stateFile)
+		{ return; }
+		try
+		{
+			RoutingStateFile.write(this.stateFile, this.graph, 
+					this.getKnownHosts(), this.flowTable, this.groupTable);
+			this.stateChanged = false;
+		}
+		catch (IOException e)
+		{ 
+			log.warn(String.format("Failed to save routing state to %s", 
+					this.stateFile), e); 
+		}
+	}
+	
+	/**
+	 * Get and forget the switches that have rejected rules.
+	 */
+	private Set<Long> takeFailedSwitches()
+	{
+		Set<Long> failed = this.failedSwitches;
+		this.failedSwitches = new HashSet<Long>();
+		return failed;
+	}
+	
+	/**
+	 * Wait for switches to confirm the batches sent to them, for at most 
+	 * BARRIER_TIMEOUT longer than each switch's queue takes to drain.
+	 * @param outcomes outcome of each switch's batch, keyed by DPID
+	 * @return DPIDs of the switches that rejected their batch
+	 */
+	private Set<Long> awaitBatches(Map<Long,Future<Boolean>> outcomes)
+	{
+		Set<Long> failed = new HashSet<Long>();
+		long start = System.currentTimeMillis();
+		for (Map.Entry<Long,Future<Boolean>> entry : outcomes.entrySet())
+		{
+			long deadline = start + BARRIER_TIMEOUT 
+					+ this.queues.getDelay(entry.getKey());
+			long wait = Math.max(0, deadline - System.currentTimeMillis());
+			try
+			{
+				if (!entry.getValue().get(wait, TimeUnit.MILLISECONDS))
+				{ failed.add(entry.getKey()); }
+			}
+			catch (TimeoutException e)
+			{ 
+				log.warn(String.format("Switch s%d has not confirmed its "
+						+ "rules", entry.getKey())); 
+			}
+			catch (ExecutionException e)
+			{ failed.add(entry.getKey()); }
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return failed;
+	}
+	
+	/**
+	 * Log the number of events handled and rules sent so far.
+	 * @param handled number of events just handled
+	 */
+	private void logCounts(int handled)
+	{
+		log.info(String.format("Handled %d events (%d received, %d route "
+				+ "computations in total)", handled, 
+				this.getEventsReceived(), this.recomputations));
+		if (this.reactiveRouter != null)
+		{
+			log.info(String.format("Paths installed on demand: %d", 
+					this.reactiveRouter.getPacketsRouted()));
+			return;
+		}
+		this.flowTable.logCounts();
+		if (this.useGroups)
+		{ this.groupTable.logCounts(); }
+	}
+	
+	/**
+	 * Add a switch, and any links to it that were discovered before it.
+	 */
+	private void switchAdded(TopologyChanges changes, long switchId)
+	{
+		log.info(String.format("Switch s%d added", switchId));
+		changes.addSwitch(switchId);
+		IOFSwitch sw = this.floodlightProv.getSwitch(switchId);
+		if (this.reactiveRouter != null || null == sw)
+		{ this.resetSwitch(switchId); }
+		else
+		{
+			// Rules are queued as though the switch were empty, then checked 
+			// against the rules it reports before they are sent
+			this.flowTable.removeSwitch(switchId);
+			this.groupTable.removeSwitch(switchId);
+			this.reconciler.start(sw);
+		}
+		this.unconfirmedSwitches.remove(switchId);
+		for (Link link : this.getLinks())
+		{
+			if (link.getSrc() == switchId || link.getDst() == switchId)
+			{
+				this.unconfirmedLinks.remove(link);
+				this.addLink(changes, link.getSrc(), link.getSrcPort(),
+						link.getDst(), link.getDstPort());
+			}
+		}
+	}
+	
+	/**
+	 * Forget the rules and groups installed in a switch, so they are all 
+	 * installed again.
+	 * @param switchId DPID of the switch
+	 */
+	private void resetSwitch(long switchId)
+	{
+		this.flowTable.removeSwitch(switchId);
+		this.groupTable.removeSwitch(switchId);
+		
+		// Groups left in the switch would make adding our groups fail; other
+		// applications' groups are kept
+		this.reconciler.reset(switchId);
+	}
+	
+	/**
+	 * Apply changes in the state of links.
+	 */
+	private void linksUpdated(TopologyChanges changes, 
+			List<LDUpdate> updateList)
+	{
+		for (LDUpdate update : updateList)
+		{
+			// If we only know the switch & port for one end of the link, then
+			// the link must be from a switch to a host
+			if (0 == update.getDst())
+			{
+				log.info(String.format("Link s%s:%d -> host updated", 
+					update.getSrc(), update.getSrcPort()));
+				continue;
 			}
 			
-			// iterate through all the hosts of the current switch source 
-			//and establish a new route to all other hosts
-			for (Host host: this.getHosts()) {
-				
-				if (host.getSwitch().equals(srcSw)) {
-					
-					for (BellFordVertex dstSw: switches) {
-						
-						if (!dstSw.equals(srcSw)) {
-							
-							OFInstructionApplyActions instructions = new OFInstructionApplyActions();
-							
-							// create a new action with appropriate outgoing port
-							OFActionOutput action = new OFActionOutput();
-							action.setPort(dstSw.getOutPort());
-							
-							// add action to the list of instructions
-							List<OFAction> actionList = new ArrayList<OFAction>();
-							actionList.add(action);
-							instructions.setActions(actionList);
-							
-							System.out.println(host.getIPv4Address());
-							
-							// Construct IP packet
-							
-							OFMatch matchCriteria = new OFMatch();
-							
-							matchCriteria.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-							matchCriteria.setNetworkDestination(host.getIPv4Address());
-							
-							/*************************************************8**********
-							 * TODO: I don't think this is right. How do we get a 
-							 * List<OFInstruction from the actionList?
-							 * 
-							 ************************************************************/
-							
-							/**
-							 * 
-							 * I think in this way:
-							 */
-							
-							List<OFInstruction> instructionList = Arrays.asList((OFInstruction)new OFInstructionApplyActions().setActions(actionList));
-							
-							SwitchCommands.installRule(dstSw.getSwitch(), this.table, SwitchCommands.DEFAULT_PRIORITY,
-						            matchCriteria, instructionList);
-							
-						}
-						
-
+			// Otherwise, the link is between two switches
+			log.info(String.format("Link s%s:%d -> %s:%d %s", 
+				update.getSrc(), update.getSrcPort(),
+				update.getDst(), update.getDstPort(), update.getOperation()));
 			
-					}
-					
-				
+			switch (update.getOperation())
+			{
+			case LINK_UPDATED:
+				this.unconfirmedLinks.remove(new Link(update.getSrc(), 
+						update.getSrcPort(), update.getDst(), 
+						update.getDstPort()));
+				this.addLink(changes, update.getSrc(), update.getSrcPort(),
+						update.getDst(), update.getDstPort());
+				break;
+			case LINK_REMOVED:
+				changes.removeLink(update.getSrc(), update.getSrcPort());
+				break;
+			default:
+				// Switch and port changes reach us as separate link events
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Add a link, weighted by the load on the port it leaves if links are
+	 * weighted by traffic.
+	 */
+	private void addLink(TopologyChanges changes, long src, int srcPort,
+			long dst, int dstPort)
+	{
+		changes.addLink(src, srcPort, dst, dstPort);
+		if (this.weightLinks)
+		{ 
+			changes.setWeight(src, srcPort, 
+					this.linkWeights.getWeight(src, srcPort)); 
+		}
+	}
+	
+	/**
+	 * Read the load on every port measured since the last poll, and change
+	 * the weights of links whose load changed enough, if links are weighted
+	 * by load.
+	 */
+	private void pollPorts(TopologyChanges changes)
+	{
+		Map<Long,Map<Integer,Integer>> weights = 
+				this.linkWeights.poll(this.getSwitches().values());
+		if (!this.weightLinks)
+		{ return; }
+		int count = 0;
+		for (Map.Entry<Long,Map<Integer,Integer>> entry : weights.entrySet())
+		{
+			for (Map.Entry<Integer,Integer> port 
+					: entry.getValue().entrySet())
+			{
+				if (this.graph.getLink(entry.getKey(), port.getKey()) != null)
+				{
+					changes.setWeight(entry.getKey(), port.getKey(), 
+							port.getValue());
+					count++;
 				}
 			}
-		
 		}
-		
+		if (count > 0)
+		{
+			log.info(String.format("Load changed the weights of %d links "
+					+ "(%d changes in total)", count, 
+					this.linkWeights.getWeightsChanged()));
+		}
 	}
 	
-	private void bellmanFord(Host srcHost) {
+	/**
+	 * Apply the last change that happened to a host. The host's address and
+	 * attachment point are read once here and cached in the host index.
+	 * @param device information about the host
+	 * @param type what happened to the host
+	 * @return the host's entry, if rules for it must be installed; otherwise
+	 *         null
+	 */
+	private HostIndex.Entry deviceChanged(IDevice device, 
+			RoutingEvent.Type type)
+	{
+		Host host = new Host(device, this.floodlightProv);
 		
-		// initially, add all switches to a switch list
-		List<BellFordVertex> switches = new ArrayList<BellFordVertex>();
-		IOFSwitch srcSw = srcHost.getSwitch();
+		// We only care about a host if we know its IP
+		Integer ip = host.getIPv4Address();
+		if (null == ip)
+		{ return null; }
 		
-		// initially set all costs to infinity, except for the source
-		// which is set to 0
-		for (IOFSwitch sw : this.getSwitches().values()) {
-			BellFordVertex tempVertex = new BellFordVertex();
-			if (sw.equals(srcSw))
-				tempVertex = new BellFordVertex(sw, 0);
-			else
-				tempVertex = new BellFordVertex(sw, INFINITY);
-			switches.add(tempVertex);
+		IOFSwitch sw = host.getSwitch();
+		if (RoutingEvent.Type.DEVICE_REMOVED == type || null == sw)
+		{
+			log.info(String.format("Host %s is no longer attached to a "
+					+ "switch", host.getName()));
+			HostIndex.Entry previous = this.hosts.remove(device);
+			if (previous != null)
+			{ this.removeHost(previous); }
+			return null;
 		}
 		
-		// find and store the neighbors for each node
-		establishNeighbors(switches);
+		HostIndex.Entry entry = new HostIndex.Entry(host, ip, sw.getId(),
+				host.getPort());
+		HostIndex.Entry previous = this.hosts.put(device, entry);
+		if (entry.sameLocation(previous))
+		{ return null; }
 		
-		// relax the weights
-		for (int i = 2; i < switches.size(); i++) {
-			
-			// go through all links and recalculate costs to each destination from u
-			for (BellFordVertex u: switches) {
-				
-				// for each port for a given switch u, compare the weight of
-				// u to all of its neighbors. If there is a neighbor that 
-				// has a less expensive path, go through that neighbor
-				for (int port: u.getSwitch().getEnabledPortNumbers()) {
-				
-					BellFordVertex neighbor = u.getNeighbors().get(port);
-					if (u.getCost() > neighbor.getCost() + 1) {
-						u.setCost(neighbor.getCost() + 1);
-						u.setOutPort(port);
-					}
-					
+		// Rules for an address the host no longer has are removed; rules 
+		// towards the host's old location are replaced when rules towards 
+		// its new location are installed
+		if (previous != null && previous.getIp() != entry.getIp())
+		{ this.removeHost(previous); }
+		if (RoutingEvent.Type.DEVICE_MOVED == type)
+		{
+			log.info(String.format("Host %s moved to s%d:%d", host.getName(),
+					entry.getDpid(), entry.getPort()));
+		}
+		else
+		{ log.info(String.format("Host %s added", host.getName())); }
+		return entry;
+	}
+	
+	/**
+	 * Install rules for a host along the shortest-path tree towards its
+	 * switch. The current routes already hold that tree, since trees are 
+	 * brought up to date, and published, before hosts are handled.
+	 * @param host the host whose rules should be installed
+	 */
+	private void computeRoutes(HostIndex.Entry host)
+	{
+		RouteTree tree = this.routes.get().getTree(host.getDpid());
+		if (null == tree)
+		{ return; }
+		DestinationRules rules = this.getDestinationRules(tree, 
+				this.getGeneration(host.getDpid()));
+		this.installDestination(rules);
+		this.installHostRules(host, rules);
+		this.pruneDestination(rules);
+	}
+	
+	/**
+	 * Bring the shortest-path trees up to date after links or switches have
+	 * been removed from or added to the graph, and publish them as the
+	 * current routes. Small changes are repaired in place; large changes,
+	 * and new switches, are recomputed from scratch in parallel.
+	 * @param removed links removed from the graph
+	 * @param added links added to the graph
+	 * @return DPIDs of the switches whose trees changed
+	 */
+	private Set<Long> updateRoutes(List<Edge> removed, List<Edge> added)
+	{
+		Map<Long,RouteTree> trees = 
+				new HashMap<Long,RouteTree>();
+		int missing = 0;
+		for (Map.Entry<Long,RouteTree> entry 
+				: this.routes.get().getTrees().entrySet())
+		{
+			// Trees towards switches that are gone are dropped
+			if (this.graph.getIndex(entry.getKey()) >= 0)
+			{ trees.put(entry.getKey(), entry.getValue()); }
+		}
+		for (int index = 0; index < this.graph.getCapacity(); index++)
+		{
+			if (this.graph.contains(index) 
+					&& !trees.containsKey(this.graph.getDpid(index)))
+			{ missing++; }
+		}
+		
+		Set<Long> changed = new HashSet<Long>();
+		int changes = removed.size() + added.size();
+		if (this.hierarchy != null)
+		{
+			// Only areas the changes touched have their trees recomputed;
+			// the trees of the others are the same objects as before
+			Map<Long,RouteTree> previous = trees;
+			long computed = this.hierarchy.getTreesComputed();
+			trees = this.hierarchy.update(this.graph, removed, added);
+			for (Map.Entry<Long,RouteTree> entry : trees.entrySet())
+			{
+				RouteTree tree = previous.get(entry.getKey());
+				if (tree != entry.getValue() || (this.useEcmp 
+						&& this.treeRepairer.isOnEqualCostPath(tree, removed, 
+								added)))
+				{ changed.add(entry.getKey()); }
+			}
+			this.treesRecomputed += this.hierarchy.getTreesComputed() 
+					- computed;
+		}
+		else if (missing > 1 || changes > Math.max(1, 
+				this.graph.getLinkCount() / MAX_REPAIR_FRACTION))
+		{
+			// Too much has changed for repairs to pay off
+			trees = new HashMap<Long,RouteTree>(
+					this.allPairs.computeAll(this.graph));
+			changed.addAll(trees.keySet());
+			this.treesRecomputed += trees.size();
+		}
+		else
+		{
+			for (Map.Entry<Long,RouteTree> entry : trees.entrySet())
+			{
+				RouteTree tree = entry.getValue();
+				if (!this.treeRepairer.isAffected(tree, removed, added))
+				{ 
+					// The recorded paths still hold, but the set of equal-cost
+					// next hops may have changed
+					if (this.useEcmp && this.treeRepairer.isOnEqualCostPath(
+							tree, removed, added))
+					{ changed.add(entry.getKey()); }
+					continue; 
 				}
 				
+				// Published trees are never modified, so repair a copy
+				ShortestPathTree repaired = tree.copy();
+				this.treeRepairer.linksRemoved(repaired, removed);
+				this.treeRepairer.linksAdded(repaired, added);
+				entry.setValue(repaired);
+				changed.add(entry.getKey());
 			}
+			this.treesRepaired += changed.size();
 			
+			// Paths towards a new switch have not been computed before
+			for (int index = 0; index < this.graph.getCapacity(); index++)
+			{
+				long dpid = this.graph.getDpid(index);
+				if (!this.graph.contains(index) || trees.containsKey(dpid))
+				{ continue; }
+				trees.put(dpid, this.pathEngine.computeTree(this.graph, index));
+				changed.add(dpid);
+				this.treesRecomputed++;
+			}
 		}
 		
-		// one iteration for srcSw is complete update these next hops into their 
-		// respective tables
+		this.routes.set(new RoutingSnapshot(this.graph, trees, 
+				this.getKnownHosts(), this.routes.get().getVersion() + 1));
+		log.info(String.format("%d links removed and %d added; updated "
+				+ "%d of %d trees (%d repaired, %d recomputed in total)",
+				removed.size(), added.size(), changed.size(), trees.size(),
+				this.treesRepaired, this.treesRecomputed));
+		return changed;
+	}
+	
+	/**
+	 * Install rules for every host attached to one of a set of switches.
+	 * 
+	 * With consistent updates, a destination whose label rules or groups 
+	 * change gets a new generation of them, under a label and group ID that 
+	 * differ from the current ones in their generation bit. The new 
+	 * generation is installed in every switch first; only once every switch
+	 * has confirmed it do edge switches start tagging packets with the new 
+	 * label, and only once they have confirmed that is the old generation 
+	 * removed. A packet therefore follows either the old rules or the new 
+	 * ones, never a mix of both.
+	 * @param switchIds DPIDs of the switches whose trees changed
+	 */
+	private void installRoutes(Set<Long> switchIds)
+	{
+		RoutingSnapshot current = this.routes.get();
+		List<DestinationRules> updated = new ArrayList<DestinationRules>();
+		List<DestinationRules> retired = new ArrayList<DestinationRules>();
+		for (Long dpid : switchIds)
+		{
+			RouteTree tree = current.getTree(dpid);
+			List<HostIndex.Entry> attached = this.hosts.getBySwitch(dpid);
+			if (null == tree || attached.isEmpty())
+			{ continue; }
+			
+			DestinationRules rules = this.getDestinationRules(tree, 
+					this.getGeneration(dpid));
+			if (this.useConsistentUpdates && rules.label != 0
+					&& !this.isInstalled(rules))
+			{
+				DestinationRules next = this.getDestinationRules(tree, 
+						1 - rules.generation);
+				this.installDestination(next);
+				updated.add(next);
+				retired.add(rules);
+				continue;
+			}
+			
+			// Only host rules change, so they can be changed in place
+			this.installDestination(rules);
+			for (HostIndex.Entry host : attached)
+			{ this.installHostRules(host, rules); }
+			this.pruneDestination(rules);
+		}
+		if (updated.isEmpty())
+		{ return; }
+		
+		// Edge switches tag packets with the new labels once every switch
+		// can forward them
+		this.awaitWrites();
+		for (DestinationRules rules : updated)
+		{
+			long dpid = rules.tree.getRootDpid();
+			for (HostIndex.Entry host : this.hosts.getBySwitch(dpid))
+			{ this.installHostRules(host, rules); }
+			this.generations.put(dpid, rules.generation);
+		}
 		
-		for (BellFordVertex dstSw: switches) {
+		// No new packet carries the old labels once edge switches have 
+		// confirmed the change
+		this.awaitWrites();
+		for (DestinationRules rules : retired)
+		{ this.removeDestination(rules); }
+		for (DestinationRules rules : updated)
+		{ this.pruneDestination(rules); }
+		log.info(String.format("Moved %d destinations to a new generation of "
+				+ "rules", updated.size()));
+	}
+	
+	/**
+	 * Compute the rules and groups that forward packets towards a tree's 
+	 * root. Every switch that can reach the root gets them.
+	 * 
+	 * When labels are used, only edge switches get rules for the root's 
+	 * hosts; they tag packets with the label of the root. Every switch gets a
+	 * rule that forwards on that label, which the last switch before the 
+	 * root pops.
+	 * @param tree shortest-path tree rooted at the destination switch
+	 * @param generation generation of the rules; 0 unless rules are updated
+	 *        consistently
+	 */
+	private DestinationRules getDestinationRules(RouteTree tree,
+			int generation)
+	{
+		int destinationId = this.getDestinationId(tree.getRootDpid());
+		boolean labelled = (this.useLabels 
+				&& destinationId <= this.getMaxLabel());
+		DestinationRules rules = new DestinationRules(tree, generation,
+				destinationId | generation * GROUP_GENERATION_BIT,
+				(short)(labelled ? destinationId 
+						| generation * LABEL_GENERATION_BIT : 0));
+		
+		TopologyGraph graph = tree.getGraph();
+		for (int index = 0; index < graph.getCapacity(); index++)
+		{
+			if (!graph.contains(index) || !tree.isReachable(index)
+					|| index == tree.getRoot())
+			{ continue; }
+			long dpid = graph.getDpid(index);
 			
-			if (!dstSw.equals(srcSw)) {
-				
-				OFInstructionApplyActions instructions = new OFInstructionApplyActions();
-				
-				// create a new action with appropriate outgoing port
-				OFActionOutput action = new OFActionOutput();
-				action.setPort(dstSw.getOutPort());
-				
-				// add action to the list of instructions
-				List<OFAction> actionList = new ArrayList<OFAction>();
-				actionList.add(action);
-				
-				instructions.setActions(actionList);
-				
-
-				// Construct IP packet
-				OFMatch matchCriteria = new OFMatch();
-				
-				matchCriteria.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
-				matchCriteria.setNetworkDestination(srcHost.getIPv4Address());
-				
-				
-				/*************************************************8**********
-				 * TODO: Again, I don't think this is right. How do we get a 
-				 * List<OFInstruction from the actionList?
-				 * 
-				 ************************************************************/
-				
-				/**
-				 * 
-				 * I think in this way:
-				 */	
-				
-				List<OFInstruction> instructionList = Arrays.asList((OFInstruction)new OFInstructionApplyActions().setActions(actionList));
-				
-				SwitchCommands.installRule(dstSw.getSwitch(), this.table, SwitchCommands.DEFAULT_PRIORITY,
-			            matchCriteria, instructionList);
+			boolean penultimate = (tree.getNextHop(index) == tree.getRoot());
+			RuleAction nextHop = RuleAction.output(tree.getOutPort(index));
+			if (this.useGroups)
+			{
+				// Tagged packets must only reach the root from the switches
+				// that pop the tag
+				if (labelled && penultimate)
+				{ rules.groups.put(dpid, RuleGroup.indirect(nextHop)); }
+				else
+				{
+					int excludedHop = (labelled ? tree.getRoot() 
+							: ShortestPathTree.NONE);
+					rules.groups.put(dpid, this.getNextHopGroup(tree, index, 
+							excludedHop));
+				}
+				nextHop = RuleAction.group(rules.groupId);
+			}
+			if (!labelled)
+			{ 
+				rules.hostRules.put(dpid, nextHop); 
+				continue;
+			}
 			
+			// The root expects untagged packets
+			rules.labelRules.put(dpid, (penultimate ? nextHop.withPopVlan() 
+					: nextHop));
+			if (this.edgeSwitches.contains(dpid))
+			{
+				rules.hostRules.put(dpid, (penultimate ? nextHop 
+						: nextHop.withPushVlan(rules.label)));
 			}
-
 		}
+		return rules;
 	}
 	
-	private void removeHost(Host host) {
-		
-		// set up match information to be used for removal
-		OFMatch matchCriteria = new OFMatch();
-		matchCriteria.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, host.getIPv4Address());
+	/**
+	 * Check whether the label rules and groups towards a destination are 
+	 * already installed as computed.
+	 */
+	private boolean isInstalled(DestinationRules rules)
+	{
+		if (this.useGroups 
+				&& !this.groupTable.isSynced(rules.groupId, rules.groups))
+		{ return false; }
+		return (0 == rules.label || this.flowTable.isSynced(
+				RuleMatch.vlan(LABEL_PRIORITY, rules.label), rules.labelRules));
+	}
+	
+	/**
+	 * Install the groups and label rules that forward packets towards a 
+	 * destination. Groups must exist before the rules that use them.
+	 */
+	private void installDestination(DestinationRules rules)
+	{
+		if (this.useGroups)
+		{ this.groupTable.update(rules.groupId, rules.groups); }
+		if (rules.label != 0)
+		{ 
+			this.flowTable.sync(RuleMatch.vlan(LABEL_PRIORITY, rules.label), 
+					rules.labelRules); 
+		}
+	}
+	
+	/**
+	 * Install a rule in every switch that needs one to forward packets to a
+	 * host, and remove the host's rules from every other switch.
+	 * @param host the host whose rules should be installed
+	 * @param rules rules towards the host's switch
+	 */
+	private void installHostRules(HostIndex.Entry host, DestinationRules rules)
+	{
+		// Rules for prefixes are compiled for every host at once, before the
+		// rules are sent
+		if (this.useAggregation)
+		{
+			this.destinationRules.put(rules.tree.getRootDpid(), rules);
+			this.prefixRulesChanged = true;
+			return;
+		}
 		
-		// remove host from all switches
-		for (IOFSwitch swtch: getSwitches().values()) {
-			
-			SwitchCommands.removeRules(swtch, this.table, matchCriteria);
+		// The host's own switch delivers directly to the host
+		Map<Long,RuleAction> desired = 
+				new HashMap<Long,RuleAction>(rules.hostRules);
+		desired.put(rules.tree.getRootDpid(), 
+				RuleAction.output(host.getPort()));
+		this.flowTable.sync(this.getHostMatch(host), desired);
+	}
+	
+	/**
+	 * Remove groups towards a destination from switches that no longer use
+	 * them. Groups must outlive the rules that use them.
+	 */
+	private void pruneDestination(DestinationRules rules)
+	{
+		if (this.useGroups)
+		{ this.groupTable.prune(rules.groupId, rules.groups); }
+	}
+	
+	/**
+	 * Remove the label rules and groups of a generation that is no longer 
+	 * used from every switch.
+	 */
+	private void removeDestination(DestinationRules rules)
+	{
+		if (rules.label != 0)
+		{ 
+			this.flowTable.sync(RuleMatch.vlan(LABEL_PRIORITY, rules.label), 
+					new HashMap<Long,RuleAction>()); 
+		}
+		if (this.useGroups)
+		{ 
+			this.groupTable.prune(rules.groupId, 
+					new HashMap<Long,RuleGroup>()); 
+		}
+	}
+	
+	/**
+	 * Build the group through which a switch forwards packets towards a
+	 * tree's root. With ECMP, the group spreads flows over every next hop 
+	 * on a shortest path. Otherwise, with failover, the group switches to a
+	 * loop-free alternate when the next hop's port goes down.
+	 * @param tree shortest-path tree rooted at the destination switch
+	 * @param index index of the switch
+	 * @param excludedHop index of a next switch not to forward to, or NONE
+	 */
+	private RuleGroup getNextHopGroup(RouteTree tree, int index,
+			int excludedHop)
+	{
+		RuleAction primary = RuleAction.output(tree.getOutPort(index));
+		List<Edge> links = new ArrayList<Edge>();
+		if (this.useEcmp)
+		{ links = tree.getEqualCostLinks(index, excludedHop); }
+		if (links.size() <= 1)
+		{
+			if (!this.useFailover)
+			{ return RuleGroup.indirect(primary); }
 			
+			// Distances in trees built from areas are not shortest 
+			// distances, so only neighbors closer to the root are safe
+			RouteTree towardsSwitch = null;
+			if (null == this.hierarchy)
+			{
+				towardsSwitch = this.routes.get().getTree(
+						tree.getGraph().getDpid(index));
+			}
+			Edge backup = tree.getLoopFreeAlternate(index, towardsSwitch, 
+					excludedHop);
+			if (null == backup)
+			{ return RuleGroup.indirect(primary); }
+			return RuleGroup.failover(Arrays.asList(primary, 
+					RuleAction.output(backup.getSrcPort())));
+		}
+		
+		double maxPaths = 0;
+		for (Edge link : links)
+		{ maxPaths = Math.max(maxPaths, tree.getPathCount(link.getDst())); }
+		
+		List<RuleAction> actions = new ArrayList<RuleAction>();
+		int[] weights = new int[links.size()];
+		for (int i = 0; i < links.size(); i++)
+		{
+			Edge link = links.get(i);
+			actions.add(RuleAction.output(link.getSrcPort()));
+			weights[i] = 1;
+			if (this.weightByPaths)
+			{
+				weights[i] = (int)Math.max(1, Math.round(MAX_BUCKET_WEIGHT 
+						* tree.getPathCount(link.getDst()) / maxPaths));
+			}
+		}
+		return RuleGroup.select(actions, weights);
+	}
+	
+	/**
+	 * Get the number that identifies a switch as the destination of packets.
+	 * It is used as the ID of the group that forwards packets towards the
+	 * switch, and as the switch's label. The same number is used in every 
+	 * switch, and is kept if the switch leaves and rejoins.
+	 * @param dpid DPID of the destination switch
+	 */
+	private int getDestinationId(long dpid)
+	{
+		Integer destinationId = this.destinationIds.get(dpid);
+		if (null == destinationId)
+		{
+			destinationId = this.destinationIds.size() + 1;
+			this.destinationIds.put(dpid, destinationId);
+			if (this.useLabels && destinationId > this.getMaxLabel())
+			{
+				log.warn(String.format("No label left for s%d; rules for its "
+						+ "hosts are installed in every switch", dpid));
+			}
+		}
+		return destinationId;
+	}
+	
+	/**
+	 * Get the largest destination ID that can be used as a label.
+	 */
+	private int getMaxLabel()
+	{ 
+		return (this.useConsistentUpdates ? LABEL_GENERATION_BIT - 1 
+				: MAX_LABEL); 
+	}
+	
+	/**
+	 * Get the generation of the rules forwarding towards a switch.
+	 * @param dpid DPID of the destination switch
+	 */
+	private int getGeneration(long dpid)
+	{
+		Integer generation = this.generations.get(dpid);
+		return (null == generation ? 0 : generation);
+	}
+	
+	/**
+	 * Get every host's address and attachment point, including those of 
+	 * restored hosts that have not been rediscovered.
+	 */
+	private Collection<HostIndex.Entry> getKnownHosts()
+	{
+		if (this.restoredHosts.isEmpty())
+		{ return this.hosts.getAll(); }
+		List<HostIndex.Entry> known = 
+				new ArrayList<HostIndex.Entry>(this.hosts.getAll());
+		for (HostIndex.Entry host : this.restoredHosts)
+		{
+			if (null == this.hosts.getByIp(host.getIp()))
+			{ known.add(host); }
 		}
+		return known;
 	}
 	
-	private List<BellFordVertex> establishNeighbors(List<BellFordVertex> switches) {
+	/**
+	 * Get the DPIDs of the switches that have hosts attached.
+	 */
+	private Set<Long> getEdgeSwitches()
+	{
+		Set<Long> edges = new HashSet<Long>();
+		for (long dpid : this.hosts.getSwitches())
+		{ edges.add(dpid); }
+		return edges;
+	}
+	
+	/**
+	 * Remove the rules for a host from every switch.
+	 * @param host the host whose rules should be removed
+	 */
+	private void removeHost(HostIndex.Entry host)
+	{ 
+		if (this.reactiveRouter != null)
+		{
+			// Rules installed on demand are not tracked, so ask every switch
+			// to remove whatever rules it has for the host
+			OFMatch matchCriteria = this.getHostMatch(host).toOFMatch();
+			for (Long dpid : this.getSwitches().keySet())
+			{
+				FlowModBatch batch = this.writer.get(dpid);
+				if (batch != null)
+				{ batch.removeRules(this.table, matchCriteria); }
+			}
+			return;
+		}
+		if (this.useAggregation)
+		{
+			this.prefixRulesChanged = true;
+			return;
+		}
+		this.flowTable.sync(this.getHostMatch(host), 
+				new HashMap<Long,RuleAction>()); 
+	}
+	
+	/**
+	 * Replace the rules for host IPs with as few rules for address prefixes
+	 * as possible, and install them in switches whose rules changed.
+	 * 
+	 * Addresses are first compiled into prefixes that each map to one 
+	 * destination switch, the same in every switch. A packet for an address
+	 * that belongs to no host is therefore forwarded towards a single 
+	 * destination switch, and cannot loop. Each switch forwards a prefix 
+	 * the way it forwards packets for the prefix's destination; only the 
+	 * destination itself needs more rules, compiled from the ports of the 
+	 * hosts whose addresses fall in the prefix.
+	 */
+	private void installPrefixRules()
+	{
+		this.prefixRulesChanged = false;
+		RoutingSnapshot current = this.routes.get();
+		Map<Integer,Long> destinations = new HashMap<Integer,Long>();
+		for (HostIndex.Entry host : this.hosts.getAll())
+		{
+			if (this.destinationRules.containsKey(host.getDpid())
+					&& current.getTree(host.getDpid()) != null)
+			{ destinations.put(host.getIp(), host.getDpid()); }
+		}
+		List<PrefixCompiler.Prefix<Long>> prefixes = 
+				PrefixCompiler.compile(destinations, 0, 0);
 		
-		for (BellFordVertex u: switches) {
-			for (int port: u.getSwitch().getEnabledPortNumbers()) {
-				for (Link link: this.getLinks()) {
-					if (link.getSrc() == port) {
-						
-						for (BellFordVertex v: switches) {
-							if (v.getSwitch().getEnabledPortNumbers().contains(link.getDst())) {
-								
-								u.addNeighbor(port, u);
-								break;
-							}
-						}
-						
-					}
+		// A host belongs to the longest prefix that covers its address
+		Map<Long,Integer> prefixIndex = new HashMap<Long,Integer>();
+		List<Map<Integer,RuleAction>> ports = 
+				new ArrayList<Map<Integer,RuleAction>>();
+		for (int i = 0; i < prefixes.size(); i++)
+		{
+			PrefixCompiler.Prefix<Long> prefix = prefixes.get(i);
+			prefixIndex.put(getPrefixKey(prefix.getAddress(), 
+					prefix.getLength()), i);
+			ports.add(new HashMap<Integer,RuleAction>());
+		}
+		for (HostIndex.Entry host : this.hosts.getAll())
+		{
+			if (!destinations.containsKey(host.getIp()))
+			{ continue; }
+			for (int length = 32; length >= 0; length--)
+			{
+				Integer i = prefixIndex.get(getPrefixKey(host.getIp(), length));
+				if (i != null)
+				{
+					ports.get(i).put(host.getIp(), 
+							RuleAction.output(host.getPort()));
+					break;
 				}
 			}
-			
 		}
 		
-		return switches;
+		Map<Long,Map<RuleMatch,RuleAction>> desired = 
+				new HashMap<Long,Map<RuleMatch,RuleAction>>();
+		int ruleCount = 0;
+		for (int i = 0; i < prefixes.size(); i++)
+		{
+			PrefixCompiler.Prefix<Long> prefix = prefixes.get(i);
+			DestinationRules rules = this.destinationRules.get(
+					prefix.getValue());
+			RuleMatch match = this.getPrefixMatch(prefix.getAddress(), 
+					prefix.getLength());
+			for (Map.Entry<Long,RuleAction> entry 
+					: rules.hostRules.entrySet())
+			{ 
+				getSwitchRules(desired, entry.getKey()).put(match, 
+						entry.getValue()); 
+			}
+			ruleCount += rules.hostRules.size();
+			
+			Map<RuleMatch,RuleAction> rootRules = getSwitchRules(desired, 
+					prefix.getValue());
+			for (PrefixCompiler.Prefix<RuleAction> local 
+					: PrefixCompiler.compile(ports.get(i), 
+							prefix.getAddress(), prefix.getLength()))
+			{
+				rootRules.put(this.getPrefixMatch(local.getAddress(), 
+						local.getLength()), local.getValue());
+				ruleCount++;
+			}
+		}
 		
+		// Rules for host IPs and prefixes no longer needed are removed once
+		// the new ones are queued, so no address is left without a rule
+		Set<Long> switchIds = this.flowTable.getSwitches();
+		switchIds.addAll(desired.keySet());
+		for (Long dpid : switchIds)
+		{
+			Map<RuleMatch,RuleAction> rules = getSwitchRules(desired, dpid);
+			for (Map.Entry<RuleMatch,RuleAction> entry : rules.entrySet())
+			{ this.flowTable.setRule(dpid, entry.getKey(), entry.getValue()); }
+			for (RuleMatch match : this.flowTable.getRules(dpid).keySet())
+			{
+				if (0 == match.getVlan() && !rules.containsKey(match))
+				{ this.flowTable.removeRule(dpid, match); }
+			}
+		}
+		log.info(String.format("Compiled rules for %d hosts into %d prefixes "
+				+ "and %d rules", destinations.size(), prefixes.size(), 
+				ruleCount));
 	}
 	
+	/**
+	 * Get the rules a switch should have, adding an empty set if needed.
+	 */
+	private static Map<RuleMatch,RuleAction> getSwitchRules(
+			Map<Long,Map<RuleMatch,RuleAction>> rules, long dpid)
+	{
+		Map<RuleMatch,RuleAction> switchRules = rules.get(dpid);
+		if (null == switchRules)
+		{
+			switchRules = new HashMap<RuleMatch,RuleAction>();
+			rules.put(dpid, switchRules);
+		}
+		return switchRules;
+	}
+	
+	/**
+	 * Get a key that identifies a prefix of addresses.
+	 * @param ip any address in the prefix
+	 * @param length length of the prefix
+	 */
+	private static long getPrefixKey(int ip, int length)
+	{ 
+		return ((ip & PrefixCompiler.mask(length)) & 0xffffffffL) << 6 
+				| length; 
+	}
+	
+	/**
+	 * Remove the rules installed on demand for every host whose paths may 
+	 * have changed.
+	 * @param switchIds DPIDs of the switches whose trees changed
+	 * @param moved hosts that were added or moved
+	 */
+	private void removeReactiveRoutes(Set<Long> switchIds, 
+			List<HostIndex.Entry> moved)
+	{
+		for (Long dpid : switchIds)
+		{
+			for (HostIndex.Entry host : this.hosts.getBySwitch(dpid))
+			{ this.removeHost(host); }
+		}
+		for (HostIndex.Entry host : moved)
+		{
+			if (!switchIds.contains(host.getDpid()))
+			{ this.removeHost(host); }
+		}
+	}
+	
+	/**
+	 * Get the match criteria for rules that forward packets to a host.
+	 */
+	private RuleMatch getHostMatch(HostIndex.Entry host)
+	{ return new RuleMatch(SwitchCommands.DEFAULT_PRIORITY, host.getIp()); }
+	
+	/**
+	 * Get the match criteria for rules that forward packets to a prefix of
+	 * addresses.
+	 */
+	private RuleMatch getPrefixMatch(int ip, int length)
+	{ 
+		return RuleMatch.prefix(
+				(short)(SwitchCommands.DEFAULT_PRIORITY + length), ip, length); 
+	}
+	
+	/**
+	 * Read an integer setting from the module's configuration.
+	 * @param config the module's configuration
+	 * @param name name of the setting
+	 * @param defaultValue value to use if the setting is absent
+	 */
+	private static int parseConfig(Map<String,String> config, String name,
+			int defaultValue)
+	{
+		String value = config.get(name);
+		if (null == value || value.trim().isEmpty())
+		{ return defaultValue; }
+		return Integer.parseInt(value.trim());
+	}
+	
+	/**
+	 * Read a decimal setting from the module's configuration.
+	 * @param config the module's configuration
+	 * @param name name of the setting
+	 * @param defaultValue value to use if the setting is absent
+	 */
+	private static double parseConfig(Map<String,String> config, String name,
+			double defaultValue)
+	{
+		String value = config.get(name);
+		if (null == value || value.trim().isEmpty())
+		{ return defaultValue; }
+		return Double.parseDouble(value.trim());
+	}
 }
@@ -0,0 +1,348 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.openflow.protocol.statistics.OFPortStatisticsReply;
+import org.openflow.protocol.statistics.OFPortStatisticsRequest;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.core.ImmutablePort;
+
+/**
+ * Weights links by the speed of the port they leave and by how busy that
+ * port is. Ports are polled for the bytes they have sent; each poll turns
+ * the bytes sent since the last one into a utilization, smoothed with an
+ * exponentially weighted moving average. A link's weight is the reference
+ * speed divided by its port's speed, scaled up as the port fills:
+ * {@code weight = REFERENCE_SPEED / speed / (1 - utilization)}, with the
+ * utilization capped so a full port costs ten times an idle one.
+ * <p>
+ * A port's weight only changes once the weight its load calls for differs
+ * from the current one by more than a threshold, so routes do not flap
+ * when load hovers around a boundary. Replies to a poll are read at the
+ * next poll, so nothing waits for switches to answer. The rate at which 
+ * each port receives is smoothed the same way, for modules that want to
+ * know how much the host behind an edge port sends. Weights and receive
+ * rates can be read from any thread; everything else must be called from 
+ * a single thread.
+ */
+public class LinkWeights 
+{
+	// Interface to the logging system
+    private static Logger log =
+    		LoggerFactory.getLogger(LinkWeights.class.getSimpleName());
+	
+	// Port speed, in bits per second, whose links have a weight of 1
+	private static final double REFERENCE_SPEED = 1e11;
+	
+	// Speed assumed for ports that do not report one, and the lowest speed
+	// used, in bits per second
+	private static final double DEFAULT_SPEED = 1e9;
+	private static final double MIN_SPEED = 1e6;
+	
+	// Highest utilization counted, so a weight grows at most tenfold
+	private static final double MAX_UTILIZATION = 0.9;
+	
+	// Port number that stands for every port in a request
+	private static final int OFPP_ANY = 0xffffffff;
+	
+	/**
+	 * Load measured on one port.
+	 */
+	private static class PortLoad
+	{
+		// Bytes the port had sent and received at the last sample, and 
+		// when, in milliseconds since the epoch; -1 before the first sample
+		private long bytes;
+		private long receivedBytes;
+		private long sampledAt;
+		
+		// Speed of the port, in bits per second
+		private double speed;
+		
+		// Smoothed share of the port's speed in use, between 0 and 1
+		private double utilization;
+		
+		// Smoothed rate at which the port receives, in bits per second
+		private volatile double receiveRate;
+		
+		// Weight currently given to the link leaving the port
+		private volatile int weight;
+		
+		PortLoad(double speed)
+		{
+			this.bytes = -1;
+			this.receivedBytes = -1;
+			this.sampledAt = -1;
+			this.speed = speed;
+			this.utilization = 0;
+			this.receiveRate = 0;
+			this.weight = getWeight(speed, 0);
+		}
+	}
+	
+	/**
+	 * Replies awaited from a switch.
+	 */
+	private static class Poll
+	{
+		// Port statistics
+		private final Future<List<OFStatistics>> reply;
+		
+		// When the request was sent, in milliseconds since the epoch
+		private final long sentAt;
+		
+		Poll(Future<List<OFStatistics>> reply, long sentAt)
+		{
+			this.reply = reply;
+			this.sentAt = sentAt;
+		}
+	}
+	
+	// Interface to Floodlight core for looking up switches' ports
+	private IFloodlightProviderService floodlightProv;
+	
+	// Weight of the newest sample in the moving average, between 0 and 1
+	private final double smoothing;
+	
+	// Smallest relative change in weight that is applied
+	private final double threshold;
+	
+	// Load on each port, keyed by DPID and then by port number
+	private Map<Long,Map<Integer,PortLoad>> ports;
+	
+	// Replies awaited from each switch, keyed by DPID
+	private Map<Long,Poll> pending;
+	
+	// Number of weights changed
+	private long weightsChanged;
+	
+	/**
+	 * Create link weights with no port measured yet.
+	 * @param floodlightProv Floodlight module to look up switches by DPID
+	 * @param smoothing weight of the newest sample in the moving average,
+	 *        between 0 and 1
+	 * @param threshold smallest relative change in weight that is applied
+	 */
+	public LinkWeights(IFloodlightProviderService floodlightProv,
+			double smoothing, double threshold)
+	{
+		this.floodlightProv = floodlightProv;
+		this.smoothing = Math.min(1, Math.max(0, smoothing));
+		this.threshold = Math.max(0, threshold);
+		this.ports = new ConcurrentHashMap<Long,Map<Integer,PortLoad>>();
+		this.pending = new HashMap<Long,Poll>();
+		this.weightsChanged = 0;
+	}
+	
+	public long getWeightsChanged()
+	{ return this.weightsChanged; }
+	
+	/**
+	 * Get the weight of the link leaving a port.
+	 * @param dpid DPID of the switch
+	 * @param port the port the link leaves
+	 */
+	public int getWeight(long dpid, int port)
+	{ 
+		PortLoad load = this.findPortLoad(dpid, port);
+		return (null == load ? getWeight(this.getSpeed(dpid, port), 0) 
+				: load.weight);
+	}
+	
+	/**
+	 * Get the smoothed rate at which a port receives.
+	 * @param dpid DPID of the switch
+	 * @param port the port
+	 * @return the rate in bits per second; 0 if the port was not polled
+	 */
+	public double getReceiveRate(long dpid, int port)
+	{
+		PortLoad load = this.findPortLoad(dpid, port);
+		return (null == load ? 0 : load.receiveRate);
+	}
+	
+	/**
+	 * Read the replies to the last poll, and poll the switches again.
+	 * @param switches the switches to poll
+	 * @return new weight of each port whose weight changed, keyed by DPID
+	 *         and then by port number
+	 */
+	public Map<Long,Map<Integer,Integer>> poll(Collection<IOFSwitch> switches)
+	{
+		Map<Long,Map<Integer,Integer>> changed =
+				new HashMap<Long,Map<Integer,Integer>>();
+		for (Map.Entry<Long,Poll> entry : this.pending.entrySet())
+		{
+			List<OFStatistics> reply = getReply(entry.getValue().reply);
+			if (null == reply)
+			{ continue; }
+			long dpid = entry.getKey();
+			for (OFStatistics stats : reply)
+			{
+				if (!(stats instanceof OFPortStatisticsReply))
+				{ continue; }
+				OFPortStatisticsReply port = (OFPortStatisticsReply)stats;
+				PortLoad load = this.getPortLoad(dpid, port.getPortNumber());
+				this.sample(load, port.getTransmitBytes(), 
+						port.getReceiveBytes(), entry.getValue().sentAt);
+				load.speed = this.getSpeed(dpid, port.getPortNumber());
+				
+				int weight = getWeight(load.speed, load.utilization);
+				if (Math.abs(weight - load.weight)
+						<= this.threshold * load.weight)
+				{ continue; }
+				load.weight = weight;
+				Map<Integer,Integer> switchChanges = changed.get(dpid);
+				if (null == switchChanges)
+				{
+					switchChanges = new HashMap<Integer,Integer>();
+					changed.put(dpid, switchChanges);
+				}
+				switchChanges.put(port.getPortNumber(), weight);
+				this.weightsChanged++;
+			}
+		}
+		
+		this.pending.clear();
+		for (IOFSwitch sw : switches)
+		{
+			OFPortStatisticsRequest body = new OFPortStatisticsRequest();
+			body.setPortNumber(OFPP_ANY);
+			try
+			{
+				this.pending.put(sw.getId(), new Poll(sw.queryStatistics(
+						SwitchCommands.buildStatisticsRequest(
+								OFStatisticsType.PORT, body)),
+						System.currentTimeMillis()));
+			}
+			catch (IOException e)
+			{
+				log.warn(String.format("Failed to poll the ports of s%d",
+						sw.getId()), e);
+			}
+		}
+		return changed;
+	}
+	
+	/**
+	 * Forget the ports of a switch. Used when the switch leaves the network.
+	 * @param dpid DPID of the switch
+	 */
+	public void switchRemoved(long dpid)
+	{
+		this.ports.remove(dpid);
+		this.pending.remove(dpid);
+	}
+	
+	/**
+	 * Fold the bytes a port has sent into its smoothed utilization, and the
+	 * bytes it has received into its smoothed receive rate.
+	 */
+	private void sample(PortLoad load, long bytes, long receivedBytes,
+			long sampledAt)
+	{
+		// Counters start again from zero when a switch reconnects
+		long elapsed = sampledAt - load.sampledAt;
+		if (load.bytes >= 0 && bytes >= load.bytes && elapsed > 0)
+		{
+			double rate = 8000.0 * (bytes - load.bytes) / elapsed;
+			double utilization = Math.min(1, rate / load.speed);
+			load.utilization = this.smoothing * utilization
+					+ (1 - this.smoothing) * load.utilization;
+		}
+		if (load.receivedBytes >= 0 && receivedBytes >= load.receivedBytes
+				&& elapsed > 0)
+		{
+			double rate = 8000.0 * (receivedBytes - load.receivedBytes) 
+					/ elapsed;
+			load.receiveRate = this.smoothing * rate
+					+ (1 - this.smoothing) * load.receiveRate;
+		}
+		load.bytes = bytes;
+		load.receivedBytes = receivedBytes;
+		load.sampledAt = sampledAt;
+	}
+	
+	private PortLoad getPortLoad(long dpid, int port)
+	{
+		Map<Integer,PortLoad> switchPorts = this.ports.get(dpid);
+		if (null == switchPorts)
+		{
+			switchPorts = new ConcurrentHashMap<Integer,PortLoad>();
+			this.ports.put(dpid, switchPorts);
+		}
+		PortLoad load = switchPorts.get(port);
+		if (null == load)
+		{
+			load = new PortLoad(this.getSpeed(dpid, port));
+			switchPorts.put(port, load);
+		}
+		return load;
+	}
+	
+	/**
+	 * Get the load measured on a port, without adding it if it is missing.
+	 * @return the load; null if the port has not been measured
+	 */
+	private PortLoad findPortLoad(long dpid, int port)
+	{
+		Map<Integer,PortLoad> switchPorts = this.ports.get(dpid);
+		return (null == switchPorts ? null : switchPorts.get(port));
+	}
+	
+	/**
+	 * Get the speed a port currently runs at, in bits per second.
+	 */
+	private double getSpeed(long dpid, int port)
+	{
+		IOFSwitch sw = this.floodlightProv.getSwitch(dpid);
+		ImmutablePort info = (null == sw ? null : sw.getPort(port));
+		if (null == info || null == info.getCurrentPortSpeed()
+				|| info.getCurrentPortSpeed().getSpeedBps() <= 0)
+		{ return DEFAULT_SPEED; }
+		return Math.max(MIN_SPEED,
+				info.getCurrentPortSpeed().getSpeedBps());
+	}
+	
+	private static int getWeight(double speed, double utilization)
+	{
+		double weight = REFERENCE_SPEED / speed
+				/ (1 - Math.min(MAX_UTILIZATION, utilization));
+		return (int)Math.max(TopologyGraph.HOP_WEIGHT, Math.round(weight));
+	}
+	
+	/**
+	 * Get a switch's reply, if it has arrived.
+	 * @return the reply; null if it has not arrived or the request failed
+	 */
+	private static List<OFStatistics> getReply(
+			Future<List<OFStatistics>> reply)
+	{
+		if (!reply.isDone())
+		{ return null; }
+		try
+		{ return reply.get(); }
+		catch (ExecutionException e)
+		{ return null; }
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hash map from primitive long keys to objects, using open addressing with
+ * linear probing. Keys are never boxed, and removals shift later entries
+ * back instead of leaving tombstones. Not safe for concurrent use.
+ * @param <V> type of value
+ */
+class LongObjectMap<V>
+{
+	// Smallest number of slots
+	private static final int MIN_CAPACITY = 16;
+
+	// Key in each slot
+	private long[] keys;
+
+	// Value in each slot, null if the slot is empty
+	private Object[] values;
+
+	// Number of entries
+	private int size;
+
+	/**
+	 * Create an empty map.
+	 */
+	LongObjectMap()
+	{ this(MIN_CAPACITY); }
+
+	/**
+	 * Create an empty map with room for a number of entries.
+	 * @param expected number of entries the map should hold without growing
+	 */
+	LongObjectMap(int expected)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity < expected * 2)
+		{ capacity <<= 1; }
+		this.keys = new long[capacity];
+		this.values = new Object[capacity];
+		this.size = 0;
+	}
+
+	int size()
+	{ return this.size; }
+
+	boolean isEmpty()
+	{ return (0 == this.size); }
+
+	boolean containsKey(long key)
+	{ return (this.find(key) >= 0); }
+
+	/**
+	 * Get the value for a key.
+	 * @return the value, null if the key is not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	V get(long key)
+	{
+		int slot = this.find(key);
+		return (slot < 0 ? null : (V)this.values[slot]);
+	}
+
+	/**
+	 * Set the value for a key.
+	 * @param key the key
+	 * @param value the value; must not be null
+	 * @return the previous value, null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	V put(long key, V value)
+	{
+		if (null == value)
+		{ throw new IllegalArgumentException("Values must not be null"); }
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.values[slot] != null)
+		{
+			if (this.keys[slot] == key)
+			{
+				V previous = (V)this.values[slot];
+				this.values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		this.keys[slot] = key;
+		this.values[slot] = value;
+		this.size++;
+		if (this.size * 2 > this.keys.length)
+		{ this.grow(); }
+		return null;
+	}
+
+	/**
+	 * Remove a key.
+	 * @return the key's value, null if the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(long key)
+	{
+		int slot = this.find(key);
+		if (slot < 0)
+		{ return null; }
+		V previous = (V)this.values[slot];
+
+		// Move back any later entry that could no longer be found past the
+		// emptied slot
+		int mask = this.keys.length - 1;
+		int empty = slot;
+		int next = (slot + 1) & mask;
+		while (this.values[next] != null)
+		{
+			int home = hash(this.keys[next]) & mask;
+			if (((next - home) & mask) >= ((next - empty) & mask))
+			{
+				this.keys[empty] = this.keys[next];
+				this.values[empty] = this.values[next];
+				empty = next;
+			}
+			next = (next + 1) & mask;
+		}
+		this.values[empty] = null;
+		this.size--;
+		return previous;
+	}
+
+	/**
+	 * Get every key in the map, in no particular order.
+	 */
+	long[] keys()
+	{
+		long[] result = new long[this.size];
+		int count = 0;
+		for (int slot = 0; slot < this.keys.length; slot++)
+		{
+			if (this.values[slot] != null)
+			{ result[count++] = this.keys[slot]; }
+		}
+		return result;
+	}
+
+	/**
+	 * Get every value in the map, in no particular order.
+	 */
+	@SuppressWarnings("unchecked")
+	List<V> values()
+	{
+		List<V> result = new ArrayList<V>(this.size);
+		for (int slot = 0; slot < this.keys.length; slot++)
+		{
+			if (this.values[slot] != null)
+			{ result.add((V)this.values[slot]); }
+		}
+		return result;
+	}
+
+	private int find(long key)
+	{
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.values[slot] != null)
+		{
+			if (this.keys[slot] == key)
+			{ return slot; }
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void grow()
+	{
+		long[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		this.keys = new long[oldKeys.length * 2];
+		this.values = new Object[oldValues.length * 2];
+		int mask = this.keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (null == oldValues[i])
+			{ continue; }
+			int slot = hash(oldKeys[i]) & mask;
+			while (this.values[slot] != null)
+			{ slot = (slot + 1) & mask; }
+			this.keys[slot] = oldKeys[i];
+			this.values[slot] = oldValues[i];
+		}
+	}
+
+	/**
+	 * Spread the bits of a key, since DPIDs and IP addresses often differ
+	 * only in their low bits.
+	 */
+	private static int hash(long key)
+	{
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int)key;
+	}
+}
@@ -0,0 +1,23 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+/**
+ * Computes shortest paths over a topology graph. Engines keep scratch space
+ * between runs so repeated computations do not allocate; an engine must
+ * therefore only be used by one thread at a time.
+ */
+public interface PathEngine 
+{
+	/**
+	 * Compute the shortest path from every switch to a destination switch.
+	 * @param graph the topology
+	 * @param root index of the destination switch
+	 * @return the shortest-path tree rooted at the destination
+	 */
+	public ShortestPathTree computeTree(TopologyGraph graph, int root);
+	
+	/**
+	 * Compute an existing tree again from scratch, reusing its storage.
+	 * @param tree the tree to recompute
+	 */
+	public void recomputeTree(ShortestPathTree tree);
+}
@@ -0,0 +1,22 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+/**
+ * Creates path engines by name.
+ */
+public class PathEngines 
+{
+	public static final String BFS = "bfs";
+	public static final String DIJKSTRA = "dijkstra";
+	
+	/**
+	 * Create a path engine.
+	 * @param algorithm name of the algorithm; hop-count BFS if unrecognized
+	 * @return a new engine, for use by a single thread
+	 */
+	public static PathEngine create(String algorithm)
+	{
+		if (DIJKSTRA.equalsIgnoreCase(algorithm))
+		{ return new DijkstraPathEngine(); }
+		return new BfsPathEngine();
+	}
+}
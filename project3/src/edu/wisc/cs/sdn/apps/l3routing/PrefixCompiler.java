@@ -0,0 +1,211 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiles routes towards single IPv4 addresses into as few longest-prefix
+ * rules as possible, using the Optimal Routing Table Constructor (ORTC)
+ * algorithm. Addresses that have no route are treated as "don't care", so
+ * a prefix may cover them if that saves rules. A rule's priority should be
+ * its prefix length, so more specific rules win.
+ * <p>
+ * The addresses are placed in a binary trie. Going up, each node gets the
+ * set of values that would let it cover its subtrees with the fewest rules:
+ * the values its children share, or every value of either child if they
+ * share none. Going down, a node needs a rule only if the value it inherits
+ * from its nearest ancestor with a rule is not in its set.
+ */
+public class PrefixCompiler 
+{
+	/**
+	 * A rule produced by the compiler.
+	 */
+	public static class Prefix<T>
+	{
+		// First address covered by the prefix
+		private final int address;
+		
+		// Number of leading bits that must match
+		private final int length;
+		
+		// Value for the addresses covered by the prefix
+		private final T value;
+		
+		public Prefix(int address, int length, T value)
+		{
+			this.address = address & mask(length);
+			this.length = length;
+			this.value = value;
+		}
+		
+		public int getAddress()
+		{ return this.address; }
+		
+		public int getLength()
+		{ return this.length; }
+		
+		public T getValue()
+		{ return this.value; }
+		
+		/**
+		 * Get the netmask of the prefix.
+		 */
+		public int getMask()
+		{ return mask(this.length); }
+		
+		/**
+		 * Check whether the prefix covers an address.
+		 */
+		public boolean contains(int ip)
+		{ return (ip & mask(this.length)) == this.address; }
+	}
+	
+	/**
+	 * A node of the binary trie.
+	 */
+	private static class Node
+	{
+		// Subtries for a 0 bit and a 1 bit next; null if empty
+		private Node zero;
+		private Node one;
+		
+		// Values that cover the node's subtrees with the fewest rules
+		private BitSet values;
+		
+		Node child(int bit)
+		{ return (0 == bit ? this.zero : this.one); }
+	}
+	
+	/**
+	 * Compile routes into prefix rules.
+	 * @param routes value for each address; addresses outside the base
+	 *        prefix are ignored
+	 * @param address first address of the base prefix, which every rule
+	 *        falls within; 0 for the whole address space
+	 * @param length length of the base prefix
+	 * @return the rules, the base prefix first; empty if there are no routes
+	 */
+	public static <T> List<Prefix<T>> compile(Map<Integer,T> routes,
+			int address, int length)
+	{
+		List<Prefix<T>> rules = new ArrayList<Prefix<T>>();
+		
+		// Values are numbered in address order, so a compile of the same
+		// routes always picks the same values
+		Map<T,Integer> numbers = new LinkedHashMap<T,Integer>();
+		List<T> values = new ArrayList<T>();
+		Node root = null;
+		for (Map.Entry<Integer,T> route
+				: new TreeMap<Integer,T>(routes).entrySet())
+		{
+			int ip = route.getKey();
+			if ((ip & mask(length)) != (address & mask(length)))
+			{ continue; }
+			Integer number = numbers.get(route.getValue());
+			if (null == number)
+			{
+				number = values.size();
+				numbers.put(route.getValue(), number);
+				values.add(route.getValue());
+			}
+			if (null == root)
+			{ root = new Node(); }
+			insert(root, ip, length, number);
+		}
+		if (null == root)
+		{ return rules; }
+		
+		merge(root);
+		emit(root, address & mask(length), length, -1, values, rules);
+		return rules;
+	}
+	
+	/**
+	 * Get the netmask of a prefix length.
+	 */
+	public static int mask(int length)
+	{ return (0 == length ? 0 : -1 << (32 - length)); }
+	
+	private static void insert(Node root, int ip, int depth, int number)
+	{
+		Node node = root;
+		for (int bit = depth; bit < 32; bit++)
+		{
+			if (0 == ((ip >>> (31 - bit)) & 1))
+			{
+				if (null == node.zero)
+				{ node.zero = new Node(); }
+				node = node.zero;
+			}
+			else
+			{
+				if (null == node.one)
+				{ node.one = new Node(); }
+				node = node.one;
+			}
+		}
+		node.values = new BitSet();
+		node.values.set(number);
+	}
+	
+	/**
+	 * Work out each node's values, from the leaves up.
+	 */
+	private static void merge(Node node)
+	{
+		if (null == node.zero && null == node.one)
+		{ return; }
+		if (node.zero != null)
+		{ merge(node.zero); }
+		if (node.one != null)
+		{ merge(node.one); }
+		
+		// A missing subtrie holds no route, so it does not constrain the
+		// node
+		if (null == node.zero || null == node.one)
+		{
+			node.values = (null == node.zero ? node.one : node.zero).values;
+			return;
+		}
+		node.values = (BitSet)node.zero.values.clone();
+		node.values.and(node.one.values);
+		if (node.values.isEmpty())
+		{
+			node.values = (BitSet)node.zero.values.clone();
+			node.values.or(node.one.values);
+		}
+	}
+	
+	/**
+	 * Pick each node's value, from the root down, and add a rule wherever
+	 * the inherited value will not do.
+	 * @param inherited number of the value of the nearest ancestor with a
+	 *        rule; -1 if there is none
+	 */
+	private static <T> void emit(Node node, int address, int length,
+			int inherited, List<T> values, List<Prefix<T>> rules)
+	{
+		int value = inherited;
+		if (inherited < 0 || !node.values.get(inherited))
+		{
+			value = node.values.nextSetBit(0);
+			rules.add(new Prefix<T>(address, length, values.get(value)));
+		}
+		if (length >= 32)
+		{ return; }
+		for (int bit = 0; bit < 2; bit++)
+		{
+			Node child = node.child(bit);
+			if (child != null)
+			{
+				emit(child, address | (bit << (31 - length)), length + 1,
+						value, values, rules);
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketIn;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Installs rules on demand, when a switch sends the controller an IPv4
+ * packet it has no rule for. The path towards the packet's destination is
+ * looked up in the current routes, and a rule with an idle timeout is
+ * installed in each switch along it, so switches only hold rules for hosts
+ * that are actually being sent traffic.
+ * <p>
+ * Packets are handled on Floodlight's threads; only the published routes
+ * are read, so no locking is needed.
+ */
+public class ReactiveRouter implements IOFMessageListener 
+{
+	// Interface to the logging system
+    private static Logger log =
+    		LoggerFactory.getLogger(ReactiveRouter.class.getSimpleName());
+	
+	// Interface to Floodlight core for interacting with connected switches
+	private IFloodlightProviderService floodlightProv;
+	
+	// Current routes, published by L3Routing
+	private AtomicReference<RoutingSnapshot> routes;
+	
+	// Switch table in which rules are installed
+	private byte table;
+	
+	// Seconds without matching packets after which a switch removes a rule
+	private short idleTimeout;
+	
+	// Number of packets for which a path was installed; packets arrive on
+	// several threads
+	private AtomicLong packetsRouted;
+	
+	/**
+	 * Create a router.
+	 * @param floodlightProv Floodlight module to look up switches by DPID
+	 * @param routes current routes, replaced whenever they change
+	 * @param table switch table in which rules are installed
+	 * @param idleTimeout seconds without matching packets after which a
+	 *        switch removes a rule
+	 */
+	public ReactiveRouter(IFloodlightProviderService floodlightProv,
+			AtomicReference<RoutingSnapshot> routes, byte table,
+			short idleTimeout)
+	{
+		this.floodlightProv = floodlightProv;
+		this.routes = routes;
+		this.table = table;
+		this.idleTimeout = idleTimeout;
+		this.packetsRouted = new AtomicLong();
+	}
+	
+	/**
+	 * Get the number of packets for which a path was installed.
+	 */
+	public long getPacketsRouted()
+	{ return this.packetsRouted.get(); }
+	
+	/**
+	 * Handle IPv4 packets sent to the controller because no rule matched
+	 * them.
+	 * @param sw switch on which the packet was received
+	 * @param msg message from the switch
+	 * @param cntx the Floodlight context in which the message should be handled
+	 * @return indication whether another module should also process the packet
+	 */
+	@Override
+	public net.floodlightcontroller.core.IListener.Command receive(
+			IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+	{
+		// We only care about packet-in messages
+		if (msg.getType() != OFType.PACKET_IN)
+		{ return Command.CONTINUE; }
+		OFPacketIn pktIn = (OFPacketIn)msg;
+		
+		// We only care about IPv4 packets
+		Ethernet eth = new Ethernet();
+		eth.deserialize(pktIn.getPacketData(), 0, pktIn.getPacketData().length);
+		if (eth.getEtherType() != Ethernet.TYPE_IPv4)
+		{ return Command.CONTINUE; }
+		int ip = ((IPv4)eth.getPayload()).getDestinationAddress();
+		
+		// Packets for addresses that are not hosts, e.g., virtual IPs, are
+		// left to other modules
+		List<RouteHop> path = this.routes.get().getPath(sw.getId(), ip);
+		if (null == path)
+		{ return Command.CONTINUE; }
+		
+		// Rules are installed starting from the host's switch, so the packet
+		// never reaches a switch that does not have a rule yet
+		OFMatch matchCriteria = new RuleMatch(SwitchCommands.DEFAULT_PRIORITY,
+				ip).toOFMatch();
+		for (int i = path.size() - 1; i > 0; i--)
+		{
+			RouteHop hop = path.get(i);
+			IOFSwitch hopSw = this.floodlightProv.getSwitch(hop.getDpid());
+			if (null == hopSw)
+			{ return Command.CONTINUE; }
+			SwitchCommands.installRule(hopSw, this.table,
+					SwitchCommands.DEFAULT_PRIORITY, matchCriteria,
+					RuleAction.output(hop.getPort()).toInstructions(),
+					SwitchCommands.NO_TIMEOUT, this.idleTimeout);
+		}
+		
+		// The rule in the first switch also releases the buffered packet
+		RouteHop first = path.get(0);
+		SwitchCommands.installRule(sw, this.table,
+				SwitchCommands.DEFAULT_PRIORITY, matchCriteria,
+				RuleAction.output(first.getPort()).toInstructions(),
+				SwitchCommands.NO_TIMEOUT, this.idleTimeout,
+				pktIn.getBufferId());
+		if (OFPacketOut.BUFFER_ID_NONE == pktIn.getBufferId())
+		{ SwitchCommands.sendPacket(sw, (short)first.getPort(), eth); }
+		
+		this.packetsRouted.incrementAndGet();
+		log.debug(String.format("Installed path for %s from s%d: %s",
+				IPv4.fromIPv4Address(ip), sw.getId(), path));
+		return Command.STOP;
+	}
+	
+	/**
+	 * Gets a name for this listener.
+	 * @return name of the module the listener belongs to
+	 */
+	@Override
+	public String getName()
+	{ return L3Routing.MODULE_NAME; }
+	
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{ return false; }
+	
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+}
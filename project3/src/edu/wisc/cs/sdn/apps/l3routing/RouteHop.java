@@ -0,0 +1,71 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+/**
+ * One step along a route: the port out which a switch forwards packets, and
+ * the switch reached through that port.
+ */
+public class RouteHop 
+{
+	// DPID of the switch that forwards the packets
+	private final long dpid;
+	
+	// Port out which the switch forwards the packets
+	private final int port;
+	
+	// DPID of the switch reached through the port, 0 if the port leads to
+	// the destination host
+	private final long nextDpid;
+	
+	public RouteHop(long dpid, int port, long nextDpid)
+	{
+		this.dpid = dpid;
+		this.port = port;
+		this.nextDpid = nextDpid;
+	}
+	
+	public long getDpid()
+	{ return this.dpid; }
+	
+	public int getPort()
+	{ return this.port; }
+	
+	/**
+	 * Get the DPID of the switch reached through the port.
+	 * @return the DPID, 0 if the port leads to the destination host
+	 */
+	public long getNextDpid()
+	{ return this.nextDpid; }
+	
+	/**
+	 * Check whether the port leads to the destination host.
+	 */
+	public boolean isLastHop()
+	{ return (0 == this.nextDpid); }
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof RouteHop))
+		{ return false; }
+		RouteHop other = (RouteHop)obj;
+		return (other.dpid == this.dpid && other.port == this.port
+				&& other.nextDpid == this.nextDpid);
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		int hash = (int)(this.dpid ^ (this.dpid >>> 32));
+		hash = 31 * hash + this.port;
+		return 31 * hash + (int)(this.nextDpid ^ (this.nextDpid >>> 32));
+	}
+	
+	@Override
+	public String toString()
+	{
+		if (this.isLastHop())
+		{ return String.format("s%d:%d->host", this.dpid, this.port); }
+		return String.format("s%d:%d->s%d", this.dpid, this.port,
+				this.nextDpid);
+	}
+}
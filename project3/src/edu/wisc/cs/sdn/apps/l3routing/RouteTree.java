@@ -0,0 +1,93 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.List;
+
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+
+/**
+ * Read-only view of the paths from every switch towards a single
+ * destination switch, as published in a {@link RoutingSnapshot}. Switches
+ * are identified by their index in the graph; an index without a path has
+ * distance {@link ShortestPathTree#UNREACHABLE} and next hop and out port
+ * {@link ShortestPathTree#NONE}. Methods that look at the graph must only
+ * be called on the thread that changes it.
+ */
+public interface RouteTree 
+{
+	/**
+	 * Get the graph over which the paths were computed.
+	 */
+	public TopologyGraph getGraph();
+	
+	/**
+	 * Get the index of the destination switch.
+	 */
+	public int getRoot();
+	
+	/**
+	 * Get the DPID of the destination switch.
+	 */
+	public long getRootDpid();
+	
+	/**
+	 * Get the cost of the path from a switch to the root.
+	 * @param index index of the switch
+	 */
+	public int getDistance(int index);
+	
+	/**
+	 * Get the next switch on the path from a switch to the root.
+	 * @param index index of the switch
+	 */
+	public int getNextHop(int index);
+	
+	/**
+	 * Get the port out which a switch forwards towards the root.
+	 * @param index index of the switch
+	 */
+	public int getOutPort(int index);
+	
+	/**
+	 * Check whether a switch has a path to the root.
+	 * @param index index of the switch
+	 */
+	public boolean isReachable(int index);
+	
+	/**
+	 * Get every link out of a switch that starts a shortest path towards the
+	 * root. Only valid while the graph matches the tree.
+	 * @param index index of the switch
+	 * @param excludedHop index of a next switch whose links are left out, or
+	 *        NONE
+	 * @return the links, ordered by port; empty for the root and for
+	 *         unreachable switches
+	 */
+	public List<Edge> getEqualCostLinks(int index, int excludedHop);
+	
+	/**
+	 * Find a loop-free alternate for a switch: a link to a neighbor, other
+	 * than the switch's own next hop, whose path to the root does not come
+	 * back through the switch. Only valid while the graph matches the tree.
+	 * @param index index of the switch
+	 * @param towardsSwitch tree rooted at the switch, giving each neighbor's
+	 *        distance back to it; if null, only neighbors strictly closer to
+	 *        the root than the switch qualify
+	 * @param excludedHop index of a next switch not to use, or NONE
+	 * @return the alternate link, or null if there is none
+	 */
+	public Edge getLoopFreeAlternate(int index, RouteTree towardsSwitch,
+			int excludedHop);
+	
+	/**
+	 * Get the number of distinct shortest paths from a switch to the root.
+	 * Only valid while the graph matches the tree.
+	 * @param index index of the switch
+	 * @return the number of paths; 0 if the switch is unreachable
+	 */
+	public double getPathCount(int index);
+	
+	/**
+	 * Create a copy of the paths that can be modified independently.
+	 */
+	public ShortestPathTree copy();
+}
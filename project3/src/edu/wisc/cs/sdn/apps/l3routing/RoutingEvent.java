@@ -0,0 +1,86 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.List;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+
+/**
+ * A change in the network that affects routing, queued until it can be
+ * handled together with other changes.
+ */
+public class RoutingEvent 
+{
+	public enum Type
+	{
+		SWITCH_ADDED,
+		SWITCH_REMOVED,
+		LINKS_UPDATED,
+		DEVICE_ADDED,
+		DEVICE_REMOVED,
+		DEVICE_MOVED,
+		SAVE_STATE,
+		RESTORED_STATE_EXPIRED,
+		POLL_PORTS
+	}
+	
+	// Kind of change
+	private Type type;
+	
+	// DPID of the switch that was added or removed
+	private long switchId;
+	
+	// Changes to links
+	private List<LDUpdate> updates;
+	
+	// Host that was added, removed, or moved
+	private IDevice device;
+	
+	private RoutingEvent(Type type, long switchId, List<LDUpdate> updates,
+			IDevice device)
+	{
+		this.type = type;
+		this.switchId = switchId;
+		this.updates = updates;
+		this.device = device;
+	}
+	
+	public static RoutingEvent switchAdded(long switchId)
+	{ return new RoutingEvent(Type.SWITCH_ADDED, switchId, null, null); }
+	
+	public static RoutingEvent switchRemoved(long switchId)
+	{ return new RoutingEvent(Type.SWITCH_REMOVED, switchId, null, null); }
+	
+	public static RoutingEvent linksUpdated(List<LDUpdate> updates)
+	{ return new RoutingEvent(Type.LINKS_UPDATED, 0, updates, null); }
+	
+	public static RoutingEvent deviceAdded(IDevice device)
+	{ return new RoutingEvent(Type.DEVICE_ADDED, 0, null, device); }
+	
+	public static RoutingEvent deviceRemoved(IDevice device)
+	{ return new RoutingEvent(Type.DEVICE_REMOVED, 0, null, device); }
+	
+	public static RoutingEvent deviceMoved(IDevice device)
+	{ return new RoutingEvent(Type.DEVICE_MOVED, 0, null, device); }
+	
+	public static RoutingEvent saveState()
+	{ return new RoutingEvent(Type.SAVE_STATE, 0, null, null); }
+	
+	public static RoutingEvent restoredStateExpired()
+	{ return new RoutingEvent(Type.RESTORED_STATE_EXPIRED, 0, null, null); }
+	
+	public static RoutingEvent pollPorts()
+	{ return new RoutingEvent(Type.POLL_PORTS, 0, null, null); }
+	
+	public Type getType()
+	{ return this.type; }
+	
+	public long getSwitchId()
+	{ return this.switchId; }
+	
+	public List<LDUpdate> getUpdates()
+	{ return this.updates; }
+	
+	public IDevice getDevice()
+	{ return this.device; }
+}
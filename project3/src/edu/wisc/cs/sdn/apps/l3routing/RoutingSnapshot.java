@@ -0,0 +1,233 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of the routes towards every switch at one point in time.
+ * The snapshot keeps its own copy of the switch indices, so it stays valid
+ * while the topology graph it was built from moves on. Snapshots can be read
+ * from any thread without locking, as long as readers only use the trees'
+ * distances, next hops, and ports, and not the graph the trees refer to.
+ * Each snapshot carries a version that is higher than that of every snapshot
+ * published before it.
+ * <p>
+ * The snapshot also records where each host is attached, so routes towards 
+ * a host can be looked up by its IP address.
+ */
+public class RoutingSnapshot 
+{
+	// Version of the snapshot
+	private final long version;
+	
+	// DPID of the switch at each index, 0 for unassigned indices
+	private final long[] dpids;
+	
+	// Index of each switch, keyed by DPID
+	private final Map<Long,Integer> indexes;
+	
+	// Shortest-path tree towards each switch, keyed by DPID
+	private final Map<Long,RouteTree> trees;
+	
+	// Each host's address and attachment point, keyed by IPv4 address
+	private final LongObjectMap<HostIndex.Entry> hosts;
+	
+	/**
+	 * Create a snapshot.
+	 * @param graph the graph over which the trees were computed
+	 * @param trees tree towards each switch, keyed by DPID; the trees must
+	 *        not be modified afterwards
+	 * @param hosts every known host's address and attachment point
+	 * @param version version of the snapshot
+	 */
+	public RoutingSnapshot(TopologyGraph graph, 
+			Map<Long,? extends RouteTree> trees, 
+			Collection<HostIndex.Entry> hosts, long version)
+	{
+		this.version = version;
+		this.dpids = new long[graph.getCapacity()];
+		this.indexes = new HashMap<Long,Integer>();
+		for (int index = 0; index < this.dpids.length; index++)
+		{
+			if (!graph.contains(index))
+			{ continue; }
+			this.dpids[index] = graph.getDpid(index);
+			this.indexes.put(this.dpids[index], index);
+		}
+		this.trees = Collections.unmodifiableMap(
+				new HashMap<Long,RouteTree>(trees));
+		this.hosts = indexHosts(hosts);
+	}
+	
+	/**
+	 * Create a snapshot with no switches.
+	 */
+	public RoutingSnapshot()
+	{ 
+		this(new TopologyGraph(), new HashMap<Long,RouteTree>(), 
+				new ArrayList<HostIndex.Entry>(), 0); 
+	}
+	
+	/**
+	 * Create a snapshot with the same routes as another, but different 
+	 * hosts.
+	 */
+	private RoutingSnapshot(RoutingSnapshot routes, 
+			Collection<HostIndex.Entry> hosts, long version)
+	{
+		this.version = version;
+		this.dpids = routes.dpids;
+		this.indexes = routes.indexes;
+		this.trees = routes.trees;
+		this.hosts = indexHosts(hosts);
+	}
+	
+	/**
+	 * Create a snapshot with the same routes as this one, but different
+	 * hosts.
+	 * @param hosts every known host's address and attachment point
+	 * @param version version of the new snapshot
+	 */
+	public RoutingSnapshot withHosts(Collection<HostIndex.Entry> hosts, 
+			long version)
+	{ return new RoutingSnapshot(this, hosts, version); }
+	
+	/**
+	 * Get the version of the snapshot.
+	 */
+	public long getVersion()
+	{ return this.version; }
+	
+	/**
+	 * Get the number of indices covered by the snapshot.
+	 */
+	public int getCapacity()
+	{ return this.dpids.length; }
+	
+	/**
+	 * Get the index of a switch.
+	 * @return the switch's index, -1 if the switch is not in the snapshot
+	 */
+	public int getIndex(long dpid)
+	{
+		Integer index = this.indexes.get(dpid);
+		return (null == index ? -1 : index);
+	}
+	
+	/**
+	 * Check whether an index is assigned to a switch.
+	 */
+	public boolean contains(int index)
+	{ return (index < this.dpids.length && this.dpids[index] != 0); }
+	
+	/**
+	 * Get the DPID of the switch at an index.
+	 */
+	public long getDpid(int index)
+	{ return this.dpids[index]; }
+	
+	/**
+	 * Get the tree towards a switch.
+	 * @return the tree, null if the switch is not in the snapshot
+	 */
+	public RouteTree getTree(long dpid)
+	{ return this.trees.get(dpid); }
+	
+	/**
+	 * Get the tree towards every switch, keyed by DPID.
+	 */
+	public Map<Long,RouteTree> getTrees()
+	{ return this.trees; }
+	
+	/**
+	 * Get where a host is attached.
+	 * @param ip IPv4 address of the host
+	 * @return the host's address and attachment point; null if the host is
+	 *         unknown
+	 */
+	public HostIndex.Entry getHost(int ip)
+	{ return this.hosts.get(ip & 0xffffffffL); }
+	
+	/**
+	 * Get the next step from a switch towards a host.
+	 * @param dpid DPID of the switch
+	 * @param ip IPv4 address of the host
+	 * @return the port out which the switch forwards packets for the host,
+	 *         and the switch reached through it; null if the host is 
+	 *         unknown or cannot be reached from the switch
+	 */
+	public RouteHop getNextHop(long dpid, int ip)
+	{
+		HostIndex.Entry host = this.hosts.get(ip & 0xffffffffL);
+		if (null == host)
+		{ return null; }
+		if (host.getDpid() == dpid)
+		{ return new RouteHop(dpid, host.getPort(), 0); }
+		
+		RouteTree tree = this.trees.get(host.getDpid());
+		int index = this.getIndex(dpid);
+		if (null == tree || index < 0 || !tree.isReachable(index))
+		{ return null; }
+		return new RouteHop(dpid, tree.getOutPort(index), 
+				this.dpids[tree.getNextHop(index)]);
+	}
+	
+	/**
+	 * Get the length of the shortest path between two switches. With the 
+	 * default metric every link has a weight of one, so this is the number
+	 * of hops.
+	 * @param src DPID of the switch where the path starts
+	 * @param dst DPID of the switch where the path ends
+	 * @return the sum of the link weights along the path; -1 if there is 
+	 *         no path
+	 */
+	public int getDistance(long src, long dst)
+	{
+		RouteTree tree = this.trees.get(dst);
+		int index = this.getIndex(src);
+		if (null == tree || index < 0 || !tree.isReachable(index))
+		{ return -1; }
+		return tree.getDistance(index);
+	}
+	
+	/**
+	 * Get the path from a switch to a host.
+	 * @param dpid DPID of the switch where the path starts
+	 * @param ip IPv4 address of the host
+	 * @return each switch on the path along with the port out which it 
+	 *         forwards, ending with the host's own switch; null if the host 
+	 *         is unknown or cannot be reached from the switch
+	 */
+	public List<RouteHop> getPath(long dpid, int ip)
+	{
+		List<RouteHop> path = new ArrayList<RouteHop>();
+		RouteHop hop = this.getNextHop(dpid, ip);
+		while (hop != null && !hop.isLastHop() 
+				&& path.size() < this.dpids.length)
+		{
+			path.add(hop);
+			hop = this.getNextHop(hop.getNextDpid(), ip);
+		}
+		if (null == hop || !hop.isLastHop())
+		{ return null; }
+		path.add(hop);
+		return path;
+	}
+	
+	/**
+	 * Build a lookup table of hosts keyed by IPv4 address.
+	 */
+	private static LongObjectMap<HostIndex.Entry> indexHosts(
+			Collection<HostIndex.Entry> hosts)
+	{
+		LongObjectMap<HostIndex.Entry> index = 
+				new LongObjectMap<HostIndex.Entry>(hosts.size());
+		for (HostIndex.Entry host : hosts)
+		{ index.put(host.getIp() & 0xffffffffL, host); }
+		return index;
+	}
+}
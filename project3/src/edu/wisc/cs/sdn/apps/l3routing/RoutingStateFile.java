@@ -0,0 +1,431 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.openflow.protocol.OFGroupMod;
+
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+
+/**
+ * Routing state saved to disk, so a restarted controller can route before
+ * it has rediscovered the network: the switches and links, where each host
+ * is attached, and the rules and groups installed in each switch.
+ * <p>
+ * The file is a single binary image, read through a read-only memory
+ * mapping. Opening it only checks the header; each section is decoded
+ * straight from the mapping when it is asked for, and the rules and groups
+ * of a switch are found through an index sorted by DPID, so a switch's
+ * rules can be read without decoding anyone else's.
+ * <p>
+ * Layout, in network byte order:
+ * <pre>
+ * header      magic, format, time saved, and the count of each section
+ * switches    DPID of each switch
+ * links       source DPID and port, destination DPID and port
+ * hosts       IPv4 address, DPID, and port
+ * rule index  DPID, offset of its first rule, and its number of rules
+ * group index DPID, offset of its first group, and its number of groups
+ * rules       priority, IP, prefix length, VLAN, then the action
+ * groups      ID, type, bucket count, then each bucket's action and weight
+ * </pre>
+ */
+public class RoutingStateFile 
+{
+	// Identifies a routing state file, and the version of its layout
+	private static final int MAGIC = 0x4c335253;
+	private static final int FORMAT = 2;
+	
+	// Size in bytes of the header and of each fixed-size record
+	private static final int HEADER_SIZE = 40;
+	private static final int SWITCH_SIZE = 8;
+	private static final int LINK_SIZE = 24;
+	private static final int HOST_SIZE = 16;
+	private static final int INDEX_SIZE = 16;
+	private static final int ACTION_SIZE = 8;
+	private static final int RULE_SIZE = 9 + ACTION_SIZE;
+	private static final int BUCKET_SIZE = ACTION_SIZE + 4;
+	private static final int GROUP_HEADER_SIZE = 9;
+	
+	// The file's contents
+	private final ByteBuffer buffer;
+	
+	// When the state was saved, in milliseconds since the epoch
+	private final long savedAt;
+	
+	// Number of records in each section
+	private final int switchCount;
+	private final int linkCount;
+	private final int hostCount;
+	private final int ruleSwitchCount;
+	private final int groupSwitchCount;
+	
+	// Offset of each section
+	private final int switchesOffset;
+	private final int linksOffset;
+	private final int hostsOffset;
+	private final int ruleIndexOffset;
+	private final int groupIndexOffset;
+	
+	private RoutingStateFile(ByteBuffer buffer) throws IOException
+	{
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != FORMAT)
+		{ throw new IOException("Not a routing state file"); }
+		this.savedAt = buffer.getLong(8);
+		this.switchCount = buffer.getInt(16);
+		this.linkCount = buffer.getInt(20);
+		this.hostCount = buffer.getInt(24);
+		this.ruleSwitchCount = buffer.getInt(28);
+		this.groupSwitchCount = buffer.getInt(32);
+		if (Math.min(Math.min(this.switchCount, this.linkCount), 
+				Math.min(this.hostCount, Math.min(this.ruleSwitchCount, 
+						this.groupSwitchCount))) < 0)
+		{ throw new IOException("Routing state file is corrupt"); }
+		
+		this.switchesOffset = HEADER_SIZE;
+		this.linksOffset = this.switchesOffset
+				+ this.switchCount * SWITCH_SIZE;
+		this.hostsOffset = this.linksOffset + this.linkCount * LINK_SIZE;
+		this.ruleIndexOffset = this.hostsOffset + this.hostCount * HOST_SIZE;
+		this.groupIndexOffset = this.ruleIndexOffset
+				+ this.ruleSwitchCount * INDEX_SIZE;
+		if (this.groupIndexOffset + this.groupSwitchCount * INDEX_SIZE
+				> buffer.limit())
+		{ throw new IOException("Routing state file is truncated"); }
+	}
+	
+	/**
+	 * Map a routing state file.
+	 * @param file the file
+	 * @throws IOException if the file cannot be read or is not a routing
+	 *         state file
+	 */
+	public static RoutingStateFile open(File file) throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = input.getChannel();
+			MappedByteBuffer mapped = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new RoutingStateFile(mapped);
+		}
+		finally
+		{ input.close(); }
+	}
+	
+	/**
+	 * Save routing state, replacing the file only once the new state has
+	 * been written in full.
+	 * @param file the file
+	 * @param graph switches and links
+	 * @param hosts each host's address and attachment point
+	 * @param flowTable rules installed in each switch
+	 * @param groupTable groups installed in each switch
+	 */
+	public static void write(File file, TopologyGraph graph,
+			Collection<HostIndex.Entry> hosts, FlowTableShadow flowTable,
+			GroupTableShadow groupTable) throws IOException
+	{
+		List<Long> switches = new ArrayList<Long>();
+		for (int index = 0; index < graph.getCapacity(); index++)
+		{
+			if (graph.contains(index))
+			{ switches.add(graph.getDpid(index)); }
+		}
+		List<Edge> links = graph.getLinks();
+		
+		// Index entries must be sorted by DPID, so they can be searched
+		Set<Long> ruleSwitches = new TreeSet<Long>(flowTable.getSwitches());
+		Set<Long> groupSwitches = new TreeSet<Long>(groupTable.getSwitches());
+		Map<Long,Map<RuleMatch,RuleAction>> rules =
+				new HashMap<Long,Map<RuleMatch,RuleAction>>();
+		Map<Long,Map<Integer,RuleGroup>> groups =
+				new HashMap<Long,Map<Integer,RuleGroup>>();
+		int size = HEADER_SIZE + switches.size() * SWITCH_SIZE
+				+ links.size() * LINK_SIZE + hosts.size() * HOST_SIZE
+				+ (ruleSwitches.size() + groupSwitches.size()) * INDEX_SIZE;
+		for (Long dpid : ruleSwitches)
+		{
+			rules.put(dpid, flowTable.getRules(dpid));
+			size += rules.get(dpid).size() * RULE_SIZE;
+		}
+		for (Long dpid : groupSwitches)
+		{
+			groups.put(dpid, groupTable.getGroups(dpid));
+			for (RuleGroup group : groups.get(dpid).values())
+			{
+				size += GROUP_HEADER_SIZE
+						+ group.getBuckets().size() * BUCKET_SIZE;
+			}
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC).putInt(FORMAT);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.putInt(switches.size()).putInt(links.size());
+		buffer.putInt(hosts.size()).putInt(ruleSwitches.size());
+		buffer.putInt(groupSwitches.size()).putInt(0);
+		for (Long dpid : switches)
+		{ buffer.putLong(dpid); }
+		for (Edge link : links)
+		{
+			buffer.putLong(graph.getDpid(link.getSrc()));
+			buffer.putInt(link.getSrcPort());
+			buffer.putLong(graph.getDpid(link.getDst()));
+			buffer.putInt(link.getDstPort());
+		}
+		for (HostIndex.Entry host : hosts)
+		{
+			buffer.putInt(host.getIp()).putLong(host.getDpid());
+			buffer.putInt(host.getPort());
+		}
+		
+		// Records follow both indexes
+		int offset = buffer.position()
+				+ (ruleSwitches.size() + groupSwitches.size()) * INDEX_SIZE;
+		for (Long dpid : ruleSwitches)
+		{
+			buffer.putLong(dpid).putInt(offset).putInt(rules.get(dpid).size());
+			offset += rules.get(dpid).size() * RULE_SIZE;
+		}
+		for (Long dpid : groupSwitches)
+		{
+			buffer.putLong(dpid).putInt(offset).putInt(groups.get(dpid).size());
+			for (RuleGroup group : groups.get(dpid).values())
+			{
+				offset += GROUP_HEADER_SIZE
+						+ group.getBuckets().size() * BUCKET_SIZE;
+			}
+		}
+		for (Long dpid : ruleSwitches)
+		{
+			for (Map.Entry<RuleMatch,RuleAction> entry
+					: rules.get(dpid).entrySet())
+			{
+				RuleMatch match = entry.getKey();
+				buffer.putShort(match.getPriority());
+				buffer.putInt(match.getIpDestination());
+				buffer.put((byte)match.getPrefixLength());
+				buffer.putShort(match.getVlan());
+				putAction(buffer, entry.getValue());
+			}
+		}
+		for (Long dpid : groupSwitches)
+		{
+			for (Map.Entry<Integer,RuleGroup> entry
+					: groups.get(dpid).entrySet())
+			{
+				RuleGroup group = entry.getValue();
+				buffer.putInt(entry.getKey()).put(group.getType());
+				buffer.putInt(group.getBuckets().size());
+				for (int i = 0; i < group.getBuckets().size(); i++)
+				{
+					putAction(buffer, group.getBuckets().get(i));
+					buffer.putInt(group.getWeight(i));
+				}
+			}
+		}
+		buffer.flip();
+		
+		File partial = new File(file.getPath() + ".tmp");
+		FileOutputStream output = new FileOutputStream(partial);
+		try
+		{
+			FileChannel channel = output.getChannel();
+			while (buffer.hasRemaining())
+			{ channel.write(buffer); }
+			channel.force(true);
+		}
+		finally
+		{ output.close(); }
+		if (!partial.renameTo(file) && !(file.delete()
+				&& partial.renameTo(file)))
+		{ throw new IOException("Failed to replace " + file); }
+	}
+	
+	/**
+	 * Get when the state was saved.
+	 * @return the time in milliseconds since the epoch
+	 */
+	public long getSavedAt()
+	{ return this.savedAt; }
+	
+	public int getSwitchCount()
+	{ return this.switchCount; }
+	
+	public long getSwitch(int i)
+	{ return this.buffer.getLong(this.switchesOffset + i * SWITCH_SIZE); }
+	
+	public int getLinkCount()
+	{ return this.linkCount; }
+	
+	public long getLinkSrc(int i)
+	{ return this.buffer.getLong(this.linksOffset + i * LINK_SIZE); }
+	
+	public int getLinkSrcPort(int i)
+	{ return this.buffer.getInt(this.linksOffset + i * LINK_SIZE + 8); }
+	
+	public long getLinkDst(int i)
+	{ return this.buffer.getLong(this.linksOffset + i * LINK_SIZE + 12); }
+	
+	public int getLinkDstPort(int i)
+	{ return this.buffer.getInt(this.linksOffset + i * LINK_SIZE + 20); }
+	
+	/**
+	 * Get each host's address and attachment point. The entries have no
+	 * host, since hosts are only known once rediscovered.
+	 */
+	public List<HostIndex.Entry> getHosts()
+	{
+		List<HostIndex.Entry> hosts = new ArrayList<HostIndex.Entry>();
+		for (int i = 0; i < this.hostCount; i++)
+		{
+			int offset = this.hostsOffset + i * HOST_SIZE;
+			hosts.add(new HostIndex.Entry(null, this.buffer.getInt(offset),
+					this.buffer.getLong(offset + 4),
+					this.buffer.getInt(offset + 12)));
+		}
+		return hosts;
+	}
+	
+	/**
+	 * Get the rules that were installed in a switch.
+	 * @param dpid DPID of the switch
+	 * @return action of each rule, keyed by match; null if the rules of the
+	 *         switch were not saved
+	 * @throws IOException if the rules run past the end of the file
+	 */
+	public Map<RuleMatch,RuleAction> getRules(long dpid) throws IOException
+	{
+		int entry = this.find(this.ruleIndexOffset, this.ruleSwitchCount,
+				dpid);
+		if (entry < 0)
+		{ return null; }
+		int offset = this.buffer.getInt(entry + 8);
+		int count = this.buffer.getInt(entry + 12);
+		this.checkBounds(offset, count * RULE_SIZE);
+		
+		Map<RuleMatch,RuleAction> rules = new HashMap<RuleMatch,RuleAction>();
+		for (int i = 0; i < count; i++, offset += RULE_SIZE)
+		{
+			short priority = this.buffer.getShort(offset);
+			int ip = this.buffer.getInt(offset + 2);
+			int prefixLength = this.buffer.get(offset + 6);
+			short vlan = this.buffer.getShort(offset + 7);
+			rules.put((0 == vlan 
+					? RuleMatch.prefix(priority, ip, prefixLength)
+					: RuleMatch.vlan(priority, vlan)),
+					this.getAction(offset + 9));
+		}
+		return rules;
+	}
+	
+	/**
+	 * Get the groups that were installed in a switch.
+	 * @param dpid DPID of the switch
+	 * @return contents of each group, keyed by group ID; null if the groups
+	 *         of the switch were not saved
+	 * @throws IOException if the groups run past the end of the file
+	 */
+	public Map<Integer,RuleGroup> getGroups(long dpid) throws IOException
+	{
+		int entry = this.find(this.groupIndexOffset, this.groupSwitchCount,
+				dpid);
+		if (entry < 0)
+		{ return null; }
+		int offset = this.buffer.getInt(entry + 8);
+		int count = this.buffer.getInt(entry + 12);
+		
+		Map<Integer,RuleGroup> groups = new HashMap<Integer,RuleGroup>();
+		for (int i = 0; i < count; i++)
+		{
+			this.checkBounds(offset, GROUP_HEADER_SIZE);
+			int groupId = this.buffer.getInt(offset);
+			byte type = this.buffer.get(offset + 4);
+			int buckets = this.buffer.getInt(offset + 5);
+			offset += GROUP_HEADER_SIZE;
+			this.checkBounds(offset, buckets * BUCKET_SIZE);
+			
+			List<RuleAction> actions = new ArrayList<RuleAction>();
+			int[] weights = new int[buckets];
+			for (int j = 0; j < buckets; j++, offset += BUCKET_SIZE)
+			{
+				actions.add(this.getAction(offset));
+				weights[j] = this.buffer.getInt(offset + ACTION_SIZE);
+			}
+			if (OFGroupMod.OFPGT_SELECT == type)
+			{ groups.put(groupId, RuleGroup.select(actions, weights)); }
+			else if (OFGroupMod.OFPGT_FF == type)
+			{ groups.put(groupId, RuleGroup.failover(actions)); }
+			else if (1 == buckets)
+			{ groups.put(groupId, RuleGroup.indirect(actions.get(0))); }
+		}
+		return groups;
+	}
+	
+	/**
+	 * Find a switch's entry in an index.
+	 * @return the offset of the entry; -1 if the switch is not in the index
+	 */
+	private int find(int indexOffset, int count, long dpid)
+	{
+		int low = 0;
+		int high = count - 1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			int entry = indexOffset + middle * INDEX_SIZE;
+			long current = this.buffer.getLong(entry);
+			if (current < dpid)
+			{ low = middle + 1; }
+			else if (current > dpid)
+			{ high = middle - 1; }
+			else
+			{ return entry; }
+		}
+		return -1;
+	}
+	
+	private void checkBounds(int offset, int length) throws IOException
+	{
+		if (offset < 0 || length < 0 || offset + length > this.buffer.limit())
+		{ throw new IOException("Routing state file is truncated"); }
+	}
+	
+	private RuleAction getAction(int offset)
+	{
+		byte flags = this.buffer.get(offset);
+		int target = this.buffer.getInt(offset + 1);
+		short pushVlan = this.buffer.getShort(offset + 5);
+		RuleAction action = ((flags & 1) != 0 ? RuleAction.group(target)
+				: RuleAction.output(target));
+		if ((flags & 2) != 0)
+		{ action = action.withPopVlan(); }
+		else if (pushVlan != 0)
+		{ action = action.withPushVlan(pushVlan); }
+		return action;
+	}
+	
+	private static void putAction(ByteBuffer buffer, RuleAction action)
+	{
+		int flags = (RuleAction.Type.GROUP == action.getType() ? 1 : 0)
+				| (action.isPopVlan() ? 2 : 0);
+		buffer.put((byte)flags).putInt(action.getTarget());
+		buffer.putShort(action.getPushVlan()).put((byte)0);
+	}
+}
@@ -0,0 +1,227 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openflow.protocol.OFOXMFieldType;
+import org.openflow.protocol.action.OFAction;
+import org.openflow.protocol.action.OFActionGroup;
+import org.openflow.protocol.action.OFActionOutput;
+import org.openflow.protocol.action.OFActionPopVLAN;
+import org.openflow.protocol.action.OFActionPushVLAN;
+import org.openflow.protocol.action.OFActionSetField;
+import org.openflow.protocol.instruction.OFInstruction;
+
+import edu.wisc.cs.sdn.apps.util.SwitchCommands;
+
+/**
+ * What a rule installed by L3Routing does with matching packets: either send
+ * them out a port, or hand them to a group. A VLAN tag may be pushed or
+ * popped first. Equal actions are represented by a single instance, which
+ * builds its OpenFlow actions and instructions only once.
+ */
+public class RuleAction 
+{
+	public enum Type { OUTPUT, GROUP }
+	
+	// Ethernet type of an 802.1Q VLAN tag
+	private static final short ETH_TYPE_VLAN = (short)0x8100;
+	
+	// Flag that marks a VLAN ID as present in an OpenFlow 1.3 set-field
+	private static final short OFPVID_PRESENT = 0x1000;
+	
+	// The single instance of each action created so far
+	private static final ConcurrentMap<RuleAction,RuleAction> interned =
+			new ConcurrentHashMap<RuleAction,RuleAction>();
+	
+	// Plain outputs to the lowest port numbers, indexed by port, so looking
+	// them up does not allocate
+	private static final int CACHED_PORTS = 1024;
+	private static final AtomicReferenceArray<RuleAction> outputs =
+			new AtomicReferenceArray<RuleAction>(CACHED_PORTS);
+	
+	// Whether packets are sent out a port or to a group
+	private final Type type;
+	
+	// Port or group to which matching packets are sent
+	private final int target;
+	
+	// VLAN ID of the tag pushed onto packets, or 0 if no tag is pushed
+	private final short pushVlan;
+	
+	// Whether the outermost VLAN tag is popped from packets
+	private final boolean popVlan;
+	
+	// OpenFlow actions and instructions, built when first needed
+	private volatile List<OFAction> actions;
+	private volatile List<OFInstruction> instructions;
+	
+	private RuleAction(Type type, int target, short pushVlan, 
+			boolean popVlan)
+	{
+		this.type = type;
+		this.target = target;
+		this.pushVlan = pushVlan;
+		this.popVlan = popVlan;
+	}
+	
+	/**
+	 * Create an action that sends packets out a port.
+	 * @param outPort the port
+	 */
+	public static RuleAction output(int outPort)
+	{
+		if (outPort < 0 || outPort >= CACHED_PORTS)
+		{ 
+			return intern(new RuleAction(Type.OUTPUT, outPort, (short)0, 
+					false)); 
+		}
+		RuleAction action = outputs.get(outPort);
+		if (null == action)
+		{
+			outputs.compareAndSet(outPort, null, intern(new RuleAction(
+					Type.OUTPUT, outPort, (short)0, false)));
+			action = outputs.get(outPort);
+		}
+		return action;
+	}
+	
+	/**
+	 * Create an action that hands packets to a group.
+	 * @param groupId the group
+	 */
+	public static RuleAction group(int groupId)
+	{ return intern(new RuleAction(Type.GROUP, groupId, (short)0, false)); }
+	
+	/**
+	 * Get the same action, preceded by pushing a VLAN tag onto packets.
+	 * @param vlan the VLAN ID of the tag, between 1 and 4094
+	 */
+	public RuleAction withPushVlan(short vlan)
+	{ return intern(new RuleAction(this.type, this.target, vlan, false)); }
+	
+	/**
+	 * Get the same action, preceded by popping the VLAN tag from packets.
+	 */
+	public RuleAction withPopVlan()
+	{ 
+		return intern(new RuleAction(this.type, this.target, (short)0, 
+				true)); 
+	}
+	
+	public Type getType()
+	{ return this.type; }
+	
+	/**
+	 * Get the port or group to which matching packets are sent.
+	 */
+	public int getTarget()
+	{ return this.target; }
+	
+	public short getPushVlan()
+	{ return this.pushVlan; }
+	
+	public boolean isPopVlan()
+	{ return this.popVlan; }
+	
+	/**
+	 * Get the OpenFlow actions. The list is shared, and cannot be modified.
+	 */
+	public List<OFAction> toActions()
+	{
+		List<OFAction> actionList = this.actions;
+		if (null == actionList)
+		{
+			actionList = Collections.unmodifiableList(this.buildActions());
+			this.actions = actionList;
+		}
+		return actionList;
+	}
+	
+	/**
+	 * Get the OpenFlow instructions. The list is shared, and cannot be 
+	 * modified.
+	 */
+	public List<OFInstruction> toInstructions()
+	{
+		List<OFInstruction> instructionList = this.instructions;
+		if (null == instructionList)
+		{
+			// Plain outputs share the instructions cached for each port
+			if (Type.OUTPUT == this.type && 0 == this.pushVlan && !this.popVlan)
+			{ 
+				instructionList = SwitchCommands.outputInstructions(
+						this.target); 
+			}
+			else
+			{ 
+				instructionList = SwitchCommands.applyActions(
+						this.toActions()); 
+			}
+			this.instructions = instructionList;
+		}
+		return instructionList;
+	}
+	
+	private List<OFAction> buildActions()
+	{
+		List<OFAction> actionList = new ArrayList<OFAction>();
+		if (this.popVlan)
+		{ actionList.add(new OFActionPopVLAN()); }
+		if (this.pushVlan != 0)
+		{
+			actionList.add(new OFActionPushVLAN().setEtherType(ETH_TYPE_VLAN));
+			actionList.add(new OFActionSetField(OFOXMFieldType.VLAN_VID, 
+					(short)(this.pushVlan | OFPVID_PRESENT)));
+		}
+		if (Type.GROUP == this.type)
+		{ actionList.add(new OFActionGroup().setGroupId(this.target)); }
+		else
+		{ actionList.add(new OFActionOutput().setPort(this.target)); }
+		return actionList;
+	}
+	
+	private static RuleAction intern(RuleAction action)
+	{
+		RuleAction existing = interned.get(action);
+		if (existing != null)
+		{ return existing; }
+		existing = interned.putIfAbsent(action, action);
+		return (null == existing ? action : existing);
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof RuleAction))
+		{ return false; }
+		RuleAction other = (RuleAction)obj;
+		return (other.type == this.type && other.target == this.target
+				&& other.pushVlan == this.pushVlan 
+				&& other.popVlan == this.popVlan);
+	}
+	
+	@Override
+	public int hashCode()
+	{ 
+		int hash = 31 * this.type.ordinal() + this.target;
+		hash = 31 * hash + this.pushVlan;
+		return 31 * hash + (this.popVlan ? 1 : 0); 
+	}
+	
+	@Override
+	public String toString()
+	{
+		String prefix = "";
+		if (this.popVlan)
+		{ prefix = "pop_vlan,"; }
+		else if (this.pushVlan != 0)
+		{ prefix = String.format("push_vlan:%d,", this.pushVlan); }
+		return String.format("%s%s:%d", prefix, 
+				(Type.GROUP == this.type ? "group" : "output"), this.target);
+	}
+}
@@ -0,0 +1,138 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.openflow.protocol.OFBucket;
+import org.openflow.protocol.OFGroupMod;
+import org.openflow.protocol.action.OFAction;
+
+/**
+ * Contents of a group installed by L3Routing: the group type and the action
+ * applied by each of its buckets, along with the buckets' weights for select
+ * groups. Buckets of select and fast-failover groups watch the port they 
+ * output to, so the switch stops using them as soon as the port goes down.
+ */
+public class RuleGroup 
+{
+	// OpenFlow group type
+	private final byte type;
+	
+	// Action applied by each bucket
+	private final List<RuleAction> buckets;
+	
+	// Share of packets given to each bucket of a select group; zero for
+	// other group types
+	private final int[] weights;
+	
+	private RuleGroup(byte type, List<RuleAction> buckets, int[] weights)
+	{
+		this.type = type;
+		this.buckets = Collections.unmodifiableList(
+				new ArrayList<RuleAction>(buckets));
+		this.weights = weights.clone();
+	}
+	
+	/**
+	 * Create an indirect group, which applies a single bucket to every
+	 * packet.
+	 * @param action the action applied by the group's only bucket
+	 */
+	public static RuleGroup indirect(RuleAction action)
+	{
+		List<RuleAction> buckets = new ArrayList<RuleAction>();
+		buckets.add(action);
+		return new RuleGroup(OFGroupMod.OFPGT_INDIRECT, buckets, new int[1]);
+	}
+	
+	/**
+	 * Create a select group, which applies one of its buckets to each flow.
+	 * The switch picks a bucket in proportion to the buckets' weights.
+	 * @param actions the action applied by each bucket
+	 * @param weights the weight of each bucket, between 1 and 65535
+	 */
+	public static RuleGroup select(List<RuleAction> actions, int[] weights)
+	{
+		if (actions.size() != weights.length)
+		{ 
+			throw new IllegalArgumentException(
+					"Need exactly one weight per bucket"); 
+		}
+		return new RuleGroup(OFGroupMod.OFPGT_SELECT, actions, weights);
+	}
+	
+	/**
+	 * Create a fast-failover group, which applies the first bucket whose 
+	 * port is up to every packet.
+	 * @param actions the action applied by each bucket, in order of 
+	 *        preference
+	 */
+	public static RuleGroup failover(List<RuleAction> actions)
+	{ 
+		return new RuleGroup(OFGroupMod.OFPGT_FF, actions, 
+				new int[actions.size()]); 
+	}
+	
+	public byte getType()
+	{ return this.type; }
+	
+	public List<RuleAction> getBuckets()
+	{ return this.buckets; }
+	
+	public int getWeight(int bucket)
+	{ return this.weights[bucket]; }
+	
+	/**
+	 * Build the OpenFlow buckets.
+	 */
+	public List<OFBucket> toBuckets()
+	{
+		List<OFBucket> bucketList = new ArrayList<OFBucket>();
+		for (int i = 0; i < this.buckets.size(); i++)
+		{
+			RuleAction action = this.buckets.get(i);
+			List<OFAction> actionList = action.toActions();
+			int length = OFBucket.MINIMUM_LENGTH;
+			for (OFAction ofAction : actionList)
+			{ length += ofAction.getLengthU(); }
+			
+			OFBucket bucket = new OFBucket();
+			bucket.setWeight((short)this.weights[i]);
+			bucket.setWatchPort(OFGroupMod.OFPG_ANY);
+			if (this.type != OFGroupMod.OFPGT_INDIRECT 
+					&& RuleAction.Type.OUTPUT == action.getType())
+			{ bucket.setWatchPort(action.getTarget()); }
+			bucket.setWatchGroup(OFGroupMod.OFPG_ANY);
+			bucket.setActions(actionList);
+			bucket.setLength((short)length);
+			bucketList.add(bucket);
+		}
+		return bucketList;
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof RuleGroup))
+		{ return false; }
+		RuleGroup other = (RuleGroup)obj;
+		return (other.type == this.type && other.buckets.equals(this.buckets)
+				&& Arrays.equals(other.weights, this.weights));
+	}
+	
+	@Override
+	public int hashCode()
+	{ 
+		return 31 * (31 * this.type + this.buckets.hashCode()) 
+				+ Arrays.hashCode(this.weights); 
+	}
+	
+	@Override
+	public String toString()
+	{ 
+		return String.format("type=%d,buckets=%s,weights=%s", this.type, 
+				this.buckets, Arrays.toString(this.weights)); 
+	}
+}
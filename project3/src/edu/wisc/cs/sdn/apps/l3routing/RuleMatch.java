@@ -0,0 +1,160 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFOXMFieldType;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Match criteria and priority of a rule installed by L3Routing. Together
+ * they identify a single rule in a switch's flow table. A rule matches
+ * either IPv4 packets sent to a host or to a prefix of addresses, or 
+ * packets carrying a VLAN tag.
+ */
+public class RuleMatch 
+{
+	// Flag that marks a VLAN ID as present in an OpenFlow 1.3 match
+	private static final short OFPVID_PRESENT = 0x1000;
+	
+	// Priority of the rule
+	private final short priority;
+	
+	// Destination IP address matched by the rule, if no VLAN is matched
+	private final int ipDestination;
+	
+	// Number of leading bits of the destination IP address that must match
+	private final int prefixLength;
+	
+	// VLAN ID matched by the rule, or 0 if the rule matches a host's IP
+	private final short vlan;
+	
+	// OpenFlow match criteria, built when first needed
+	private volatile OFMatch ofMatch;
+	
+	private RuleMatch(short priority, int ipDestination, int prefixLength,
+			short vlan)
+	{
+		this.priority = priority;
+		this.ipDestination = ipDestination & PrefixCompiler.mask(prefixLength);
+		this.prefixLength = prefixLength;
+		this.vlan = vlan;
+	}
+	
+	/**
+	 * Create match criteria for IPv4 packets sent to a host.
+	 * @param priority priority of the rule
+	 * @param ipDestination the host's IP address
+	 */
+	public RuleMatch(short priority, int ipDestination)
+	{ this(priority, ipDestination, 32, (short)0); }
+	
+	/**
+	 * Create match criteria for IPv4 packets sent to a prefix of addresses.
+	 * @param priority priority of the rule
+	 * @param ipDestination first address of the prefix
+	 * @param prefixLength number of leading bits that must match, between 0
+	 *        and 32
+	 */
+	public static RuleMatch prefix(short priority, int ipDestination, 
+			int prefixLength)
+	{ return new RuleMatch(priority, ipDestination, prefixLength, (short)0); }
+	
+	/**
+	 * Create match criteria for packets tagged with a VLAN ID.
+	 * @param priority priority of the rule
+	 * @param vlan the VLAN ID, between 1 and 4094
+	 */
+	public static RuleMatch vlan(short priority, short vlan)
+	{ return new RuleMatch(priority, 0, 0, vlan); }
+	
+	public short getPriority()
+	{ return this.priority; }
+	
+	public int getIpDestination()
+	{ return this.ipDestination; }
+	
+	public int getPrefixLength()
+	{ return this.prefixLength; }
+	
+	public short getVlan()
+	{ return this.vlan; }
+	
+	/**
+	 * Get the OpenFlow match criteria. The same criteria are returned on
+	 * every call, so they must not be modified.
+	 */
+	public OFMatch toOFMatch()
+	{
+		OFMatch matchCriteria = this.ofMatch;
+		if (null == matchCriteria)
+		{
+			matchCriteria = this.buildOFMatch();
+			this.ofMatch = matchCriteria;
+		}
+		return matchCriteria;
+	}
+	
+	private OFMatch buildOFMatch()
+	{
+		OFMatch matchCriteria = new OFMatch();
+		if (this.vlan != 0)
+		{ 
+			matchCriteria.setField(OFOXMFieldType.VLAN_VID, 
+					(short)(this.vlan | OFPVID_PRESENT)); 
+		}
+		else if (this.prefixLength >= 32)
+		{
+			matchCriteria.setNetworkDestination(OFMatch.ETH_TYPE_IPV4, 
+					this.ipDestination);
+		}
+		else
+		{
+			// A zero-length prefix matches every IPv4 packet
+			matchCriteria.setDataLayerType(OFMatch.ETH_TYPE_IPV4);
+			if (this.prefixLength > 0)
+			{
+				matchCriteria.setField(OFOXMFieldType.IPV4_DST, 
+						this.ipDestination, 
+						PrefixCompiler.mask(this.prefixLength));
+			}
+		}
+		return matchCriteria;
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (!(obj instanceof RuleMatch))
+		{ return false; }
+		RuleMatch other = (RuleMatch)obj;
+		return (other.priority == this.priority 
+				&& other.ipDestination == this.ipDestination
+				&& other.prefixLength == this.prefixLength
+				&& other.vlan == this.vlan);
+	}
+	
+	@Override
+	public int hashCode()
+	{ 
+		int hash = 31 * this.priority + this.ipDestination;
+		return 31 * (31 * hash + this.prefixLength) + this.vlan; 
+	}
+	
+	@Override
+	public String toString()
+	{ 
+		if (this.vlan != 0)
+		{ 
+			return String.format("vlan=%d,priority=%d", this.vlan, 
+					this.priority); 
+		}
+		if (this.prefixLength < 32)
+		{
+			return String.format("ip_dst=%s/%d,priority=%d", 
+					IPv4.fromIPv4Address(this.ipDestination), 
+					this.prefixLength, this.priority);
+		}
+		return String.format("ip_dst=%s,priority=%d", 
+				IPv4.fromIPv4Address(this.ipDestination), this.priority); 
+	}
+}
@@ -0,0 +1,346 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+
+/**
+ * Shortest paths from every switch towards a single destination switch. For
+ * each switch the tree records the distance to the destination, the next
+ * switch on the path, and the port out which that next switch is reached.
+ * <p>
+ * Once a tree has been published in a {@link RoutingSnapshot} it is never
+ * modified again; changes are made to a {@link #copy() copy}. Methods that
+ * look at the graph must only be called on the thread that changes it.
+ */
+public class ShortestPathTree implements RouteTree
+{
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+	public static final int NONE = -1;
+	
+	// Orders links by the port out which they leave
+	private static final Comparator<Edge> BY_PORT = new Comparator<Edge>() {
+		@Override
+		public int compare(Edge a, Edge b)
+		{ return a.getSrcPort() - b.getSrcPort(); }
+	};
+	
+	// Graph over which the tree was computed
+	private TopologyGraph graph;
+	
+	// Index of the destination switch
+	private int root;
+	
+	// DPID of the destination switch
+	private long rootDpid;
+	
+	// Distance from each switch to the root
+	private int[] distance;
+	
+	// Index of the next switch on the path to the root
+	private int[] nextHop;
+	
+	// Port out which each switch forwards towards the root
+	private int[] outPort;
+	
+	// Number of shortest paths from each switch to the root; computed when
+	// first needed
+	private double[] pathCount;
+	
+	/**
+	 * Create a tree in which only the root is reachable.
+	 * @param graph graph over which the tree is computed
+	 * @param root index of the destination switch
+	 */
+	public ShortestPathTree(TopologyGraph graph, int root)
+	{
+		this.graph = graph;
+		this.root = root;
+		this.rootDpid = graph.getDpid(root);
+		this.distance = new int[0];
+		this.nextHop = new int[0];
+		this.outPort = new int[0];
+		this.reset();
+	}
+	
+	/**
+	 * Forget every path so the tree can be computed again. Only the root is
+	 * left reachable.
+	 */
+	public void reset()
+	{
+		this.ensureCapacity(this.graph.getCapacity());
+		this.pathCount = null;
+		Arrays.fill(this.distance, UNREACHABLE);
+		Arrays.fill(this.nextHop, NONE);
+		Arrays.fill(this.outPort, NONE);
+		this.distance[this.root] = 0;
+	}
+	
+	/**
+	 * Make room for switches added to the graph since the tree was created.
+	 * New switches are unreachable until a path to them is set.
+	 * @param capacity number of switch indices the tree must hold
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		int size = this.distance.length;
+		if (capacity <= size)
+		{ return; }
+		this.pathCount = null;
+		this.distance = Arrays.copyOf(this.distance, capacity);
+		this.nextHop = Arrays.copyOf(this.nextHop, capacity);
+		this.outPort = Arrays.copyOf(this.outPort, capacity);
+		for (int i = size; i < capacity; i++)
+		{ this.clearPath(i); }
+	}
+	
+	/**
+	 * Create a copy of a tree that can be modified independently.
+	 */
+	@Override
+	public ShortestPathTree copy()
+	{
+		ShortestPathTree copy = new ShortestPathTree(this.graph, this.root);
+		int size = this.distance.length;
+		copy.ensureCapacity(size);
+		System.arraycopy(this.distance, 0, copy.distance, 0, size);
+		System.arraycopy(this.nextHop, 0, copy.nextHop, 0, size);
+		System.arraycopy(this.outPort, 0, copy.outPort, 0, size);
+		return copy;
+	}
+	
+	@Override
+	public TopologyGraph getGraph()
+	{ return this.graph; }
+	
+	@Override
+	public int getRoot()
+	{ return this.root; }
+	
+	@Override
+	public long getRootDpid()
+	{ return this.rootDpid; }
+	
+	@Override
+	public int getDistance(int index)
+	{ 
+		return (index < this.distance.length ? this.distance[index] 
+				: UNREACHABLE); 
+	}
+	
+	@Override
+	public int getNextHop(int index)
+	{ return (index < this.nextHop.length ? this.nextHop[index] : NONE); }
+	
+	@Override
+	public int getOutPort(int index)
+	{ return (index < this.outPort.length ? this.outPort[index] : NONE); }
+	
+	@Override
+	public boolean isReachable(int index)
+	{ 
+		return (index < this.distance.length 
+				&& this.distance[index] != UNREACHABLE); 
+	}
+	
+	/**
+	 * Get every link out of a switch that starts a shortest path towards the
+	 * root. A link is on a shortest path if the distance of the switch at 
+	 * its far end plus the link's weight equals the switch's own distance. 
+	 * Only valid while the graph matches the tree.
+	 * @param index index of the switch
+	 * @param excludedHop index of a next switch whose links are left out, or
+	 *        NONE
+	 * @return the links, ordered by port; empty for the root and for 
+	 *         unreachable switches
+	 */
+	@Override
+	public List<Edge> getEqualCostLinks(int index, int excludedHop)
+	{ return findEqualCostLinks(this, index, excludedHop); }
+	
+	/**
+	 * Find a loop-free alternate for a switch: a link to a neighbor, other 
+	 * than the switch's own next hop, whose shortest path to the root does 
+	 * not come back through the switch. A neighbor N of switch S qualifies 
+	 * if dist(N,root) < dist(N,S) + dist(S,root). The neighbor offering the 
+	 * shortest detour is chosen, breaking ties by port. Only valid while the
+	 * graph matches the tree.
+	 * @param index index of the switch
+	 * @param towardsSwitch tree rooted at the switch, giving each neighbor's
+	 *        distance back to it; if null, only neighbors strictly closer to
+	 *        the root than the switch qualify
+	 * @param excludedHop index of a next switch not to use, or NONE
+	 * @return the alternate link, or null if there is none
+	 */
+	@Override
+	public Edge getLoopFreeAlternate(int index, RouteTree towardsSwitch,
+			int excludedHop)
+	{ return findLoopFreeAlternate(this, index, towardsSwitch, excludedHop); }
+	
+	/**
+	 * Get the number of distinct shortest paths from a switch to the root.
+	 * Counts for every switch are computed on the first call. Only valid 
+	 * while the graph matches the tree.
+	 * @param index index of the switch
+	 * @return the number of paths; 0 if the switch is unreachable
+	 */
+	@Override
+	public double getPathCount(int index)
+	{
+		if (!this.isReachable(index))
+		{ return 0; }
+		if (null == this.pathCount)
+		{ 
+			this.pathCount = countPaths(this, Math.max(this.distance.length, 
+					this.graph.getCapacity())); 
+		}
+		return this.pathCount[index];
+	}
+	
+	/**
+	 * Get every link out of a switch whose far end's distance plus the 
+	 * link's weight equals the switch's own distance.
+	 * @param tree the tree whose distances are compared
+	 * @param index index of the switch
+	 * @param excludedHop index of a next switch whose links are left out, or
+	 *        NONE
+	 * @return the links, ordered by port
+	 */
+	static List<Edge> findEqualCostLinks(RouteTree tree, int index, 
+			int excludedHop)
+	{
+		List<Edge> links = new ArrayList<Edge>();
+		if (index == tree.getRoot() || !tree.isReachable(index))
+		{ return links; }
+		
+		TopologyGraph graph = tree.getGraph();
+		int[] offsets = graph.getOutOffsets();
+		int[] neighbors = graph.getOutNeighbors();
+		int[] ports = graph.getOutPorts();
+		int[] weights = graph.getOutWeights();
+		for (int i = offsets[index]; i < offsets[index + 1]; i++)
+		{
+			int v = neighbors[i];
+			if (v == excludedHop || !tree.isReachable(v))
+			{ continue; }
+			if ((long)tree.getDistance(v) + weights[i] 
+					== tree.getDistance(index))
+			{ links.add(new Edge(index, ports[i], v, NONE, weights[i])); }
+		}
+		Collections.sort(links, BY_PORT);
+		return links;
+	}
+	
+	/**
+	 * Find the neighbor of a switch offering the shortest detour to the 
+	 * root whose distance to the root is less than its distance back to the
+	 * switch plus the switch's own distance, breaking ties by port.
+	 * @param tree the tree whose distances are compared
+	 * @param index index of the switch
+	 * @param towardsSwitch tree rooted at the switch, or null
+	 * @param excludedHop index of a next switch not to use, or NONE
+	 * @return the alternate link, or null if there is none
+	 */
+	static Edge findLoopFreeAlternate(RouteTree tree, int index, 
+			RouteTree towardsSwitch, int excludedHop)
+	{
+		if (index == tree.getRoot() || !tree.isReachable(index))
+		{ return null; }
+		
+		TopologyGraph graph = tree.getGraph();
+		int[] offsets = graph.getOutOffsets();
+		int[] neighbors = graph.getOutNeighbors();
+		int[] ports = graph.getOutPorts();
+		int[] weights = graph.getOutWeights();
+		Edge best = null;
+		long bestDistance = Long.MAX_VALUE;
+		for (int i = offsets[index]; i < offsets[index + 1]; i++)
+		{
+			int v = neighbors[i];
+			if (ports[i] == tree.getOutPort(index) || v == excludedHop 
+					|| !tree.isReachable(v))
+			{ continue; }
+			
+			long back = (null == towardsSwitch ? 0 
+					: towardsSwitch.getDistance(v));
+			if (tree.getDistance(v) >= back + tree.getDistance(index))
+			{ continue; }
+			
+			long detour = (long)weights[i] + tree.getDistance(v);
+			if (detour < bestDistance || (detour == bestDistance 
+					&& ports[i] < best.getSrcPort()))
+			{
+				best = new Edge(index, ports[i], v, NONE, weights[i]);
+				bestDistance = detour;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Count the shortest paths from every switch to the root, visiting 
+	 * switches in order of distance so each switch's next hops are counted
+	 * before the switch itself.
+	 * @param tree the tree whose paths are counted
+	 * @param size number of switch indices to count
+	 * @return the number of paths from each switch
+	 */
+	private static double[] countPaths(RouteTree tree, int size)
+	{
+		long[] order = new long[size];
+		int reachable = 0;
+		for (int i = 0; i < size; i++)
+		{
+			if (tree.isReachable(i))
+			{ order[reachable++] = ((long)tree.getDistance(i) << 32) | i; }
+		}
+		Arrays.sort(order, 0, reachable);
+		
+		double[] counts = new double[size];
+		for (int k = 0; k < reachable; k++)
+		{
+			int index = (int)order[k];
+			if (index == tree.getRoot())
+			{ 
+				counts[index] = 1; 
+				continue;
+			}
+			for (Edge link : tree.getEqualCostLinks(index, NONE))
+			{ counts[index] += counts[link.getDst()]; }
+		}
+		return counts;
+	}
+	
+	/**
+	 * Record the path from a switch towards the root.
+	 * @param index index of the switch
+	 * @param distance distance from the switch to the root
+	 * @param nextHop index of the next switch on the path
+	 * @param outPort port out which the next switch is reached
+	 */
+	void setPath(int index, int distance, int nextHop, int outPort)
+	{
+		this.pathCount = null;
+		this.distance[index] = distance;
+		this.nextHop[index] = nextHop;
+		this.outPort[index] = outPort;
+	}
+	
+	/**
+	 * Mark a switch as having no path to the root.
+	 * @param index index of the switch
+	 */
+	void clearPath(int index)
+	{ this.setPath(index, UNREACHABLE, NONE, NONE); }
+	
+	/**
+	 * Get the array of distances, for use as heap keys by path engines.
+	 */
+	int[] getDistances()
+	{ return this.distance; }
+}
@@ -0,0 +1,179 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+
+/**
+ * Applies a series of switch and link changes to a topology graph and works
+ * out their net effect. A link that goes down and comes back up within the
+ * series, for example, does not count as changed.
+ */
+public class TopologyChanges 
+{
+	// Graph being changed
+	private TopologyGraph graph;
+	
+	// Link each touched port had before the first change, keyed by DPID and
+	// then by port; null if the port had no link
+	private Map<Long,Map<Integer,Edge>> originals;
+	
+	// Whether any switch was added or removed
+	private boolean switchesChanged;
+	
+	/**
+	 * Start recording changes to a graph.
+	 */
+	public TopologyChanges(TopologyGraph graph)
+	{
+		this.graph = graph;
+		this.originals = new HashMap<Long,Map<Integer,Edge>>();
+		this.switchesChanged = false;
+	}
+	
+	/**
+	 * Add a switch.
+	 */
+	public void addSwitch(long dpid)
+	{
+		if (this.graph.getIndex(dpid) < 0)
+		{
+			this.graph.addSwitch(dpid);
+			this.switchesChanged = true;
+		}
+	}
+	
+	/**
+	 * Remove a switch and every link leaving or arriving at it.
+	 */
+	public void removeSwitch(long dpid)
+	{
+		int index = this.graph.getIndex(dpid);
+		if (index < 0)
+		{ return; }
+		
+		// Record the links before they go
+		for (Edge edge : this.graph.removeLinks(dpid))
+		{ 
+			this.remember(this.graph.getDpid(edge.getSrc()), 
+					edge.getSrcPort(), edge); 
+		}
+		this.graph.removeSwitch(dpid);
+		this.switchesChanged = true;
+	}
+	
+	/**
+	 * Add a link, replacing any other link leaving the same port.
+	 */
+	public void addLink(long src, int srcPort, long dst, int dstPort)
+	{
+		Edge edge = this.graph.getLink(src, srcPort);
+		if (edge != null)
+		{
+			if (edge.getDst() == this.graph.getIndex(dst)
+					&& edge.getDstPort() == dstPort)
+			{ return; }
+			this.removeLink(src, srcPort);
+		}
+		
+		if (this.graph.getIndex(src) >= 0 && this.graph.getIndex(dst) >= 0)
+		{
+			this.remember(src, srcPort, null);
+			this.graph.addLink(src, srcPort, dst, dstPort);
+		}
+	}
+	
+	/**
+	 * Remove the link leaving a port.
+	 */
+	public void removeLink(long src, int srcPort)
+	{
+		Edge edge = this.graph.getLink(src, srcPort);
+		if (null == edge)
+		{ return; }
+		this.remember(src, srcPort, edge);
+		this.graph.removeLink(src, srcPort);
+	}
+	
+	/**
+	 * Change the weight of the link leaving a port. A link whose weight 
+	 * changed counts as removed in its old form and added in its new one.
+	 */
+	public void setWeight(long src, int srcPort, int weight)
+	{
+		Edge edge = this.graph.getLink(src, srcPort);
+		if (null == edge || edge.getWeight() == weight)
+		{ return; }
+		this.remember(src, srcPort, edge);
+		this.graph.setWeight(src, srcPort, weight);
+	}
+	
+	/**
+	 * Check whether the changes affect routing at all.
+	 */
+	public boolean hasChanges()
+	{
+		return (this.switchesChanged || !this.getRemoved().isEmpty() 
+				|| !this.getAdded().isEmpty());
+	}
+	
+	/**
+	 * Get the links that were in the graph before the changes but no longer
+	 * are, in their original form.
+	 */
+	public List<Edge> getRemoved()
+	{ return this.collect(true); }
+	
+	/**
+	 * Get the links that are in the graph now but were not before.
+	 */
+	public List<Edge> getAdded()
+	{ return this.collect(false); }
+	
+	/**
+	 * Record the link a port had before it was first changed.
+	 */
+	private void remember(long src, int srcPort, Edge edge)
+	{
+		Map<Integer,Edge> ports = this.originals.get(src);
+		if (null == ports)
+		{
+			ports = new HashMap<Integer,Edge>();
+			this.originals.put(src, ports);
+		}
+		if (!ports.containsKey(srcPort))
+		{ ports.put(srcPort, edge); }
+	}
+	
+	private List<Edge> collect(boolean removed)
+	{
+		List<Edge> edges = new ArrayList<Edge>();
+		for (Map.Entry<Long,Map<Integer,Edge>> entry 
+				: this.originals.entrySet())
+		{
+			for (Map.Entry<Integer,Edge> port : entry.getValue().entrySet())
+			{
+				Edge before = port.getValue();
+				Edge after = this.graph.getLink(entry.getKey(), port.getKey());
+				if (isSame(before, after))
+				{ continue; }
+				Edge edge = (removed ? before : after);
+				if (edge != null)
+				{ edges.add(edge); }
+			}
+		}
+		return edges;
+	}
+	
+	private static boolean isSame(Edge a, Edge b)
+	{
+		if (null == a || null == b)
+		{ return (a == b); }
+		return (a.getSrc() == b.getSrc() && a.getSrcPort() == b.getSrcPort()
+				&& a.getDst() == b.getDst() && a.getDstPort() == b.getDstPort()
+				&& a.getWeight() == b.getWeight());
+	}
+}
@@ -0,0 +1,477 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Directed graph of switches and the links between them. Switches are mapped
+ * to dense indices, and links are kept in compressed sparse row (CSR) arrays
+ * so path engines can walk them without touching any objects. An index stays
+ * assigned to a switch until the switch is removed, after which it may be
+ * reused for another switch.
+ * <p>
+ * Links are added and removed one at a time in a pool of link slots; the
+ * CSR arrays are rebuilt from the pool, reusing their storage, the next time
+ * they are needed after a change.
+ */
+public class TopologyGraph 
+{
+	/**
+	 * A link from one switch to another. Only used to describe changes to
+	 * the graph; path engines read the CSR arrays instead.
+	 */
+	public static class Edge
+	{
+		/* Index of the switch on the sending side of the link */
+		private int src;
+		
+		/* Port on the sending switch out which the link leaves */
+		private int srcPort;
+		
+		/* Index of the switch on the receiving side of the link */
+		private int dst;
+		
+		/* Port on the receiving switch on which the link arrives */
+		private int dstPort;
+		
+		/* Cost of traversing the link */
+		private int weight;
+		
+		public Edge(int src, int srcPort, int dst, int dstPort, int weight)
+		{
+			this.src = src;
+			this.srcPort = srcPort;
+			this.dst = dst;
+			this.dstPort = dstPort;
+			this.weight = weight;
+		}
+		
+		public int getSrc()
+		{ return this.src; }
+		
+		public int getSrcPort()
+		{ return this.srcPort; }
+		
+		public int getDst()
+		{ return this.dst; }
+		
+		public int getDstPort()
+		{ return this.dstPort; }
+		
+		public int getWeight()
+		{ return this.weight; }
+	}
+	
+	/* Weight assigned to every link when hop count is the metric */
+	public static final int HOP_WEIGHT = 1;
+	
+	/* Marks an index that is not assigned to any switch */
+	private static final long NO_SWITCH = 0;
+	
+	/* Marks a link slot that holds no link */
+	private static final int NO_LINK = -1;
+	
+	// DPID of the switch at each index
+	private long[] dpids;
+	
+	// Index of each switch, keyed by DPID
+	private Map<Long,Integer> indexes;
+	
+	// Indices released by removed switches
+	private List<Integer> freeIndexes;
+	
+	// Pool of link slots, one array per link attribute
+	private int[] linkSrc;
+	private int[] linkSrcPort;
+	private int[] linkDst;
+	private int[] linkDstPort;
+	private int[] linkWeight;
+	
+	// Slot holding each link, keyed by sending switch index and port
+	private Map<Long,Integer> linkSlots;
+	
+	// Slots released by removed links
+	private int[] freeSlots;
+	private int freeSlotCount;
+	
+	// Number of slots ever used
+	private int slotCount;
+	
+	// Links arriving at switch v are at [inOffset[v], inOffset[v+1])
+	private int[] inOffset;
+	private int[] inNeighbor;
+	private int[] inPort;
+	private int[] inWeight;
+	
+	// Links leaving switch v are at [outOffset[v], outOffset[v+1])
+	private int[] outOffset;
+	private int[] outNeighbor;
+	private int[] outPort;
+	private int[] outWeight;
+	
+	// Whether the CSR arrays are behind the link pool
+	private boolean dirty;
+	
+	/**
+	 * Create an empty graph.
+	 */
+	public TopologyGraph()
+	{
+		this.dpids = new long[0];
+		this.indexes = new HashMap<Long,Integer>();
+		this.freeIndexes = new ArrayList<Integer>();
+		
+		this.linkSrc = new int[0];
+		this.linkSrcPort = new int[0];
+		this.linkDst = new int[0];
+		this.linkDstPort = new int[0];
+		this.linkWeight = new int[0];
+		this.linkSlots = new HashMap<Long,Integer>();
+		this.freeSlots = new int[0];
+		this.freeSlotCount = 0;
+		this.slotCount = 0;
+		
+		this.inOffset = new int[1];
+		this.inNeighbor = new int[0];
+		this.inPort = new int[0];
+		this.inWeight = new int[0];
+		this.outOffset = new int[1];
+		this.outNeighbor = new int[0];
+		this.outPort = new int[0];
+		this.outWeight = new int[0];
+		this.dirty = false;
+	}
+	
+	/**
+	 * Get the number of indices in use or available for reuse. Every switch
+	 * index is smaller than the capacity.
+	 */
+	public int getCapacity()
+	{ return this.dpids.length; }
+	
+	/**
+	 * Get the number of switches in the graph.
+	 */
+	public int getSize()
+	{ return this.indexes.size(); }
+	
+	/**
+	 * Get the number of links in the graph.
+	 */
+	public int getLinkCount()
+	{ return this.linkSlots.size(); }
+	
+	/**
+	 * Get the index of a switch.
+	 * @param dpid DPID of the switch
+	 * @return the switch's index, -1 if the switch is not in the graph
+	 */
+	public int getIndex(long dpid)
+	{
+		Integer index = this.indexes.get(dpid);
+		return (null == index ? -1 : index);
+	}
+	
+	/**
+	 * Check whether an index is assigned to a switch.
+	 */
+	public boolean contains(int index)
+	{ return (index < this.dpids.length && this.dpids[index] != NO_SWITCH); }
+	
+	/**
+	 * Get the DPID of the switch at an index.
+	 */
+	public long getDpid(int index)
+	{ return this.dpids[index]; }
+	
+	/**
+	 * Add a switch to the graph.
+	 * @param dpid DPID of the switch
+	 * @return the switch's index
+	 */
+	public int addSwitch(long dpid)
+	{
+		int index = this.getIndex(dpid);
+		if (index >= 0)
+		{ return index; }
+		
+		if (this.freeIndexes.isEmpty())
+		{
+			index = this.dpids.length;
+			this.dpids = Arrays.copyOf(this.dpids, index + 1);
+			this.dirty = true;
+		}
+		else
+		{ index = this.freeIndexes.remove(this.freeIndexes.size() - 1); }
+		
+		this.dpids[index] = dpid;
+		this.indexes.put(dpid, index);
+		return index;
+	}
+	
+	/**
+	 * Remove a switch from the graph. The switch's links must already have
+	 * been removed.
+	 * @param dpid DPID of the switch
+	 * @return the index the switch had, -1 if the switch was not in the graph
+	 */
+	public int removeSwitch(long dpid)
+	{
+		Integer index = this.indexes.remove(dpid);
+		if (null == index)
+		{ return -1; }
+		this.dpids[index] = NO_SWITCH;
+		this.freeIndexes.add(index);
+		return index;
+	}
+	
+	/**
+	 * Get the link leaving a port.
+	 * @return the link, null if there is no such link
+	 */
+	public Edge getLink(long src, int srcPort)
+	{
+		int srcIndex = this.getIndex(src);
+		if (srcIndex < 0)
+		{ return null; }
+		Integer slot = this.linkSlots.get(linkKey(srcIndex, srcPort));
+		return (null == slot ? null : this.toEdge(slot));
+	}
+	
+	/**
+	 * Get every link in the graph.
+	 */
+	public List<Edge> getLinks()
+	{
+		List<Edge> links = new ArrayList<Edge>();
+		for (int slot = 0; slot < this.slotCount; slot++)
+		{
+			if (this.linkSrc[slot] != NO_LINK)
+			{ links.add(this.toEdge(slot)); }
+		}
+		return links;
+	}
+	
+	/**
+	 * Add a link to the graph.
+	 * @return the new link, null if either switch is not in the graph or a
+	 *         link already leaves the same port
+	 */
+	public Edge addLink(long src, int srcPort, long dst, int dstPort)
+	{
+		int srcIndex = this.getIndex(src);
+		int dstIndex = this.getIndex(dst);
+		if (srcIndex < 0 || dstIndex < 0)
+		{ return null; }
+		long key = linkKey(srcIndex, srcPort);
+		if (this.linkSlots.containsKey(key))
+		{ return null; }
+		
+		int slot;
+		if (this.freeSlotCount > 0)
+		{ slot = this.freeSlots[--this.freeSlotCount]; }
+		else
+		{
+			slot = this.slotCount++;
+			if (slot >= this.linkSrc.length)
+			{ this.growLinkPool(Math.max(16, 2 * this.linkSrc.length)); }
+		}
+		
+		this.linkSrc[slot] = srcIndex;
+		this.linkSrcPort[slot] = srcPort;
+		this.linkDst[slot] = dstIndex;
+		this.linkDstPort[slot] = dstPort;
+		this.linkWeight[slot] = HOP_WEIGHT;
+		this.linkSlots.put(key, slot);
+		this.dirty = true;
+		return this.toEdge(slot);
+	}
+	
+	/**
+	 * Change the weight of the link leaving a port.
+	 * @return the link with its new weight, null if there is no such link
+	 */
+	public Edge setWeight(long src, int srcPort, int weight)
+	{
+		int srcIndex = this.getIndex(src);
+		if (srcIndex < 0)
+		{ return null; }
+		Integer slot = this.linkSlots.get(linkKey(srcIndex, srcPort));
+		if (null == slot)
+		{ return null; }
+		this.linkWeight[slot] = weight;
+		this.dirty = true;
+		return this.toEdge(slot);
+	}
+	
+	/**
+	 * Remove the link leaving a port.
+	 * @return the removed link, null if there was no such link
+	 */
+	public Edge removeLink(long src, int srcPort)
+	{
+		int srcIndex = this.getIndex(src);
+		if (srcIndex < 0)
+		{ return null; }
+		Integer slot = this.linkSlots.remove(linkKey(srcIndex, srcPort));
+		if (null == slot)
+		{ return null; }
+		
+		Edge edge = this.toEdge(slot);
+		this.linkSrc[slot] = NO_LINK;
+		this.freeSlots[this.freeSlotCount++] = slot;
+		this.dirty = true;
+		return edge;
+	}
+	
+	/**
+	 * Remove every link leaving or arriving at a switch.
+	 * @param dpid DPID of the switch
+	 * @return the removed links
+	 */
+	public List<Edge> removeLinks(long dpid)
+	{
+		List<Edge> removed = new ArrayList<Edge>();
+		int index = this.getIndex(dpid);
+		if (index < 0)
+		{ return removed; }
+		
+		for (int slot = 0; slot < this.slotCount; slot++)
+		{
+			int src = this.linkSrc[slot];
+			if (src != NO_LINK && (src == index || this.linkDst[slot] == index))
+			{ 
+				removed.add(this.removeLink(this.dpids[src], 
+						this.linkSrcPort[slot])); 
+			}
+		}
+		return removed;
+	}
+	
+	/*
+	 * CSR accessors used by path engines. Each call brings the arrays up to
+	 * date first; the arrays are only valid until the graph next changes.
+	 */
+	
+	int[] getInOffsets()
+	{ this.compact(); return this.inOffset; }
+	
+	int[] getInNeighbors()
+	{ this.compact(); return this.inNeighbor; }
+	
+	int[] getInPorts()
+	{ this.compact(); return this.inPort; }
+	
+	int[] getInWeights()
+	{ this.compact(); return this.inWeight; }
+	
+	int[] getOutOffsets()
+	{ this.compact(); return this.outOffset; }
+	
+	int[] getOutNeighbors()
+	{ this.compact(); return this.outNeighbor; }
+	
+	int[] getOutPorts()
+	{ this.compact(); return this.outPort; }
+	
+	int[] getOutWeights()
+	{ this.compact(); return this.outWeight; }
+	
+	/**
+	 * Rebuild the CSR arrays from the link pool if the graph has changed.
+	 * Runs in O(V+E) with a counting sort and only allocates when the graph
+	 * has outgrown the arrays.
+	 */
+	private void compact()
+	{
+		if (!this.dirty)
+		{ return; }
+		
+		int vertices = this.dpids.length;
+		int links = this.linkSlots.size();
+		if (this.inOffset.length < vertices + 1)
+		{
+			this.inOffset = new int[vertices + 1];
+			this.outOffset = new int[vertices + 1];
+		}
+		if (this.inNeighbor.length < links)
+		{
+			int size = Math.max(links, this.linkSrc.length);
+			this.inNeighbor = new int[size];
+			this.inPort = new int[size];
+			this.inWeight = new int[size];
+			this.outNeighbor = new int[size];
+			this.outPort = new int[size];
+			this.outWeight = new int[size];
+		}
+		
+		// Count the links at each switch, then turn counts into offsets
+		Arrays.fill(this.inOffset, 0, vertices + 1, 0);
+		Arrays.fill(this.outOffset, 0, vertices + 1, 0);
+		for (int slot = 0; slot < this.slotCount; slot++)
+		{
+			if (NO_LINK == this.linkSrc[slot])
+			{ continue; }
+			this.inOffset[this.linkDst[slot] + 1]++;
+			this.outOffset[this.linkSrc[slot] + 1]++;
+		}
+		for (int v = 0; v < vertices; v++)
+		{
+			this.inOffset[v + 1] += this.inOffset[v];
+			this.outOffset[v + 1] += this.outOffset[v];
+		}
+		
+		// Place each link, using the next offsets as running cursors
+		for (int slot = 0; slot < this.slotCount; slot++)
+		{
+			int src = this.linkSrc[slot];
+			if (NO_LINK == src)
+			{ continue; }
+			int dst = this.linkDst[slot];
+			
+			int in = this.inOffset[dst]++;
+			this.inNeighbor[in] = src;
+			this.inPort[in] = this.linkSrcPort[slot];
+			this.inWeight[in] = this.linkWeight[slot];
+			
+			int out = this.outOffset[src]++;
+			this.outNeighbor[out] = dst;
+			this.outPort[out] = this.linkSrcPort[slot];
+			this.outWeight[out] = this.linkWeight[slot];
+		}
+		
+		// Cursors now hold each switch's end offset; shift them back
+		for (int v = vertices; v > 0; v--)
+		{
+			this.inOffset[v] = this.inOffset[v - 1];
+			this.outOffset[v] = this.outOffset[v - 1];
+		}
+		this.inOffset[0] = 0;
+		this.outOffset[0] = 0;
+		
+		this.dirty = false;
+	}
+	
+	private void growLinkPool(int size)
+	{
+		this.linkSrc = Arrays.copyOf(this.linkSrc, size);
+		this.linkSrcPort = Arrays.copyOf(this.linkSrcPort, size);
+		this.linkDst = Arrays.copyOf(this.linkDst, size);
+		this.linkDstPort = Arrays.copyOf(this.linkDstPort, size);
+		this.linkWeight = Arrays.copyOf(this.linkWeight, size);
+		this.freeSlots = Arrays.copyOf(this.freeSlots, size);
+	}
+	
+	private Edge toEdge(int slot)
+	{
+		return new Edge(this.linkSrc[slot], this.linkSrcPort[slot], 
+				this.linkDst[slot], this.linkDstPort[slot], 
+				this.linkWeight[slot]);
+	}
+	
+	private static long linkKey(int srcIndex, int srcPort)
+	{ return ((long)srcIndex << 32) | (srcPort & 0xffffffffL); }
+}
@@ -0,0 +1,234 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.Arrays;
+import java.util.List;
+
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+
+/**
+ * Updates existing shortest-path trees after links are added to or removed
+ * from the graph, touching only the switches whose paths change. Works for
+ * any non-negative link weights. Scratch space is kept between runs, so a
+ * repairer must only be used by one thread at a time.
+ */
+public class TreeRepairer 
+{
+	// Membership of a switch in the part of a tree cut off by a removal
+	private static final byte UNKNOWN = 0;
+	private static final byte DETACHED = 1;
+	private static final byte ATTACHED = 2;
+	
+	// Membership of each switch, reused between runs
+	private byte[] state = new byte[0];
+	
+	// Path being followed towards the root, reused between runs
+	private int[] chain = new int[0];
+	
+	// Switches waiting to be settled, reused between runs
+	private VertexHeap heap = new VertexHeap();
+	
+	/**
+	 * Check whether a tree would change if it were repaired.
+	 * @param tree the tree to check
+	 * @param removed links no longer in the graph
+	 * @param added links new to the graph
+	 * @return true if a removed link is on some path in the tree, or an added
+	 *         link offers a shorter path for some switch
+	 */
+	public boolean isAffected(RouteTree tree, List<Edge> removed,
+			List<Edge> added)
+	{
+		for (Edge edge : removed)
+		{
+			int u = edge.getSrc();
+			if (tree.getNextHop(u) == edge.getDst()
+					&& tree.getOutPort(u) == edge.getSrcPort())
+			{ return true; }
+		}
+		for (Edge edge : added)
+		{
+			int v = edge.getDst();
+			if (tree.isReachable(v) && tree.getDistance(v) + edge.getWeight()
+					< tree.getDistance(edge.getSrc()))
+			{ return true; }
+		}
+		return false;
+	}
+	
+	/**
+	 * Check whether the set of shortest paths in a tree would change, even
+	 * if the path the tree records for each switch would not. This happens
+	 * when a removed link was on an equal-cost path the tree did not record,
+	 * or an added link creates one.
+	 * @param tree the tree to check, from before the links changed
+	 * @param removed links no longer in the graph
+	 * @param added links new to the graph
+	 * @return true if a removed or added link is on some shortest path
+	 */
+	public boolean isOnEqualCostPath(RouteTree tree, 
+			List<Edge> removed, List<Edge> added)
+	{
+		for (Edge edge : removed)
+		{
+			int v = edge.getDst();
+			if (tree.isReachable(v) && tree.getDistance(v) + edge.getWeight()
+					== tree.getDistance(edge.getSrc()))
+			{ return true; }
+		}
+		for (Edge edge : added)
+		{
+			int v = edge.getDst();
+			if (tree.isReachable(v) && tree.getDistance(v) + edge.getWeight()
+					<= tree.getDistance(edge.getSrc()))
+			{ return true; }
+		}
+		return false;
+	}
+	
+	/**
+	 * Repair a tree after links have been removed from the graph. Switches
+	 * whose path used a removed link, directly or further along, get a new
+	 * path or become unreachable.
+	 * @param tree the tree to repair
+	 * @param removed links no longer in the graph
+	 * @return true if any path in the tree changed
+	 */
+	public boolean linksRemoved(ShortestPathTree tree, 
+			List<Edge> removed)
+	{
+		TopologyGraph graph = tree.getGraph();
+		int capacity = graph.getCapacity();
+		tree.ensureCapacity(capacity);
+		
+		// Find the switches whose own path starts with a removed link
+		if (this.state.length < capacity)
+		{
+			this.state = new byte[capacity];
+			this.chain = new int[capacity];
+		}
+		byte[] state = this.state;
+		int[] chain = this.chain;
+		Arrays.fill(state, 0, capacity, UNKNOWN);
+		boolean cut = false;
+		for (Edge edge : removed)
+		{
+			int u = edge.getSrc();
+			if (tree.getNextHop(u) == edge.getDst()
+					&& tree.getOutPort(u) == edge.getSrcPort())
+			{
+				state[u] = DETACHED;
+				cut = true;
+			}
+		}
+		if (!cut)
+		{ return false; }
+		
+		// Every switch whose path passes through one of those is cut off too
+		for (int v = 0; v < capacity; v++)
+		{
+			if (state[v] != UNKNOWN || !tree.isReachable(v))
+			{ continue; }
+			int length = 0;
+			int x = v;
+			while (state[x] == UNKNOWN && x != tree.getRoot())
+			{
+				chain[length++] = x;
+				x = tree.getNextHop(x);
+			}
+			byte result = (DETACHED == state[x] ? DETACHED : ATTACHED);
+			for (int i = 0; i < length; i++)
+			{ state[chain[i]] = result; }
+		}
+		
+		// Cut off switches start over from their best attached neighbor
+		int[] offsets = graph.getOutOffsets();
+		int[] neighbors = graph.getOutNeighbors();
+		int[] ports = graph.getOutPorts();
+		int[] weights = graph.getOutWeights();
+		this.heap.reset(capacity, tree.getDistances());
+		for (int u = 0; u < capacity; u++)
+		{
+			if (state[u] == DETACHED)
+			{ tree.clearPath(u); }
+		}
+		for (int u = 0; u < capacity; u++)
+		{
+			if (state[u] != DETACHED)
+			{ continue; }
+			for (int i = offsets[u]; i < offsets[u + 1]; i++)
+			{
+				int v = neighbors[i];
+				if (DETACHED == state[v] || !tree.isReachable(v))
+				{ continue; }
+				int distance = tree.getDistance(v) + weights[i];
+				if (distance < tree.getDistance(u))
+				{ tree.setPath(u, distance, v, ports[i]); }
+			}
+			if (tree.isReachable(u))
+			{ this.heap.update(u); }
+		}
+		
+		this.propagate(tree);
+		return true;
+	}
+	
+	/**
+	 * Repair a tree after links have been added to the graph. Switches for
+	 * which a new link offers a strictly shorter path switch to it.
+	 * @param tree the tree to repair
+	 * @param added links new to the graph
+	 * @return true if any path in the tree changed
+	 */
+	public boolean linksAdded(ShortestPathTree tree, 
+			List<Edge> added)
+	{
+		TopologyGraph graph = tree.getGraph();
+		tree.ensureCapacity(graph.getCapacity());
+		this.heap.reset(graph.getCapacity(), tree.getDistances());
+		
+		boolean changed = false;
+		for (Edge edge : added)
+		{
+			int u = edge.getSrc();
+			int v = edge.getDst();
+			if (!tree.isReachable(v))
+			{ continue; }
+			int distance = tree.getDistance(v) + edge.getWeight();
+			if (distance < tree.getDistance(u))
+			{
+				tree.setPath(u, distance, v, edge.getSrcPort());
+				this.heap.update(u);
+				changed = true;
+			}
+		}
+		
+		this.propagate(tree);
+		return changed;
+	}
+	
+	/**
+	 * Spread shorter distances from the switches in the heap to the switches
+	 * whose paths lead through them.
+	 */
+	private void propagate(ShortestPathTree tree)
+	{
+		TopologyGraph graph = tree.getGraph();
+		int[] offsets = graph.getInOffsets();
+		int[] neighbors = graph.getInNeighbors();
+		int[] ports = graph.getInPorts();
+		int[] weights = graph.getInWeights();
+		while (!this.heap.isEmpty())
+		{
+			int v = this.heap.poll();
+			for (int i = offsets[v]; i < offsets[v + 1]; i++)
+			{
+				int u = neighbors[i];
+				int distance = tree.getDistance(v) + weights[i];
+				if (distance >= tree.getDistance(u))
+				{ continue; }
+				tree.setPath(u, distance, v, ports[i]);
+				this.heap.update(u);
+			}
+		}
+	}
+}
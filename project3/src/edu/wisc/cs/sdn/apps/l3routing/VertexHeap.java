@@ -0,0 +1,131 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of vertex indices supporting decrease-key. Vertices are
+ * ordered by an externally owned array of keys.
+ */
+class VertexHeap 
+{
+	// Vertex stored at each heap slot
+	private int[] heap;
+	
+	// Heap slot holding each vertex, -1 if the vertex is not in the heap
+	private int[] position;
+	
+	// Number of vertices in the heap
+	private int size;
+	
+	// Key of each vertex
+	private int[] keys;
+	
+	/**
+	 * Create an empty heap. The heap must be {@link #reset reset} before use.
+	 */
+	VertexHeap()
+	{
+		this.heap = new int[0];
+		this.position = new int[0];
+		this.size = 0;
+		this.keys = null;
+	}
+	
+	/**
+	 * Empty the heap and prepare it for a new run. Storage is reused, and
+	 * only grows when the capacity does.
+	 * @param capacity number of distinct vertices that may be stored
+	 * @param keys key of each vertex; must not change while a vertex is in
+	 *        the heap, except through {@link #update(int)}
+	 */
+	void reset(int capacity, int[] keys)
+	{
+		while (this.size > 0)
+		{ this.position[this.heap[--this.size]] = -1; }
+		if (this.heap.length < capacity)
+		{
+			int size = this.heap.length;
+			this.heap = Arrays.copyOf(this.heap, capacity);
+			this.position = Arrays.copyOf(this.position, capacity);
+			Arrays.fill(this.position, size, capacity, -1);
+		}
+		this.keys = keys;
+	}
+	
+	boolean isEmpty()
+	{ return (0 == this.size); }
+	
+	boolean contains(int vertex)
+	{ return (this.position[vertex] >= 0); }
+	
+	/**
+	 * Insert a vertex, or move it up if its key has decreased.
+	 */
+	void update(int vertex)
+	{
+		if (!this.contains(vertex))
+		{
+			this.heap[this.size] = vertex;
+			this.position[vertex] = this.size;
+			this.size++;
+		}
+		this.siftUp(this.position[vertex]);
+	}
+	
+	/**
+	 * Remove and return the vertex with the smallest key.
+	 */
+	int poll()
+	{
+		int top = this.heap[0];
+		this.size--;
+		this.position[top] = -1;
+		if (this.size > 0)
+		{
+			this.heap[0] = this.heap[this.size];
+			this.position[this.heap[0]] = 0;
+			this.siftDown(0);
+		}
+		return top;
+	}
+	
+	private void siftUp(int slot)
+	{
+		int vertex = this.heap[slot];
+		while (slot > 0)
+		{
+			int parent = (slot - 1) / 2;
+			if (this.keys[this.heap[parent]] <= this.keys[vertex])
+			{ break; }
+			this.move(this.heap[parent], slot);
+			slot = parent;
+		}
+		this.move(vertex, slot);
+	}
+	
+	private void siftDown(int slot)
+	{
+		int vertex = this.heap[slot];
+		while (true)
+		{
+			int child = 2 * slot + 1;
+			if (child >= this.size)
+			{ break; }
+			if (child + 1 < this.size 
+					&& this.keys[this.heap[child + 1]] 
+						< this.keys[this.heap[child]])
+			{ child++; }
+			if (this.keys[vertex] <= this.keys[this.heap[child]])
+			{ break; }
+			this.move(this.heap[child], slot);
+			slot = child;
+		}
+		this.move(vertex, slot);
+	}
+	
+	private void move(int vertex, int slot)
+	{
+		this.heap[slot] = vertex;
+		this.position[vertex] = slot;
+	}
+}
@@ -0,0 +1,285 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openflow.protocol.OFBarrierRequest;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.IOFMessageListener;
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Sends batches of messages to switches through their outbound queues, each
+ * followed by a barrier request, and tells the sender whether the switch
+ * accepted every message.
+ * A switch answers the barrier only after it has handled every message sent
+ * before it, so once the reply arrives, any error caused by the batch has
+ * already been received. A batch whose sender stops waiting for the reply
+ * is forgotten, so a switch that never answers does not pile up batches.
+ * Must be registered as a listener for barrier replies and errors.
+ */
+public class BarrierTracker implements IOFMessageListener 
+{
+	// Interface to the logging system
+    private static Logger log =
+    		LoggerFactory.getLogger(BarrierTracker.class.getSimpleName());
+	
+	/**
+	 * Outcome of a batch: true once the switch has handled every message
+	 * without an error, false if any message failed or the batch could not
+	 * be sent.
+	 */
+	private class Outcome implements Future<Boolean>
+	{
+		// DPID of the switch to which the batch was sent
+		private final long dpid;
+		
+		// Transaction IDs of the messages in the batch, the barrier last
+		private final List<Integer> xids;
+		
+		// Released once the outcome is known
+		private final CountDownLatch done;
+		
+		// Whether every message has been accepted so far
+		private volatile boolean accepted;
+		
+		Outcome(long dpid, List<Integer> xids)
+		{
+			this.dpid = dpid;
+			this.xids = xids;
+			this.done = new CountDownLatch(1);
+			this.accepted = true;
+		}
+		
+		void complete(boolean accepted)
+		{
+			this.accepted = (this.accepted && accepted);
+			this.done.countDown();
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{ return false; }
+		
+		@Override
+		public boolean isCancelled()
+		{ return false; }
+		
+		@Override
+		public boolean isDone()
+		{ return (0 == this.done.getCount()); }
+		
+		@Override
+		public Boolean get() throws InterruptedException
+		{
+			this.done.await();
+			return this.accepted;
+		}
+		
+		@Override
+		public Boolean get(long timeout, TimeUnit unit)
+				throws InterruptedException, TimeoutException
+		{
+			if (!this.done.await(timeout, unit))
+			{
+				forget(this);
+				throw new TimeoutException("No barrier reply");
+			}
+			return this.accepted;
+		}
+	}
+	
+	// Outbound queue for each switch
+	private SwitchQueues queues;
+	
+	// Batches waiting for a barrier reply, keyed by DPID and then by the
+	// transaction ID of each of their messages
+	private Map<Long,Map<Integer,Outcome>> pending;
+	
+	// Number of batches sent, and of those that failed
+	private long batchesSent;
+	private long batchesFailed;
+	
+	/**
+	 * Create a tracker with no batches in flight.
+	 * @param queues outbound queue for each switch
+	 */
+	public BarrierTracker(SwitchQueues queues)
+	{
+		this.queues = queues;
+		this.pending = new HashMap<Long,Map<Integer,Outcome>>();
+		this.batchesSent = 0;
+		this.batchesFailed = 0;
+	}
+	
+	/**
+	 * Queue messages for a switch, followed by a barrier request.
+	 * @param sw the switch to which the messages should be sent
+	 * @param messages the messages to send
+	 * @return the outcome of the batch, known once the switch replies to
+	 *         the barrier; never known if the switch disconnects first and
+	 *         {@link #switchRemoved(long)} is not called, or once a wait 
+	 *         for it has timed out
+	 */
+	public Future<Boolean> send(IOFSwitch sw, List<OFMessage> messages)
+	{
+		List<OFMessage> batch = new ArrayList<OFMessage>(messages);
+		OFBarrierRequest barrier = new OFBarrierRequest();
+		barrier.setLength((short)OFBarrierRequest.MINIMUM_LENGTH);
+		batch.add(barrier);
+		
+		List<Integer> xids = new ArrayList<Integer>();
+		for (OFMessage msg : batch)
+		{
+			msg.setXid(sw.getNextTransactionId());
+			xids.add(msg.getXid());
+		}
+		Outcome outcome = new Outcome(sw.getId(), xids);
+		
+		// The outcome must be known before a reply can arrive
+		synchronized (this)
+		{
+			Map<Integer,Outcome> inFlight = this.pending.get(sw.getId());
+			if (null == inFlight)
+			{
+				inFlight = new HashMap<Integer,Outcome>();
+				this.pending.put(sw.getId(), inFlight);
+			}
+			for (Integer xid : xids)
+			{ inFlight.put(xid, outcome); }
+			this.batchesSent++;
+		}
+		
+		if (!this.queues.send(sw, batch))
+		{ this.finish(outcome, false); }
+		return outcome;
+	}
+	
+	/**
+	 * Fail every batch still waiting for a reply from a switch. Used when
+	 * the switch leaves the network.
+	 * @param dpid DPID of the switch
+	 */
+	public void switchRemoved(long dpid)
+	{
+		Map<Integer,Outcome> inFlight;
+		synchronized (this)
+		{ inFlight = this.pending.remove(dpid); }
+		if (null == inFlight)
+		{ return; }
+		for (Outcome outcome : inFlight.values())
+		{ outcome.complete(false); }
+	}
+	
+	public synchronized long getBatchesSent()
+	{ return this.batchesSent; }
+	
+	public synchronized long getBatchesFailed()
+	{ return this.batchesFailed; }
+	
+	/**
+	 * Handle barrier replies and errors from switches.
+	 * @param sw switch from which the message was received
+	 * @param msg message from the switch
+	 * @param cntx the Floodlight context in which the message should be handled
+	 * @return indication whether another module should also process the message
+	 */
+	@Override
+	public net.floodlightcontroller.core.IListener.Command receive(
+			IOFSwitch sw, OFMessage msg, FloodlightContext cntx)
+	{
+		if (msg.getType() != OFType.BARRIER_REPLY
+				&& msg.getType() != OFType.ERROR)
+		{ return Command.CONTINUE; }
+		
+		Outcome outcome;
+		synchronized (this)
+		{
+			Map<Integer,Outcome> inFlight = this.pending.get(sw.getId());
+			outcome = (null == inFlight ? null : inFlight.get(msg.getXid()));
+		}
+		if (null == outcome)
+		{ return Command.CONTINUE; }
+		
+		if (OFType.ERROR == msg.getType())
+		{
+			// The rest of the batch is still handled, so wait for the barrier
+			log.warn(String.format("Switch s%d rejected a message: %s",
+					sw.getId(), msg));
+			outcome.accepted = false;
+			return Command.CONTINUE;
+		}
+		this.finish(outcome, true);
+		return Command.STOP;
+	}
+	
+	private void finish(Outcome outcome, boolean accepted)
+	{
+		synchronized (this)
+		{
+			this.remove(outcome);
+			if (!accepted || !outcome.accepted)
+			{ this.batchesFailed++; }
+		}
+		outcome.complete(accepted);
+	}
+	
+	/**
+	 * Stop waiting for the reply to a batch whose sender gave up on it. A
+	 * reply that arrives later is ignored.
+	 */
+	private synchronized void forget(Outcome outcome)
+	{
+		if (!outcome.isDone())
+		{ this.remove(outcome); }
+	}
+	
+	/**
+	 * Remove a batch from those waiting for a reply. Must be called while
+	 * holding the tracker's lock.
+	 */
+	private void remove(Outcome outcome)
+	{
+		Map<Integer,Outcome> inFlight = this.pending.get(outcome.dpid);
+		if (null == inFlight)
+		{ return; }
+		for (Integer xid : outcome.xids)
+		{ inFlight.remove(xid); }
+		if (inFlight.isEmpty())
+		{ this.pending.remove(outcome.dpid); }
+	}
+	
+	/**
+	 * Gets a name for this listener.
+	 */
+	@Override
+	public String getName()
+	{ return BarrierTracker.class.getSimpleName(); }
+	
+	/**
+	 * Check if events must be passed to another module before this module is
+	 * notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPrereq(OFType type, String name)
+	{ return false; }
+	
+	/**
+	 * Check if events must be passed to another module after this module has
+	 * been notified of the event.
+	 */
+	@Override
+	public boolean isCallbackOrderingPostreq(OFType type, String name)
+	{ return false; }
+}
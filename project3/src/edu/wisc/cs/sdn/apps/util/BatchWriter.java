@@ -0,0 +1,85 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Collects the flow-mods and group-mods meant for each switch, so they can
+ * be sent to every switch at once, with one barrier per switch. Not safe
+ * for concurrent use.
+ */
+public class BatchWriter 
+{
+	// Interface to Floodlight core for interacting with connected switches
+	private IFloodlightProviderService floodlightProv;
+	
+	// Learns whether switches accepted their batches
+	private BarrierTracker barriers;
+	
+	// Messages waiting to be sent to each switch, keyed by DPID
+	private Map<Long,FlowModBatch> batches;
+	
+	/**
+	 * Create a writer with nothing queued.
+	 * @param floodlightProv Floodlight module to look up switches by DPID
+	 * @param barriers tracker that learns whether switches accepted their
+	 *        batches
+	 */
+	public BatchWriter(IFloodlightProviderService floodlightProv,
+			BarrierTracker barriers)
+	{
+		this.floodlightProv = floodlightProv;
+		this.barriers = barriers;
+		this.batches = new LinkedHashMap<Long,FlowModBatch>();
+	}
+	
+	/**
+	 * Get the batch of messages waiting to be sent to a switch.
+	 * @param dpid DPID of the switch
+	 * @return the batch, null if the switch is not connected
+	 */
+	public FlowModBatch get(long dpid)
+	{
+		FlowModBatch batch = this.batches.get(dpid);
+		if (batch != null)
+		{ return batch; }
+		IOFSwitch sw = this.floodlightProv.getSwitch(dpid);
+		if (null == sw)
+		{ return null; }
+		batch = new FlowModBatch(sw);
+		this.batches.put(dpid, batch);
+		return batch;
+	}
+	
+	/**
+	 * Drop the messages waiting to be sent to a switch. Used when the
+	 * switch leaves the network.
+	 * @param dpid DPID of the switch
+	 */
+	public void discard(long dpid)
+	{ this.batches.remove(dpid); }
+	
+	/**
+	 * Send the waiting messages to every switch.
+	 * @return the outcome of each switch's batch, keyed by DPID
+	 */
+	public Map<Long,Future<Boolean>> flush()
+	{
+		Map<Long,Future<Boolean>> outcomes =
+				new LinkedHashMap<Long,Future<Boolean>>();
+		for (Map.Entry<Long,FlowModBatch> entry : this.batches.entrySet())
+		{
+			if (!entry.getValue().isEmpty())
+			{
+				outcomes.put(entry.getKey(),
+						entry.getValue().send(this.barriers));
+			}
+		}
+		this.batches.clear();
+		return outcomes;
+	}
+}
@@ -0,0 +1,192 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.openflow.protocol.OFBucket;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGroupMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.instruction.OFInstruction;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Flow-mods and group-mods queued for a single switch, to be sent together
+ * and confirmed by one barrier. Each method queues the same
+ * message as the {@link SwitchCommands} method of the same name, except 
+ * that match criteria are not copied: they must not be modified once they 
+ * are queued. Not safe for concurrent use.
+ */
+public class FlowModBatch 
+{
+	// Switch to which the messages are sent
+	private final IOFSwitch sw;
+	
+	// Messages queued so far, in order
+	private List<OFMessage> messages;
+	
+	/**
+	 * Create an empty batch.
+	 * @param sw the switch to which the messages should be sent
+	 */
+	public FlowModBatch(IOFSwitch sw)
+	{
+		this.sw = sw;
+		this.messages = new ArrayList<OFMessage>();
+	}
+	
+	public IOFSwitch getSwitch()
+	{ return this.sw; }
+	
+	/**
+	 * Get the number of messages queued.
+	 */
+	public int size()
+	{ return this.messages.size(); }
+	
+	public boolean isEmpty()
+	{ return this.messages.isEmpty(); }
+	
+	/**
+	 * Get the messages queued so far. The list is the batch's own, so 
+	 * changes to it change what is sent.
+	 */
+	List<OFMessage> getMessages()
+	{ return this.messages; }
+	
+	/**
+	 * Queue a rule with no timeout.
+	 * @param table the table in which the rule should be installed
+	 * @param priority the priority of the rule
+	 * @param matchCriteria the match criteria for the rule
+	 * @param instructions the actions to apply to packets matching the rule
+	 */
+	public void installRule(byte table, short priority, OFMatch matchCriteria,
+			List<OFInstruction> instructions)
+	{
+		this.installRule(table, priority, matchCriteria, instructions,
+				SwitchCommands.NO_TIMEOUT, SwitchCommands.NO_TIMEOUT);
+	}
+	
+	/**
+	 * Queue a rule.
+	 * @param table the table in which the rule should be installed
+	 * @param priority the priority of the rule
+	 * @param matchCriteria the match criteria for the rule
+	 * @param instructions the actions to apply to packets matching the rule
+	 * @param hardTimeout seconds after which the rule is removed, or 0
+	 * @param idleTimeout seconds without a matching packet after which the
+	 *        rule is removed, or 0
+	 */
+	public void installRule(byte table, short priority, OFMatch matchCriteria,
+			List<OFInstruction> instructions, short hardTimeout,
+			short idleTimeout)
+	{
+		this.messages.add(SwitchCommands.buildFlowMod(OFFlowMod.OFPFC_ADD,
+				table, priority, matchCriteria, instructions, hardTimeout,
+				idleTimeout, OFPacketOut.BUFFER_ID_NONE));
+	}
+	
+	/**
+	 * Queue a change to the instructions of a rule with exactly the same
+	 * priority and match criteria.
+	 * @param table the table in which the rule is installed
+	 * @param priority the priority of the rule
+	 * @param matchCriteria the match criteria of the rule
+	 * @param instructions the new actions to apply to packets matching the
+	 *        rule
+	 */
+	public void modifyRule(byte table, short priority, OFMatch matchCriteria,
+			List<OFInstruction> instructions)
+	{
+		this.messages.add(SwitchCommands.buildFlowMod(
+				OFFlowMod.OFPFC_MODIFY_STRICT, table, priority, matchCriteria,
+				instructions, SwitchCommands.NO_TIMEOUT,
+				SwitchCommands.NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE));
+	}
+	
+	/**
+	 * Queue the removal of the rule with exactly the same priority and match
+	 * criteria.
+	 * @param table the table from which the rule should be removed
+	 * @param priority the priority of the rule
+	 * @param matchCriteria the match criteria of the rule
+	 */
+	public void removeRule(byte table, short priority, OFMatch matchCriteria)
+	{
+		this.messages.add(SwitchCommands.buildFlowMod(
+				OFFlowMod.OFPFC_DELETE_STRICT, table, priority, matchCriteria,
+				SwitchCommands.NO_INSTRUCTIONS, SwitchCommands.NO_TIMEOUT,
+				SwitchCommands.NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE));
+	}
+	
+	/**
+	 * Queue the removal of every rule that matches at least the given
+	 * criteria.
+	 * @param table the table from which the rules should be removed
+	 * @param matchCriteria match criteria specifying the rules to delete
+	 */
+	public void removeRules(byte table, OFMatch matchCriteria)
+	{
+		this.messages.add(SwitchCommands.buildFlowMod(OFFlowMod.OFPFC_DELETE,
+				table, (short)0, matchCriteria, SwitchCommands.NO_INSTRUCTIONS,
+				SwitchCommands.NO_TIMEOUT, SwitchCommands.NO_TIMEOUT,
+				OFPacketOut.BUFFER_ID_NONE));
+	}
+	
+	/**
+	 * Queue a group.
+	 * @param groupType the type of the group (e.g., OFGroupMod.OFPGT_INDIRECT)
+	 * @param groupId the ID of the group
+	 * @param buckets the buckets of actions in the group
+	 */
+	public void installGroup(byte groupType, int groupId,
+			List<OFBucket> buckets)
+	{
+		this.messages.add(SwitchCommands.buildGroupMod(OFGroupMod.OFPGC_ADD,
+				groupType, groupId, buckets));
+	}
+	
+	/**
+	 * Queue a change to the type and buckets of a group.
+	 * @param groupType the new type of the group
+	 * @param groupId the ID of the group
+	 * @param buckets the new buckets of actions in the group
+	 */
+	public void modifyGroup(byte groupType, int groupId,
+			List<OFBucket> buckets)
+	{
+		this.messages.add(SwitchCommands.buildGroupMod(
+				OFGroupMod.OFPGC_MODIFY, groupType, groupId, buckets));
+	}
+	
+	/**
+	 * Queue the removal of a group, along with every rule that refers to it.
+	 * @param groupId the ID of the group, or OFGroupMod.OFPG_ALL to remove
+	 *        all groups
+	 */
+	public void removeGroup(int groupId)
+	{
+		this.messages.add(SwitchCommands.buildGroupMod(
+				OFGroupMod.OFPGC_DELETE, OFGroupMod.OFPGT_ALL, groupId,
+				new ArrayList<OFBucket>()));
+	}
+	
+	/**
+	 * Hand every queued message to the switch's outbound queue, followed by
+	 * a barrier, and empty the batch.
+	 * @param barriers tracker that learns the outcome from the switch
+	 * @return true once the switch has handled every message without an
+	 *         error; false if any message failed or could not be sent
+	 */
+	public Future<Boolean> send(BarrierTracker barriers)
+	{
+		Future<Boolean> outcome = barriers.send(this.sw, this.messages);
+		this.messages = new ArrayList<OFMessage>();
+		return outcome;
+	}
+}
@@ -12,9 +12,6 @@ public class Host
 	/* Floodlight module which is needed to lookup switches by DPID */
 	private IFloodlightProviderService floodlightProv;
 	
-	/* Cost used for Bellman-ford calculations */
-	private int cost;
-	
 	/**
 	 * Create a host.
 	 * @param device meta-data about the host from Floodlight's device manager
@@ -1,14 +1,27 @@
 package edu.wisc.cs.sdn.apps.util;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openflow.protocol.OFBucket;
 import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGroupMod;
 import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
 import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFStatisticsRequest;
 import org.openflow.protocol.action.OFAction;
 import org.openflow.protocol.action.OFActionOutput;
 import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.instruction.OFInstructionApplyActions;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,6 +35,23 @@ public class SwitchCommands
 	public static final short MIN_PRIORITY = Short.MIN_VALUE+1;
 	public static final short MAX_PRIORITY = Short.MAX_VALUE-1;
 	
+	// Instructions of flow-mods that delete rules
+	static final List<OFInstruction> NO_INSTRUCTIONS = 
+			Collections.emptyList();
+	
+	// Ports below this number have their output instructions kept in an 
+	// array, so looking them up does not box the port number
+	private static final int CACHED_PORTS = 1024;
+	
+	// Instructions that send packets out each low-numbered port
+	private static final AtomicReferenceArray<List<OFInstruction>> outputs =
+			new AtomicReferenceArray<List<OFInstruction>>(CACHED_PORTS);
+	
+	// Instructions that send packets out each other port, e.g., reserved
+	// ports such as the controller
+	private static final ConcurrentMap<Integer,List<OFInstruction>> 
+			otherOutputs = new ConcurrentHashMap<Integer,List<OFInstruction>>();
+	
 	// Interface to the logging system
     private static Logger log =
             LoggerFactory.getLogger(SwitchCommands.class.getSimpleName());
@@ -48,35 +78,10 @@ public class SwitchCommands
             OFMatch matchCriteria, List<OFInstruction> instructions, 
             short hardTimeout, short idleTimeout, int bufferId)
     {
-        OFFlowMod rule = new OFFlowMod();
-        rule.setHardTimeout(hardTimeout);
-        rule.setIdleTimeout(idleTimeout);
-        rule.setPriority(priority);
-        rule.setTableId(table);
-        rule.setBufferId(bufferId);
-
-        rule.setMatch(matchCriteria.clone());
-        rule.setInstructions(instructions);
-        
-        
-        int length = OFFlowMod.MINIMUM_LENGTH;
-        for (OFInstruction instruction : instructions)
-        { length += instruction.getLengthU(); }
-        rule.setLength((short)length);
-
-        try
-        {
-            sw.write(rule, null);
-            sw.flush();
-            log.debug("Installing rule: "+rule);
-        }
-        catch (IOException e)
-        {
-            log.error("Failed to install rule: "+rule);
-            return false;
-        }
-
-        return true;
+        OFFlowMod rule = buildFlowMod(OFFlowMod.OFPFC_ADD, table, priority,
+                matchCriteria.clone(), instructions, hardTimeout, 
+                idleTimeout, bufferId);
+        return send(sw, rule, "install rule");
     }
     
     /**
@@ -120,6 +125,45 @@ public class SwitchCommands
     			NO_TIMEOUT, NO_TIMEOUT);
     }
     
+    /**
+     * Changes the instructions of a rule already in a switch's flow table.
+     * Only a rule with exactly the same priority and match criteria is
+     * changed; its counters are kept.
+     * @param sw the switch in which the rule should be changed
+     * @param table the table in which the rule is installed
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria of the rule
+     * @param instructions the new actions to apply to packets matching the 
+     *         rule
+     * @return true if the change was sent to the switch, otherwise false
+     */
+    public static boolean modifyRule(IOFSwitch sw, byte table, short priority,
+            OFMatch matchCriteria, List<OFInstruction> instructions)
+    {
+        OFFlowMod rule = buildFlowMod(OFFlowMod.OFPFC_MODIFY_STRICT, table, 
+                priority, matchCriteria.clone(), instructions, NO_TIMEOUT, 
+                NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE);
+        return send(sw, rule, "modify rule");
+    }
+    
+    /**
+     * Remove a single rule from a switch's flow table. Only a rule with 
+     * exactly the same priority and match criteria is removed.
+     * @param sw the switch from which the rule should be removed
+     * @param table the table from which the rule should be removed
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria of the rule
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeRule(IOFSwitch sw, byte table, short priority,
+    		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = buildFlowMod(OFFlowMod.OFPFC_DELETE_STRICT, table, 
+                priority, matchCriteria.clone(), NO_INSTRUCTIONS, 
+                NO_TIMEOUT, NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE);
+        return send(sw, rule, "remove rule");
+    }
+    
     /**
      * Remove a rule from a switch's flow table.
      * @param sw the switch from which the rule should be removed
@@ -129,23 +173,217 @@ public class SwitchCommands
      */
     public static boolean removeRules(IOFSwitch sw, byte table, 
     		OFMatch matchCriteria)
+    {
+        OFFlowMod rule = buildFlowMod(OFFlowMod.OFPFC_DELETE, table, 
+                (short)0, matchCriteria.clone(), NO_INSTRUCTIONS, 
+                NO_TIMEOUT, NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE);
+        return send(sw, rule, "remove rules");
+    }
+    
+    /**
+     * Installs a group in a switch's group table.
+     * @param sw the switch in which the group should be installed
+     * @param groupType the type of the group (e.g., OFGroupMod.OFPGT_INDIRECT)
+     * @param groupId the ID of the group
+     * @param buckets the buckets of actions in the group
+     * @return true if the group was sent to the switch, otherwise false
+     */
+    public static boolean installGroup(IOFSwitch sw, byte groupType, 
+    		int groupId, List<OFBucket> buckets)
+    {
+    	return send(sw, buildGroupMod(OFGroupMod.OFPGC_ADD, groupType, groupId,
+    			buckets), "install group");
+    }
+    
+    /**
+     * Changes the type and buckets of a group already in a switch's group
+     * table. Rules that refer to the group are left unchanged.
+     * @param sw the switch in which the group should be changed
+     * @param groupType the new type of the group
+     * @param groupId the ID of the group
+     * @param buckets the new buckets of actions in the group
+     * @return true if the change was sent to the switch, otherwise false
+     */
+    public static boolean modifyGroup(IOFSwitch sw, byte groupType, 
+    		int groupId, List<OFBucket> buckets)
+    {
+    	return send(sw, buildGroupMod(OFGroupMod.OFPGC_MODIFY, groupType, 
+    			groupId, buckets), "modify group");
+    }
+    
+    /**
+     * Remove a group from a switch's group table. The switch also removes
+     * every rule that refers to the group.
+     * @param sw the switch from which the group should be removed
+     * @param groupId the ID of the group, or OFGroupMod.OFPG_ALL to remove 
+     *         all groups
+     * @return true if the delete was sent to the switch, otherwise false
+     */
+    public static boolean removeGroup(IOFSwitch sw, int groupId)
+    {
+    	return send(sw, buildGroupMod(OFGroupMod.OFPGC_DELETE, 
+    			OFGroupMod.OFPGT_ALL, groupId, new ArrayList<OFBucket>()),
+    			"remove group");
+    }
+    
+    /**
+     * Sends several messages to a switch at once, with a single flush. The
+     * switch handles the messages in order only if they are separated by
+     * barriers.
+     * @param sw the switch to which the messages should be sent
+     * @param messages the messages, in the order they should be sent
+     * @return true if the messages were sent to the switch, otherwise false
+     */
+    public static boolean sendBatch(IOFSwitch sw, List<OFMessage> messages)
+    {
+        try
+        {
+            sw.write(messages, null);
+            sw.flush();
+            log.debug(String.format("Sending %d messages to s%d", 
+            		messages.size(), sw.getId()));
+        }
+        catch (IOException e)
+        {
+            log.error(String.format("Failed to send %d messages to s%d", 
+            		messages.size(), sw.getId()));
+            return false;
+        }
+
+        return true;
+    }
+    
+    /**
+     * Gets the instructions that send packets out a port. Every call for 
+     * the same port returns the same list, which cannot be modified.
+     * @param port the port out which packets should be sent
+     */
+    public static List<OFInstruction> outputInstructions(int port)
+    {
+    	boolean cached = (port >= 0 && port < CACHED_PORTS);
+    	List<OFInstruction> instructions = (cached ? outputs.get(port) 
+    			: otherOutputs.get(port));
+    	if (instructions != null)
+    	{ return instructions; }
+    	
+    	instructions = applyActions(Arrays.asList(
+    			(OFAction)new OFActionOutput().setPort(port)));
+    	if (cached)
+    	{
+    		outputs.compareAndSet(port, null, instructions);
+    		return outputs.get(port);
+    	}
+    	List<OFInstruction> previous = otherOutputs.putIfAbsent(port, 
+    			instructions);
+    	return (null == previous ? instructions : previous);
+    }
+    
+    /**
+     * Builds instructions that apply a list of actions to packets. The 
+     * instructions cannot be modified, so they can be shared by any number 
+     * of flow-mods.
+     * @param actions the actions, in the order they should be applied
+     */
+    public static List<OFInstruction> applyActions(List<OFAction> actions)
+    {
+    	return Collections.singletonList((OFInstruction)
+    			new OFInstructionApplyActions().setActions(
+    					Collections.unmodifiableList(actions)));
+    }
+    
+    /**
+     * Builds a flow-mod.
+     * @param command what to do with the rule (e.g., OFFlowMod.OFPFC_ADD)
+     * @param table the table the rule is in
+     * @param priority the priority of the rule
+     * @param matchCriteria the match criteria for the rule; used as is, so it
+     *         must not be modified afterwards
+     * @param instructions the actions to apply to packets matching the rule;
+     *         empty for deletes
+     * @param hardTimeout seconds after which the rule is removed, or 0
+     * @param idleTimeout seconds without a matching packet after which the
+     *         rule is removed, or 0
+     * @param bufferId slot of a buffered packet to apply the rule to
+     */
+    static OFFlowMod buildFlowMod(byte command, byte table, short priority, 
+    		OFMatch matchCriteria, List<OFInstruction> instructions, 
+    		short hardTimeout, short idleTimeout, int bufferId)
     {
         OFFlowMod rule = new OFFlowMod();
-        rule.setCommand(OFFlowMod.OFPFC_DELETE);
+        rule.setCommand(command);
+        rule.setHardTimeout(hardTimeout);
+        rule.setIdleTimeout(idleTimeout);
+        rule.setPriority(priority);
         rule.setTableId(table);
+        rule.setBufferId(bufferId);
 
-        rule.setMatch(matchCriteria.clone());
-        rule.setLength((short)OFFlowMod.MINIMUM_LENGTH);
-
+        rule.setMatch(matchCriteria);
+        rule.setInstructions(instructions);
+        
+        int length = OFFlowMod.MINIMUM_LENGTH;
+        for (OFInstruction instruction : instructions)
+        { length += instruction.getLengthU(); }
+        rule.setLength((short)length);
+        return rule;
+    }
+    
+    /**
+     * Builds a group-mod.
+     * @param command what to do with the group (e.g., OFGroupMod.OFPGC_ADD)
+     * @param groupType the type of the group
+     * @param groupId the ID of the group
+     * @param buckets the buckets of actions in the group; empty for deletes
+     */
+    static OFGroupMod buildGroupMod(short command, byte groupType, 
+    		int groupId, List<OFBucket> buckets)
+    {
+        OFGroupMod groupMod = new OFGroupMod();
+        groupMod.setCommand(command);
+        groupMod.setGroupType(groupType);
+        groupMod.setGroupId(groupId);
+        groupMod.setBuckets(buckets);
+        
+        int length = OFGroupMod.MINIMUM_LENGTH;
+        for (OFBucket bucket : buckets)
+        { length += bucket.getLengthU(); }
+        groupMod.setLength((short)length);
+        return groupMod;
+    }
+    
+    /**
+     * Builds a request for statistics, to be sent with 
+     * IOFSwitch.queryStatistics.
+     * @param type the kind of statistics wanted
+     * @param body what to report on; null for requests without a body
+     */
+    public static OFStatisticsRequest buildStatisticsRequest(
+    		OFStatisticsType type, OFStatistics body)
+    {
+        OFStatisticsRequest request = new OFStatisticsRequest();
+        request.setStatisticType(type);
+        List<OFStatistics> bodies = new ArrayList<OFStatistics>();
+        int length = OFStatisticsRequest.MINIMUM_LENGTH;
+        if (body != null)
+        {
+            bodies.add(body);
+            length += body.getLength();
+        }
+        request.setStatistics(bodies);
+        request.setLengthU(length);
+        return request;
+    }
+    
+    private static boolean send(IOFSwitch sw, OFMessage msg, String what)
+    {
         try
         {
-            sw.write(rule, null);
+            sw.write(msg, null);
             sw.flush();
-            log.debug("Removing rule: "+rule);
+            log.debug(String.format("Sent %s: %s", what, msg));
         }
         catch (IOException e)
         {
-            log.error("Failed to remove rule: "+rule);
+            log.error(String.format("Failed to %s: %s", what, msg));
             return false;
         }
 
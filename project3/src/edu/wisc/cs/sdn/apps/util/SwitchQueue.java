@@ -0,0 +1,333 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGroupMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Bounded queue of messages waiting to be sent to one switch. Flow-mods and
+ * group-mods are released at no more than a configured rate, using a token
+ * bucket; other messages, such as barriers, are released as soon as every
+ * message before them has been. A flow-mod or group-mod for the same rule or
+ * group as one still waiting takes the waiting one's place, even if a
+ * barrier was queued in between, so a switch is never sent a change that is
+ * already out of date. Removals never take another message's place, and
+ * nothing queued after a group is added or removed, or after a message that
+ * applies to many rules, moves ahead of it.
+ */
+public class SwitchQueue 
+{
+	/**
+	 * Identifies the rule a flow-mod applies to.
+	 */
+	private static class RuleKey
+	{
+		// Table the rule is in
+		private final byte table;
+		
+		// Priority of the rule; 0 for non-strict deletes
+		private final short priority;
+		
+		// Match criteria of the rule
+		private final OFMatch match;
+		
+		// Whether the flow-mod applies to every rule its match covers
+		private final boolean wildcard;
+		
+		RuleKey(OFFlowMod rule)
+		{
+			this.wildcard = (OFFlowMod.OFPFC_DELETE == rule.getCommand()
+					|| OFFlowMod.OFPFC_MODIFY == rule.getCommand());
+			this.table = rule.getTableId();
+			this.priority = (this.wildcard ? 0 : rule.getPriority());
+			this.match = rule.getMatch();
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof RuleKey))
+			{ return false; }
+			RuleKey other = (RuleKey)obj;
+			return (other.table == this.table
+					&& other.priority == this.priority
+					&& other.wildcard == this.wildcard
+					&& other.match.equals(this.match));
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			int hash = 31 * this.table + this.priority;
+			return 31 * (31 * hash + (this.wildcard ? 1 : 0))
+					+ this.match.hashCode();
+		}
+	}
+	
+	/**
+	 * A place in the queue, holding the message most recently queued for it.
+	 */
+	private static class Slot
+	{
+		// Rule or group the message applies to; null for other messages
+		private final Object key;
+		
+		// Message to send
+		private OFMessage msg;
+		
+		Slot(Object key, OFMessage msg)
+		{
+			this.key = key;
+			this.msg = msg;
+		}
+	}
+	
+	// Switch to which the messages are sent
+	private final IOFSwitch sw;
+	
+	// Most messages that may wait at once
+	private final int capacity;
+	
+	// Flow-mods and group-mods released per second; 0 for no limit
+	private final int rate;
+	
+	// Messages waiting to be sent, in order
+	private LinkedList<Slot> slots;
+	
+	// Waiting slot for each rule and group, for slots that may still be
+	// replaced; kept across barriers
+	private Map<Object,Slot> pending;
+	
+	// Flow-mods and group-mods that may be released now
+	private double tokens;
+	
+	// When tokens were last added, in nanoseconds
+	private long lastRefill;
+	
+	// Number of messages sent, and of those replaced before being sent
+	private long sent;
+	private long replaced;
+	
+	/**
+	 * Create an empty queue.
+	 * @param sw the switch to which the messages should be sent
+	 * @param capacity most messages that may wait at once
+	 * @param rate flow-mods and group-mods released per second; 0 for no
+	 *        limit
+	 */
+	public SwitchQueue(IOFSwitch sw, int capacity, int rate)
+	{
+		this.sw = sw;
+		this.capacity = Math.max(1, capacity);
+		this.rate = Math.max(0, rate);
+		this.slots = new LinkedList<Slot>();
+		this.pending = new HashMap<Object,Slot>();
+		this.tokens = this.rate;
+		this.lastRefill = System.nanoTime();
+		this.sent = 0;
+		this.replaced = 0;
+	}
+	
+	public IOFSwitch getSwitch()
+	{ return this.sw; }
+	
+	/**
+	 * Get the number of messages waiting to be sent.
+	 */
+	public synchronized int getDepth()
+	{ return this.slots.size(); }
+	
+	public synchronized long getSent()
+	{ return this.sent; }
+	
+	public synchronized long getReplaced()
+	{ return this.replaced; }
+	
+	/**
+	 * Get roughly how long the messages waiting now will take to be sent.
+	 * @return the delay in milliseconds
+	 */
+	public synchronized long getDelay()
+	{ return (0 == this.rate ? 0 : 1000L * this.slots.size() / this.rate); }
+	
+	/**
+	 * Queue messages, waiting for room if the queue is full.
+	 * @param messages the messages, in the order they should be sent
+	 * @throws InterruptedException if interrupted while waiting for room
+	 */
+	public synchronized void add(List<OFMessage> messages)
+			throws InterruptedException
+	{
+		for (OFMessage msg : messages)
+		{
+			Object key = getKey(msg);
+			Slot slot = (null == key ? null : this.pending.get(key));
+			if (slot != null && !isDelete(msg))
+			{
+				// The slot may be ahead of an earlier batch's barrier, so it
+				// takes the later transaction ID: an error is then blamed on
+				// the later batch, whose barrier comes after the slot anyway
+				slot.msg = merge(slot.msg, msg);
+				slot.msg.setXid(msg.getXid());
+				this.replaced++;
+				continue;
+			}
+			
+			while (this.slots.size() >= this.capacity)
+			{ this.wait(); }
+			slot = new Slot(key, msg);
+			this.slots.add(slot);
+			if (null == key)
+			{ continue; }
+			
+			// Rules and groups may refer to a group, so nothing queued later
+			// may move ahead of a group being added or removed, or of a
+			// message that applies to many rules or groups
+			if (isFence(msg))
+			{ this.pending.clear(); }
+			
+			// A removal is sent as it is, and anything later for the same
+			// rule or group waits behind it: an add in its place would leave
+			// the old rule or group behind, along with the rules that refer
+			// to a removed group
+			if (isDelete(msg) || isWildcard(msg))
+			{ this.pending.remove(key); }
+			else
+			{ this.pending.put(key, slot); }
+		}
+	}
+	
+	/**
+	 * Take the messages that may be sent now.
+	 * @return the messages, in order; empty if none may be sent
+	 */
+	synchronized List<OFMessage> poll()
+	{
+		this.refill();
+		List<OFMessage> ready = new ArrayList<OFMessage>();
+		while (!this.slots.isEmpty())
+		{
+			Slot slot = this.slots.getFirst();
+			boolean limited = (slot.key != null && this.rate > 0);
+			if (limited && this.tokens < 1)
+			{ break; }
+			if (limited)
+			{ this.tokens--; }
+			
+			this.slots.removeFirst();
+			if (slot.key != null && this.pending.get(slot.key) == slot)
+			{ this.pending.remove(slot.key); }
+			ready.add(slot.msg);
+		}
+		this.sent += ready.size();
+		if (!ready.isEmpty())
+		{ this.notifyAll(); }
+		return ready;
+	}
+	
+	/**
+	 * Drop every waiting message. Used when the switch leaves the network.
+	 */
+	synchronized void clear()
+	{
+		this.slots.clear();
+		this.pending.clear();
+		this.notifyAll();
+	}
+	
+	/**
+	 * Add the tokens earned since the last refill, keeping at most one
+	 * second's worth.
+	 */
+	private void refill()
+	{
+		long now = System.nanoTime();
+		this.tokens = Math.min(this.rate,
+				this.tokens + this.rate * (now - this.lastRefill) / 1e9);
+		this.lastRefill = now;
+	}
+	
+	/**
+	 * Get the rule or group a message applies to.
+	 * @return the key; null if the message is not a flow-mod or group-mod
+	 */
+	private static Object getKey(OFMessage msg)
+	{
+		if (msg instanceof OFFlowMod)
+		{ return new RuleKey((OFFlowMod)msg); }
+		if (msg instanceof OFGroupMod)
+		{ return ((OFGroupMod)msg).getGroupId(); }
+		return null;
+	}
+	
+	private static boolean isWildcard(OFMessage msg)
+	{
+		if (msg instanceof OFFlowMod)
+		{ return ((RuleKey)getKey(msg)).wildcard; }
+		return (msg instanceof OFGroupMod
+				&& OFGroupMod.OFPG_ALL == ((OFGroupMod)msg).getGroupId());
+	}
+	
+	private static boolean isDelete(OFMessage msg)
+	{
+		if (msg instanceof OFFlowMod)
+		{
+			byte command = ((OFFlowMod)msg).getCommand();
+			return (OFFlowMod.OFPFC_DELETE == command
+					|| OFFlowMod.OFPFC_DELETE_STRICT == command);
+		}
+		return (msg instanceof OFGroupMod
+				&& OFGroupMod.OFPGC_DELETE == ((OFGroupMod)msg).getCommand());
+	}
+	
+	private static boolean isFence(OFMessage msg)
+	{
+		return (isWildcard(msg) || (msg instanceof OFGroupMod
+				&& ((OFGroupMod)msg).getCommand() != OFGroupMod.OFPGC_MODIFY));
+	}
+	
+	/**
+	 * Combine a waiting message with a later one for the same rule or group.
+	 * The later message wins, except that changes to a rule or group that
+	 * has not been added yet are made part of the add. Neither message may
+	 * be a removal.
+	 */
+	private static OFMessage merge(OFMessage earlier, OFMessage later)
+	{
+		if (earlier instanceof OFFlowMod)
+		{
+			OFFlowMod first = (OFFlowMod)earlier;
+			OFFlowMod second = (OFFlowMod)later;
+			if (OFFlowMod.OFPFC_ADD == first.getCommand()
+					&& OFFlowMod.OFPFC_MODIFY_STRICT == second.getCommand())
+			{
+				first.setInstructions(second.getInstructions());
+				first.setLength(second.getLength());
+				return first;
+			}
+		}
+		else if (earlier instanceof OFGroupMod)
+		{
+			OFGroupMod first = (OFGroupMod)earlier;
+			OFGroupMod second = (OFGroupMod)later;
+			if (OFGroupMod.OFPGC_ADD == first.getCommand()
+					&& OFGroupMod.OFPGC_MODIFY == second.getCommand())
+			{
+				first.setGroupType(second.getGroupType());
+				first.setBuckets(second.getBuckets());
+				first.setLength(second.getLength());
+				return first;
+			}
+		}
+		return later;
+	}
+}
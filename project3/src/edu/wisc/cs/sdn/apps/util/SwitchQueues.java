@@ -0,0 +1,172 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openflow.protocol.OFMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Outbound queue for each switch, drained by a single background thread.
+ * Every few milliseconds, each queue's messages that may be sent are
+ * written to the switch with a single flush. Slow switches therefore fall
+ * behind in their own queue, instead of being overrun.
+ */
+public class SwitchQueues 
+{
+	// Interface to the logging system
+    private static Logger log =
+    		LoggerFactory.getLogger(SwitchQueues.class.getSimpleName());
+	
+	// How often the queues are drained, in milliseconds
+	private static final long DRAIN_INTERVAL = 10;
+	
+	// Most messages that may wait for each switch
+	private final int capacity;
+	
+	// Flow-mods and group-mods sent to each switch per second; 0 for no
+	// limit
+	private final int rate;
+	
+	// Queue for each switch, keyed by DPID
+	private ConcurrentMap<Long,SwitchQueue> queues;
+	
+	// Thread on which the queues are drained
+	private ScheduledExecutorService executor;
+	
+	/**
+	 * Create the queues and start draining them.
+	 * @param name name for the draining thread
+	 * @param capacity most messages that may wait for each switch
+	 * @param rate flow-mods and group-mods sent to each switch per second;
+	 *        0 for no limit
+	 */
+	public SwitchQueues(final String name, int capacity, int rate)
+	{
+		this.capacity = capacity;
+		this.rate = rate;
+		this.queues = new ConcurrentHashMap<Long,SwitchQueue>();
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run()
+			{ drain(); }
+		}, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Queue messages for a switch, waiting for room if its queue is full.
+	 * @param sw the switch to which the messages should be sent
+	 * @param messages the messages, in the order they should be sent
+	 * @return true if the messages were queued; false if interrupted while
+	 *         waiting for room
+	 */
+	public boolean send(IOFSwitch sw, List<OFMessage> messages)
+	{
+		try
+		{ this.getQueue(sw).add(messages); }
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Get the number of messages waiting to be sent to a switch.
+	 * @param dpid DPID of the switch
+	 */
+	public int getDepth(long dpid)
+	{
+		SwitchQueue queue = this.queues.get(dpid);
+		return (null == queue ? 0 : queue.getDepth());
+	}
+	
+	/**
+	 * Get roughly how long the messages waiting for a switch will take to
+	 * be sent.
+	 * @param dpid DPID of the switch
+	 * @return the delay in milliseconds
+	 */
+	public long getDelay(long dpid)
+	{
+		SwitchQueue queue = this.queues.get(dpid);
+		return (null == queue ? 0 : queue.getDelay());
+	}
+	
+	/**
+	 * Drop the queue for a switch, along with its waiting messages. Used
+	 * when the switch leaves the network.
+	 * @param dpid DPID of the switch
+	 */
+	public void switchRemoved(long dpid)
+	{
+		SwitchQueue queue = this.queues.remove(dpid);
+		if (queue != null)
+		{ queue.clear(); }
+	}
+	
+	/**
+	 * Stop sending messages.
+	 */
+	public void shutdown()
+	{ this.executor.shutdownNow(); }
+	
+	private SwitchQueue getQueue(IOFSwitch sw)
+	{
+		SwitchQueue queue = this.queues.get(sw.getId());
+		if (queue != null && queue.getSwitch() == sw)
+		{ return queue; }
+		
+		// A switch that reconnected gets a fresh queue
+		SwitchQueue fresh = new SwitchQueue(sw, this.capacity, this.rate);
+		if (null == queue)
+		{
+			if (null == this.queues.putIfAbsent(sw.getId(), fresh))
+			{ return fresh; }
+		}
+		else if (this.queues.replace(sw.getId(), queue, fresh))
+		{
+			queue.clear();
+			return fresh;
+		}
+		
+		// Another thread changed the queue first
+		return this.getQueue(sw);
+	}
+	
+	private void drain()
+	{
+		for (SwitchQueue queue : this.queues.values())
+		{
+			List<OFMessage> ready = queue.poll();
+			if (ready.isEmpty())
+			{ continue; }
+			try
+			{ SwitchCommands.sendBatch(queue.getSwitch(), ready); }
+			catch (RuntimeException e)
+			{
+				log.error(String.format("Failed to send to s%d",
+						queue.getSwitch().getId()), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package edu.wisc.cs.sdn.apps.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.openflow.protocol.OFBucket;
+import org.openflow.protocol.OFFlowMod;
+import org.openflow.protocol.OFGroupMod;
+import org.openflow.protocol.OFMatch;
+import org.openflow.protocol.OFMessage;
+import org.openflow.protocol.OFPacketOut;
+import org.openflow.protocol.OFStatisticsRequest;
+import org.openflow.protocol.instruction.OFInstruction;
+import org.openflow.protocol.statistics.OFFlowStatisticsReply;
+import org.openflow.protocol.statistics.OFFlowStatisticsRequest;
+import org.openflow.protocol.statistics.OFGroupDescStatisticsReply;
+import org.openflow.protocol.statistics.OFStatistics;
+import org.openflow.protocol.statistics.OFStatisticsType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.core.IOFSwitch;
+
+/**
+ * Brings a switch that joined the network up to date without wiping it.
+ * The switch is asked for the rules in a table and for its groups. Every
+ * rule and group it should have is then queued for it, as though it were
+ * empty, and the queued messages are compared with what it reported before
+ * they are sent: adds of rules and groups the switch already has are
+ * dropped, and rules and groups it has but should not are removed. A
+ * switch that merely reconnected therefore keeps forwarding throughout.
+ * If the switch does not answer in time, the groups about to be added are
+ * removed first instead, as for a new switch. Rules with other priorities,
+ * and groups with higher IDs, belong to someone else and are left alone.
+ * Not safe for concurrent use.
+ */
+public class SwitchReconciler 
+{
+	// Interface to the logging system
+    private static Logger log =
+    		LoggerFactory.getLogger(SwitchReconciler.class.getSimpleName());
+	
+	// Port number that stands for any port in a request
+	private static final int OFPP_ANY = 0xffffffff;
+	
+	/**
+	 * Identifies a rule within a table.
+	 */
+	private static class RuleKey
+	{
+		// Priority of the rule
+		private final short priority;
+		
+		// Match criteria of the rule
+		private final OFMatch match;
+		
+		RuleKey(short priority, OFMatch match)
+		{
+			this.priority = priority;
+			this.match = match;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof RuleKey))
+			{ return false; }
+			RuleKey other = (RuleKey)obj;
+			return (other.priority == this.priority
+					&& other.match.equals(this.match));
+		}
+		
+		@Override
+		public int hashCode()
+		{ return 31 * this.priority + this.match.hashCode(); }
+	}
+	
+	/**
+	 * Replies awaited from a switch.
+	 */
+	private static class Request
+	{
+		// Rules in the table
+		private final Future<List<OFStatistics>> rules;
+		
+		// Groups; null if groups are not reconciled
+		private final Future<List<OFStatistics>> groups;
+		
+		Request(Future<List<OFStatistics>> rules,
+				Future<List<OFStatistics>> groups)
+		{
+			this.rules = rules;
+			this.groups = groups;
+		}
+	}
+	
+	// Table whose rules are reconciled
+	private final byte table;
+	
+	// Priorities of the rules that may be removed; rules with any other
+	// priority belong to someone else
+	private final Set<Short> priorities;
+	
+	// Whether groups are reconciled too
+	private final boolean withGroups;
+	
+	// Largest ID of the groups that may be removed; groups with higher IDs
+	// belong to someone else
+	private final int maxGroupId;
+	
+	// Replies awaited from each switch, keyed by DPID; null for a switch
+	// that could not be asked
+	private Map<Long,Request> pending;
+	
+	// Switches that get all their rules and groups again without being 
+	// asked for their tables
+	private Set<Long> resetting;
+	
+	// Number of rules and groups kept, and of those removed
+	private long rulesKept;
+	private long rulesRemoved;
+	private long groupsKept;
+	private long groupsRemoved;
+	
+	/**
+	 * Create a reconciler with no switch waiting.
+	 * @param table the table whose rules are reconciled
+	 * @param priorities priorities of the rules that may be removed
+	 * @param withGroups whether groups are reconciled too
+	 * @param maxGroupId largest ID of the groups that may be removed
+	 */
+	public SwitchReconciler(byte table, Collection<Short> priorities,
+			boolean withGroups, int maxGroupId)
+	{
+		this.table = table;
+		this.priorities = new HashSet<Short>(priorities);
+		this.withGroups = withGroups;
+		this.maxGroupId = maxGroupId;
+		this.pending = new LinkedHashMap<Long,Request>();
+		this.resetting = new HashSet<Long>();
+		this.rulesKept = 0;
+		this.rulesRemoved = 0;
+		this.groupsKept = 0;
+		this.groupsRemoved = 0;
+	}
+	
+	/**
+	 * Ask a switch for its rules and groups. Must be called before anything
+	 * is queued for the switch.
+	 * @param sw the switch
+	 */
+	public void start(IOFSwitch sw)
+	{
+		Request request = null;
+		try
+		{
+			request = new Request(sw.queryStatistics(this.getRulesRequest()),
+					(this.withGroups ? sw.queryStatistics(
+							this.getGroupsRequest()) : null));
+		}
+		catch (IOException e)
+		{
+			log.warn(String.format("Failed to read the tables of s%d",
+					sw.getId()), e);
+		}
+		this.pending.put(sw.getId(), request);
+	}
+	
+	/**
+	 * Have the groups a switch is about to get removed from it first,
+	 * without asking it for its tables. Used when every rule and group is
+	 * installed in the switch again.
+	 * @param dpid DPID of the switch
+	 */
+	public void reset(long dpid)
+	{
+		this.pending.remove(dpid);
+		this.resetting.add(dpid);
+	}
+	
+	/**
+	 * Stop waiting for a switch. Used when the switch leaves the network.
+	 * @param dpid DPID of the switch
+	 */
+	public void discard(long dpid)
+	{
+		this.pending.remove(dpid);
+		this.resetting.remove(dpid);
+	}
+	
+	public long getRulesKept()
+	{ return this.rulesKept; }
+	
+	public long getRulesRemoved()
+	{ return this.rulesRemoved; }
+	
+	public long getGroupsKept()
+	{ return this.groupsKept; }
+	
+	public long getGroupsRemoved()
+	{ return this.groupsRemoved; }
+	
+	/**
+	 * Compare the messages queued for each waiting switch with what the
+	 * switch reported, and change them so they only bring the switch up to
+	 * date.
+	 * @param writer holds the messages queued for each switch
+	 * @param timeout milliseconds to wait for the switches' replies
+	 * @return DPIDs of the switches whose tables could not be read
+	 */
+	public Set<Long> reconcile(BatchWriter writer, long timeout)
+	{
+		for (Long dpid : this.resetting)
+		{
+			FlowModBatch batch = writer.get(dpid);
+			if (this.withGroups && batch != null)
+			{ this.removeAddedGroups(batch); }
+		}
+		this.resetting.clear();
+		
+		Set<Long> unread = new HashSet<Long>();
+		long deadline = System.currentTimeMillis() + timeout;
+		for (Map.Entry<Long,Request> entry : this.pending.entrySet())
+		{
+			FlowModBatch batch = writer.get(entry.getKey());
+			if (null == batch)
+			{ continue; }
+			
+			Request request = entry.getValue();
+			List<OFStatistics> rules = null;
+			List<OFStatistics> groups = new ArrayList<OFStatistics>();
+			if (request != null)
+			{
+				rules = await(request.rules, deadline);
+				if (this.withGroups)
+				{ groups = await(request.groups, deadline); }
+			}
+			if (null == rules || null == groups)
+			{
+				// Groups left in the switch would make adding ours fail
+				log.warn(String.format("No tables from s%d; installing its "
+						+ "rules from scratch", entry.getKey()));
+				if (this.withGroups)
+				{ this.removeAddedGroups(batch); }
+				unread.add(entry.getKey());
+				continue;
+			}
+			this.reconcile(batch, rules, groups);
+		}
+		this.pending.clear();
+		return unread;
+	}
+	
+	/**
+	 * Change the messages queued for a switch so they only bring it up to
+	 * date.
+	 * @param batch the messages queued for the switch
+	 * @param rules the rules the switch reported
+	 * @param groups the groups the switch reported
+	 */
+	private void reconcile(FlowModBatch batch, List<OFStatistics> rules,
+			List<OFStatistics> groups)
+	{
+		Map<RuleKey,List<OFInstruction>> reportedRules =
+				new LinkedHashMap<RuleKey,List<OFInstruction>>();
+		for (OFStatistics stats : rules)
+		{
+			if (!(stats instanceof OFFlowStatisticsReply))
+			{ continue; }
+			OFFlowStatisticsReply rule = (OFFlowStatisticsReply)stats;
+			if (rule.getTableId() == this.table
+					&& this.priorities.contains(rule.getPriority()))
+			{
+				reportedRules.put(new RuleKey(rule.getPriority(),
+						rule.getMatch()), rule.getInstructions());
+			}
+		}
+		Map<Integer,OFGroupDescStatisticsReply> reportedGroups =
+				new LinkedHashMap<Integer,OFGroupDescStatisticsReply>();
+		for (OFStatistics stats : groups)
+		{
+			if (!(stats instanceof OFGroupDescStatisticsReply))
+			{ continue; }
+			OFGroupDescStatisticsReply group =
+					(OFGroupDescStatisticsReply)stats;
+			if (this.isOwnGroup(group.getGroupId()))
+			{ reportedGroups.put(group.getGroupId(), group); }
+		}
+		
+		int kept = 0;
+		List<OFMessage> messages = batch.getMessages();
+		List<OFMessage> needed = new ArrayList<OFMessage>();
+		for (OFMessage msg : messages)
+		{
+			if (msg instanceof OFFlowMod
+					&& OFFlowMod.OFPFC_ADD == ((OFFlowMod)msg).getCommand())
+			{
+				OFFlowMod rule = (OFFlowMod)msg;
+				List<OFInstruction> instructions = reportedRules.remove(
+						new RuleKey(rule.getPriority(), rule.getMatch()));
+				if (rule.getInstructions().equals(instructions))
+				{
+					this.rulesKept++;
+					kept++;
+					continue;
+				}
+			}
+			else if (msg instanceof OFGroupMod
+					&& OFGroupMod.OFPGC_ADD == ((OFGroupMod)msg).getCommand())
+			{
+				OFGroupMod group = (OFGroupMod)msg;
+				OFGroupDescStatisticsReply current =
+						reportedGroups.remove(group.getGroupId());
+				if (current != null)
+				{
+					if (current.getGroupType() == group.getGroupType()
+							&& current.getBuckets().equals(group.getBuckets()))
+					{
+						this.groupsKept++;
+						kept++;
+						continue;
+					}
+					
+					// Adding a group that already exists fails
+					group.setCommand(OFGroupMod.OFPGC_MODIFY);
+				}
+			}
+			needed.add(msg);
+		}
+		
+		// Stale rules are removed first, then the groups none of the
+		// remaining rules can refer to
+		List<OFMessage> stale = new ArrayList<OFMessage>();
+		for (RuleKey key : reportedRules.keySet())
+		{
+			stale.add(SwitchCommands.buildFlowMod(OFFlowMod.OFPFC_DELETE_STRICT,
+					this.table, key.priority, key.match,
+					SwitchCommands.NO_INSTRUCTIONS, SwitchCommands.NO_TIMEOUT,
+					SwitchCommands.NO_TIMEOUT, OFPacketOut.BUFFER_ID_NONE));
+		}
+		for (Integer groupId : reportedGroups.keySet())
+		{
+			stale.add(SwitchCommands.buildGroupMod(OFGroupMod.OFPGC_DELETE,
+					OFGroupMod.OFPGT_ALL, groupId, new ArrayList<OFBucket>()));
+		}
+		this.rulesRemoved += reportedRules.size();
+		this.groupsRemoved += reportedGroups.size();
+		
+		messages.clear();
+		messages.addAll(stale);
+		messages.addAll(needed);
+		log.info(String.format("Reconciled s%d: %d rules and groups kept, %d "
+				+ "removed, %d sent", batch.getSwitch().getId(), kept,
+				stale.size(), needed.size()));
+	}
+	
+	/**
+	 * Queue the removal of every group a batch adds ahead of the batch, so
+	 * the adds succeed whatever the switch already has. Removing a group 
+	 * the switch does not have is not an error.
+	 * @param batch the messages queued for the switch
+	 */
+	private void removeAddedGroups(FlowModBatch batch)
+	{
+		List<OFMessage> messages = batch.getMessages();
+		List<OFMessage> removals = new ArrayList<OFMessage>();
+		for (OFMessage msg : messages)
+		{
+			if (msg instanceof OFGroupMod
+					&& OFGroupMod.OFPGC_ADD == ((OFGroupMod)msg).getCommand()
+					&& this.isOwnGroup(((OFGroupMod)msg).getGroupId()))
+			{
+				removals.add(SwitchCommands.buildGroupMod(
+						OFGroupMod.OFPGC_DELETE, OFGroupMod.OFPGT_ALL,
+						((OFGroupMod)msg).getGroupId(),
+						new ArrayList<OFBucket>()));
+			}
+		}
+		messages.addAll(0, removals);
+	}
+	
+	private boolean isOwnGroup(int groupId)
+	{ return ((groupId & 0xffffffffL) <= this.maxGroupId); }
+	
+	private OFStatisticsRequest getRulesRequest()
+	{
+		OFFlowStatisticsRequest body = new OFFlowStatisticsRequest();
+		body.setMatch(new OFMatch());
+		body.setTableId(this.table);
+		body.setOutPort(OFPP_ANY);
+		body.setOutGroup(OFGroupMod.OFPG_ANY);
+		return SwitchCommands.buildStatisticsRequest(OFStatisticsType.FLOW, 
+				body);
+	}
+	
+	private OFStatisticsRequest getGroupsRequest()
+	{ 
+		return SwitchCommands.buildStatisticsRequest(
+				OFStatisticsType.GROUP_DESC, null); 
+	}
+	
+	/**
+	 * Wait for a switch's reply.
+	 * @param reply the reply
+	 * @param deadline when to stop waiting, in milliseconds since the epoch
+	 * @return the reply; null if it did not arrive in time
+	 */
+	private static List<OFStatistics> await(Future<List<OFStatistics>> reply,
+			long deadline)
+	{
+		long wait = Math.max(0, deadline - System.currentTimeMillis());
+		try
+		{ return reply.get(wait, TimeUnit.MILLISECONDS); }
+		catch (TimeoutException e)
+		{ return null; }
+		catch (ExecutionException e)
+		{ return null; }
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+}
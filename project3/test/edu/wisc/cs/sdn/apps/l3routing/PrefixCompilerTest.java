@@ -0,0 +1,156 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.wisc.cs.sdn.apps.l3routing.PrefixCompiler.Prefix;
+
+/**
+ * Checks that a compiled table sends every routed address where the
+ * original routes did, using longest-prefix match as a switch would.
+ */
+public class PrefixCompilerTest 
+{
+	// Base prefix the routes fall within, small enough to check every
+	// address in it
+	private static final int BASE_ADDRESS = 0x0a000000;
+	private static final int BASE_LENGTH = 20;
+	
+	// Random tables to compile
+	private static final int TABLES = 50;
+	
+	// Seed of the random tables, so a failure can be reproduced
+	private static final long SEED = 7;
+	
+	@Test
+	public void compiledTablesMatchRoutes()
+	{
+		Random random = new Random(SEED);
+		for (int table = 0; table < TABLES; table++)
+		{
+			// Few distinct next hops and gaps between routed addresses
+			// are what let the compiler merge routes into prefixes
+			int nextHops = 1 + random.nextInt(4);
+			double density = random.nextDouble();
+			Map<Integer,Integer> routes = new HashMap<Integer,Integer>();
+			for (int i = 0; i < (1 << (32 - BASE_LENGTH)); i++)
+			{
+				if (random.nextDouble() < density)
+				{ routes.put(BASE_ADDRESS + i, random.nextInt(nextHops)); }
+			}
+			checkTable(routes, PrefixCompiler.compile(routes, BASE_ADDRESS,
+					BASE_LENGTH), "table " + table);
+		}
+	}
+	
+	@Test
+	public void compiledRangesMatchRoutes()
+	{
+		// Runs of addresses with the same next hop, as when hosts are
+		// numbered by the switch they attach to
+		Random random = new Random(SEED);
+		Map<Integer,Integer> routes = new HashMap<Integer,Integer>();
+		int address = 0;
+		while (address < (1 << (32 - BASE_LENGTH)))
+		{
+			int run = 1 + random.nextInt(64);
+			int nextHop = random.nextInt(8);
+			for (int i = 0; i < run; i++, address++)
+			{ routes.put(BASE_ADDRESS + address, nextHop); }
+		}
+		List<Prefix<Integer>> rules = PrefixCompiler.compile(routes,
+				BASE_ADDRESS, BASE_LENGTH);
+		checkTable(routes, rules, "ranges");
+		assertTrue(rules.size() < routes.size());
+	}
+	
+	@Test
+	public void uniformRoutesNeedOneRule()
+	{
+		Map<Integer,Integer> routes = new HashMap<Integer,Integer>();
+		for (int i = 0; i < 100; i += 3)
+		{ routes.put(BASE_ADDRESS + i, 1); }
+		List<Prefix<Integer>> rules = PrefixCompiler.compile(routes,
+				BASE_ADDRESS, BASE_LENGTH);
+		assertEquals(1, rules.size());
+		assertEquals(BASE_ADDRESS, rules.get(0).getAddress());
+		assertEquals(BASE_LENGTH, rules.get(0).getLength());
+	}
+	
+	@Test
+	public void routesOutsideBaseAreIgnored()
+	{
+		Map<Integer,Integer> routes = new HashMap<Integer,Integer>();
+		routes.put(BASE_ADDRESS + 1, 1);
+		routes.put(BASE_ADDRESS + 2, 2);
+		routes.put(0x0b000001, 3);
+		List<Prefix<Integer>> rules = PrefixCompiler.compile(routes,
+				BASE_ADDRESS, BASE_LENGTH);
+		routes.remove(0x0b000001);
+		checkTable(routes, rules, "outside base");
+		assertTrue(PrefixCompiler.compile(routes, 0x0b000000, 8).isEmpty());
+	}
+	
+	/**
+	 * Check that the rules fall within the base prefix, the first of them
+	 * being the base prefix itself, that no two rules have the same prefix,
+	 * and that every routed address in the base prefix looks up the value
+	 * it was routed to. Without routes there must be no rules.
+	 */
+	private static void checkTable(Map<Integer,Integer> routes,
+			List<Prefix<Integer>> rules, String name)
+	{
+		if (routes.isEmpty())
+		{
+			assertTrue(name, rules.isEmpty());
+			return;
+		}
+		assertEquals(name, BASE_ADDRESS, rules.get(0).getAddress());
+		assertEquals(name, BASE_LENGTH, rules.get(0).getLength());
+		Set<Long> prefixes = new HashSet<Long>();
+		for (Prefix<Integer> rule : rules)
+		{
+			assertTrue(name, rule.getLength() >= BASE_LENGTH);
+			assertTrue(name, (rule.getAddress()
+					& PrefixCompiler.mask(BASE_LENGTH)) == BASE_ADDRESS);
+			assertTrue(name, prefixes.add(((rule.getAddress() & 0xffffffffL)
+					<< 8) | rule.getLength()));
+		}
+		
+		for (int i = 0; i < (1 << (32 - BASE_LENGTH)); i++)
+		{
+			Integer value = routes.get(BASE_ADDRESS + i);
+			if (null == value)
+			{ continue; }
+			Prefix<Integer> match = lookup(rules, BASE_ADDRESS + i);
+			assertNotNull(name, match);
+			assertEquals(name + ", address " + i, value, match.getValue());
+		}
+	}
+	
+	/**
+	 * Find the longest prefix that covers an address.
+	 * @return the rule, null if no rule covers the address
+	 */
+	private static Prefix<Integer> lookup(List<Prefix<Integer>> rules, int ip)
+	{
+		Prefix<Integer> longest = null;
+		for (Prefix<Integer> rule : rules)
+		{
+			if (rule.contains(ip) && (null == longest
+					|| rule.getLength() > longest.getLength()))
+			{ longest = rule; }
+		}
+		return longest;
+	}
+}
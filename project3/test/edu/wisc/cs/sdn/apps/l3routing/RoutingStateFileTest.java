@@ -0,0 +1,178 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+
+/**
+ * Checks that routing state reads back as it was written, and that a file
+ * cut short is rejected rather than read as partial state.
+ */
+public class RoutingStateFileTest 
+{
+	// Priority of the rules saved
+	private static final short PRIORITY = 10;
+	
+	// State saved by each test
+	private TopologyGraph graph;
+	private List<HostIndex.Entry> hosts;
+	private Map<Long,Map<RuleMatch,RuleAction>> rules;
+	private Map<Long,Map<Integer,RuleGroup>> groups;
+	
+	// File the state is saved to
+	private File file;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		this.graph = new TopologyGraph();
+		for (long dpid = 1; dpid <= 3; dpid++)
+		{ this.graph.addSwitch(dpid); }
+		this.graph.addLink(1, 1, 2, 1);
+		this.graph.addLink(2, 1, 1, 1);
+		this.graph.addLink(2, 2, 3, 1);
+		this.graph.addLink(3, 1, 2, 2);
+		
+		this.hosts = new ArrayList<HostIndex.Entry>();
+		this.hosts.add(new HostIndex.Entry(null, 0x0a000001, 1, 3));
+		this.hosts.add(new HostIndex.Entry(null, 0x0a000002, 3, 2));
+		
+		this.rules = new HashMap<Long,Map<RuleMatch,RuleAction>>();
+		Map<RuleMatch,RuleAction> first = new HashMap<RuleMatch,RuleAction>();
+		first.put(new RuleMatch(PRIORITY, 0x0a000001), RuleAction.output(3));
+		first.put(new RuleMatch(PRIORITY, 0x0a000002), RuleAction.group(7));
+		first.put(RuleMatch.prefix(PRIORITY, 0x0b000000, 8),
+				RuleAction.output(1).withPushVlan((short)5));
+		first.put(RuleMatch.vlan(PRIORITY, (short)5),
+				RuleAction.output(1).withPopVlan());
+		this.rules.put(1L, first);
+		Map<RuleMatch,RuleAction> third = new HashMap<RuleMatch,RuleAction>();
+		third.put(new RuleMatch(PRIORITY, 0x0a000002), RuleAction.output(2));
+		this.rules.put(3L, third);
+		
+		this.groups = new HashMap<Long,Map<Integer,RuleGroup>>();
+		Map<Integer,RuleGroup> installed = new HashMap<Integer,RuleGroup>();
+		List<RuleAction> actions = Arrays.asList(RuleAction.output(1),
+				RuleAction.output(2));
+		installed.put(7, RuleGroup.select(actions, new int[] { 1, 3 }));
+		installed.put(8, RuleGroup.failover(actions));
+		installed.put(9, RuleGroup.indirect(RuleAction.output(2)));
+		this.groups.put(2L, installed);
+		
+		this.file = File.createTempFile("routing", ".state");
+	}
+	
+	@After
+	public void tearDown()
+	{ this.file.delete(); }
+	
+	@Test
+	public void readsBackWhatWasWritten() throws IOException
+	{
+		this.write();
+		RoutingStateFile state = RoutingStateFile.open(this.file);
+		
+		assertEquals(3, state.getSwitchCount());
+		for (int i = 0; i < state.getSwitchCount(); i++)
+		{ assertEquals(i + 1, state.getSwitch(i)); }
+		
+		List<Edge> links = this.graph.getLinks();
+		assertEquals(links.size(), state.getLinkCount());
+		for (int i = 0; i < links.size(); i++)
+		{
+			Edge link = links.get(i);
+			assertEquals(this.graph.getDpid(link.getSrc()),
+					state.getLinkSrc(i));
+			assertEquals(link.getSrcPort(), state.getLinkSrcPort(i));
+			assertEquals(this.graph.getDpid(link.getDst()),
+					state.getLinkDst(i));
+			assertEquals(link.getDstPort(), state.getLinkDstPort(i));
+		}
+		
+		List<HostIndex.Entry> read = state.getHosts();
+		assertEquals(this.hosts.size(), read.size());
+		for (int i = 0; i < read.size(); i++)
+		{
+			assertEquals(this.hosts.get(i).getIp(), read.get(i).getIp());
+			assertEquals(this.hosts.get(i).getDpid(), read.get(i).getDpid());
+			assertEquals(this.hosts.get(i).getPort(), read.get(i).getPort());
+		}
+		
+		for (long dpid = 1; dpid <= 3; dpid++)
+		{
+			assertEquals(this.rules.get(dpid), state.getRules(dpid));
+			assertEquals(this.groups.get(dpid), state.getGroups(dpid));
+		}
+		assertNull(state.getRules(4));
+	}
+	
+	@Test(expected = IOException.class)
+	public void rejectsEmptyFile() throws IOException
+	{ RoutingStateFile.open(this.file); }
+	
+	@Test
+	public void rejectsTruncatedFile() throws IOException
+	{
+		this.write();
+		byte[] contents = new byte[(int)this.file.length()];
+		RandomAccessFile input = new RandomAccessFile(this.file, "r");
+		try
+		{ input.readFully(contents); }
+		finally
+		{ input.close(); }
+		
+		// Every byte is part of some record, so any cut must be noticed
+		// when the file is opened or when its rules and groups are read
+		for (int length = 0; length < contents.length; length++)
+		{
+			FileOutputStream output = new FileOutputStream(this.file);
+			try
+			{ output.write(contents, 0, length); }
+			finally
+			{ output.close(); }
+			try
+			{
+				RoutingStateFile state = RoutingStateFile.open(this.file);
+				for (long dpid = 1; dpid <= 3; dpid++)
+				{
+					state.getRules(dpid);
+					state.getGroups(dpid);
+				}
+				fail("Accepted a file cut to " + length + " of "
+						+ contents.length + " bytes");
+			}
+			catch (IOException e)
+			{ }
+		}
+	}
+	
+	private void write() throws IOException
+	{
+		FlowTableShadow flowTable = new FlowTableShadow(null, (byte)0);
+		for (Map.Entry<Long,Map<RuleMatch,RuleAction>> entry
+				: this.rules.entrySet())
+		{ flowTable.restoreSwitch(entry.getKey(), entry.getValue()); }
+		GroupTableShadow groupTable = new GroupTableShadow(null);
+		for (Map.Entry<Long,Map<Integer,RuleGroup>> entry
+				: this.groups.entrySet())
+		{ groupTable.restoreSwitch(entry.getKey(), entry.getValue()); }
+		RoutingStateFile.write(this.file, this.graph, this.hosts, flowTable,
+				groupTable);
+	}
+}
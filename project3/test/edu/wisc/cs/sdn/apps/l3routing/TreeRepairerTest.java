@@ -0,0 +1,129 @@
+package edu.wisc.cs.sdn.apps.l3routing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.wisc.cs.sdn.apps.l3routing.TopologyGraph.Edge;
+
+/**
+ * Checks that trees repaired after random link removals and additions have
+ * the same distances as trees computed from scratch.
+ */
+public class TreeRepairerTest 
+{
+	// Switches in the graph, ports on each switch, and links to start with
+	private static final int SWITCHES = 40;
+	private static final int PORTS = 8;
+	private static final int LINKS = 120;
+	
+	// Rounds of changes, and links removed and added in each round
+	private static final int ROUNDS = 100;
+	private static final int CHANGES = 6;
+	
+	// Heaviest link weight used with Dijkstra
+	private static final int MAX_WEIGHT = 10;
+	
+	// Seed of the random changes, so a failure can be reproduced
+	private static final long SEED = 42;
+	
+	@Test
+	public void repairedTreesMatchBfs()
+	{ this.checkRandomChanges(new BfsPathEngine(), TopologyGraph.HOP_WEIGHT); }
+	
+	@Test
+	public void repairedTreesMatchDijkstra()
+	{ this.checkRandomChanges(new DijkstraPathEngine(), MAX_WEIGHT); }
+	
+	/**
+	 * Repair a tree towards every switch after each round of random changes,
+	 * and compare it with a tree computed from scratch.
+	 * @param engine computes the trees from scratch
+	 * @param maxWeight heaviest weight given to a link
+	 */
+	private void checkRandomChanges(PathEngine engine, int maxWeight)
+	{
+		Random random = new Random(SEED);
+		TopologyGraph graph = new TopologyGraph();
+		for (int i = 1; i <= SWITCHES; i++)
+		{ graph.addSwitch(i); }
+		for (int i = 0; i < LINKS; i++)
+		{ addRandomLink(graph, random, maxWeight); }
+		
+		List<ShortestPathTree> trees = new ArrayList<ShortestPathTree>();
+		for (int root = 0; root < graph.getCapacity(); root++)
+		{ trees.add(engine.computeTree(graph, root)); }
+		
+		TreeRepairer repairer = new TreeRepairer();
+		for (int round = 0; round < ROUNDS; round++)
+		{
+			List<Edge> removed = new ArrayList<Edge>();
+			for (int i = 0; i < CHANGES; i++)
+			{
+				List<Edge> links = graph.getLinks();
+				if (links.isEmpty())
+				{ break; }
+				Edge link = links.get(random.nextInt(links.size()));
+				removed.add(graph.removeLink(graph.getDpid(link.getSrc()),
+						link.getSrcPort()));
+			}
+			List<Edge> added = new ArrayList<Edge>();
+			for (int i = 0; i < CHANGES; i++)
+			{
+				Edge link = addRandomLink(graph, random, maxWeight);
+				if (link != null)
+				{ added.add(link); }
+			}
+			
+			for (ShortestPathTree tree : trees)
+			{
+				repairer.linksRemoved(tree, removed);
+				repairer.linksAdded(tree, added);
+				checkTree(graph, tree, engine.computeTree(graph,
+						tree.getRoot()), round);
+			}
+		}
+	}
+	
+	/**
+	 * Check that a repaired tree has the same distances as a fresh one, and
+	 * that each switch's path starts with a link that is in the graph.
+	 */
+	private static void checkTree(TopologyGraph graph, ShortestPathTree tree,
+			ShortestPathTree fresh, int round)
+	{
+		for (int u = 0; u < graph.getCapacity(); u++)
+		{
+			String where = String.format("round %d, root %d, switch %d",
+					round, tree.getRoot(), u);
+			assertEquals(where, fresh.getDistance(u), tree.getDistance(u));
+			if (!tree.isReachable(u) || u == tree.getRoot())
+			{ continue; }
+			Edge link = graph.getLink(graph.getDpid(u), tree.getOutPort(u));
+			assertEquals(where, tree.getNextHop(u), link.getDst());
+			assertEquals(where, tree.getDistance(u),
+					tree.getDistance(link.getDst()) + link.getWeight());
+		}
+	}
+	
+	/**
+	 * Add a link between two random switches, out a random port.
+	 * @return the new link, null if the port already has a link
+	 */
+	private static Edge addRandomLink(TopologyGraph graph, Random random,
+			int maxWeight)
+	{
+		long src = 1 + random.nextInt(SWITCHES);
+		long dst = 1 + random.nextInt(SWITCHES - 1);
+		if (dst >= src)
+		{ dst++; }
+		int srcPort = 1 + random.nextInt(PORTS);
+		if (null == graph.addLink(src, srcPort, dst, 1 + random.nextInt(PORTS)))
+		{ return null; }
+		return graph.setWeight(src, srcPort, 1 + random.nextInt(maxWeight));
+	}
+}